@@ -0,0 +1,269 @@
+package logging;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs structured events, a constant message followed by key and value fields, without doing any console I/O on
+ * the thread that logs them. An event below the level is thrown away before anything is done with it. Events
+ * that pass are put in a bounded ring buffer as they are and formatted, one line each, by a single logging
+ * thread that writes a batch of them at a time. When the buffer is full the drop policy decides which event is
+ * lost, and the next batch says how many were. Events other than errors can be sampled, keeping one in every
+ * so many of each message. A field's value is formatted on the logging thread, so it must not change after it
+ * is logged
+ */
+public class AsyncLogger implements AutoCloseable {
+    /**
+     * How serious an event is, in increasing order
+     */
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    /**
+     * Which event is lost when the buffer is full: the one being logged, or the oldest one not yet written
+     */
+    public enum DropPolicy { DROP_NEWEST, DROP_OLDEST }
+
+    private static final int MAX_BATCH = 512;
+    private static final long CLOSE_WAIT_MILLIS = 5_000;
+    // queued by close() and never dropped, the logging thread stops once it has written everything before it
+    private static final Event CLOSE = new Event(Level.ERROR, "", new Object[0]);
+
+    private static volatile AsyncLogger instance = new AsyncLogger(System.out, Level.INFO, 8192,
+            DropPolicy.DROP_NEWEST, 1);
+
+    private final PrintStream out;
+    private final Level level;
+    private final DropPolicy dropPolicy;
+    private final int sampleEvery;
+    private final ArrayBlockingQueue<Event> buffer;
+    private final ConcurrentHashMap<String, AtomicLong> sampled = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor for the AsyncLogger class, which starts its logging thread
+     * @param out PrintStream the lines are written to
+     * @param level Level below which events are thrown away
+     * @param capacity int events the buffer holds before the drop policy applies
+     * @param dropPolicy DropPolicy when the buffer is full
+     * @param sampleEvery int keep one in every sampleEvery events of each message below ERROR, 1 to keep all
+     */
+    public AsyncLogger(PrintStream out, Level level, int capacity, DropPolicy dropPolicy, int sampleEvery) {
+        if (capacity < 1 || sampleEvery < 1)
+            throw new IllegalArgumentException("The buffer capacity and sampling must be at least 1");
+        this.out = out;
+        this.level = level;
+        this.dropPolicy = dropPolicy;
+        this.sampleEvery = sampleEvery;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::drain, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * The logger the server logs to
+     * @return AsyncLogger logger
+     */
+    public static AsyncLogger get() {
+        return instance;
+    }
+
+    /**
+     * Replaces the logger the server logs to, closing the one it replaces once everything it was given is written
+     * @param logger AsyncLogger new logger
+     */
+    public static void set(AsyncLogger logger) {
+        AsyncLogger previous = instance;
+        instance = logger;
+        previous.close();
+    }
+
+    /**
+     * Checks whether events of a level are logged, for a caller that would otherwise compute fields for nothing
+     * @param level Level of the event
+     * @return true if the event would be logged
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Logs a DEBUG event, see log()
+     * @param message String what happened
+     * @param fields Object[] alternating keys and values
+     */
+    public void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    /**
+     * Logs an INFO event, see log()
+     * @param message String what happened
+     * @param fields Object[] alternating keys and values
+     */
+    public void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    /**
+     * Logs a WARN event, see log()
+     * @param message String what happened
+     * @param fields Object[] alternating keys and values
+     */
+    public void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    /**
+     * Logs an ERROR event, see log()
+     * @param message String what happened
+     * @param fields Object[] alternating keys and values
+     */
+    public void error(String message, Object... fields) {
+        log(Level.ERROR, message, fields);
+    }
+
+    /**
+     * Logs an event
+     * @param level Level of the event
+     * @param message String what happened, the same for every event of its kind
+     * @param fields Object[] alternating keys and values, e.g. "tenant", name, "error", e.getMessage()
+     */
+    public void log(Level level, String message, Object... fields) {
+        if (!isEnabled(level))
+            return;
+        if (sampleEvery > 1 && level != Level.ERROR
+                && sampled.computeIfAbsent(message, m -> new AtomicLong()).getAndIncrement() % sampleEvery != 0)
+            return;
+        Event event = new Event(level, message, fields);
+        if (closed) {
+            // nothing drains the buffer any more, so write on the caller's thread
+            StringBuilder line = new StringBuilder();
+            format(event, line);
+            out.print(line);
+            out.flush();
+            return;
+        }
+        if (buffer.offer(event))
+            return;
+        if (dropPolicy == DropPolicy.DROP_NEWEST) {
+            dropped.increment();
+            return;
+        }
+        do {
+            if (buffer.poll() != null)
+                dropped.increment();
+        } while (!buffer.offer(event));
+    }
+
+    /**
+     * Writes every event logged so far and stops the logging thread, later events are written as they are logged
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            buffer.put(CLOSE);
+            writer.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs on the logging thread, writing the buffered events a batch at a time until close() is called
+     */
+    private void drain() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder text = new StringBuilder(MAX_BATCH * 128);
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(buffer.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            buffer.drainTo(batch, MAX_BATCH - 1);
+            for (Event event : batch) {
+                if (event == CLOSE)
+                    closing = true;
+                else
+                    format(event, text);
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0)
+                format(new Event(Level.WARN, "Log events dropped, the buffer was full", new Object[] {"count", lost}), text);
+            out.print(text);
+            out.flush();
+            text.setLength(0);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Formats an event as one line: time, level, thread, message and then each field as key=value, the value
+     * in double quotes if it holds spaces, quotes or an equals sign
+     */
+    private void format(Event event, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(event.time)).append(' ').append(event.level).append(" [")
+                .append(event.thread).append("] ").append(event.message);
+        for (int i = 0; i + 1 < event.fields.length; i += 2) {
+            line.append(' ').append(event.fields[i]).append('=');
+            quote(String.valueOf(event.fields[i + 1]), line);
+        }
+        if (sampleEvery > 1 && event.level != Level.ERROR)
+            line.append(" sampled=1/").append(sampleEvery);
+        line.append(System.lineSeparator());
+    }
+
+    private static void quote(String value, StringBuilder line) {
+        boolean plain = !value.isEmpty();
+        for (int i = 0; i < value.length() && plain; i++) {
+            char c = value.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=';
+        }
+        if (plain) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c == '\n')
+                line.append("\\n");
+            else if (c == '\r')
+                line.append("\\r");
+            else
+                line.append(c);
+        }
+        line.append('"');
+    }
+
+    /**
+     * One logged event, as it was given to the logger
+     */
+    private static final class Event {
+        private final long time = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final Level level;
+        private final String message;
+        private final Object[] fields;
+
+        Event(Level level, String message, Object[] fields) {
+            this.level = level;
+            this.message = message;
+            this.fields = fields;
+        }
+    }
+}
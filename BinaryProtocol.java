@@ -0,0 +1,399 @@
+package controller;
+import metrics.ServerMetrics;
+import model.IncorrectActionException;
+import model.Session;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+public class BinaryProtocol {
+    /**
+     * A client that sends this line as its first request, and gets it back, switches the connection to frames:
+     * a 4 byte length followed by that many bytes. A request frame starts with an operation byte, a response
+     * frame with a kind byte. Sessions are written as a day byte, start and end minutes as shorts and indexes
+     * into a dictionary of the frame's strings, so a room or class name is sent once per frame
+     */
+    static final String HANDSHAKE = "BINARY";
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** any other request, as a text line handled exactly like the text protocol */
+    static final byte OP_TEXT = 0;
+    /** one Session to add */
+    static final byte OP_ADD = 1;
+    /** day, start, end and room of a Session to remove */
+    static final byte OP_REMOVE = 2;
+    /** 'ALL' or a class name, answered with a SESSIONS frame */
+    static final byte OP_DISPLAY = 3;
+    /** close the connection, answered with 'BYE' */
+    static final byte OP_QUIT = 4;
+
+    /** a response line as the text protocol would send it */
+    static final byte RESPONSE_TEXT = 0;
+    /** the Sessions a DISPLAY asked for */
+    static final byte RESPONSE_SESSIONS = 1;
+
+    /**
+     * Checks whether a request line asks to switch to binary frames
+     * @param message String request line
+     * @return true if the line is the handshake
+     */
+    static boolean isHandshake(String message) {
+        return message.trim().equalsIgnoreCase(HANDSHAKE);
+    }
+
+    /**
+     * Checks whether a request frame is QUIT
+     * @param request ByteBuffer request frame without its length
+     * @return true if the frame asks to close the connection
+     */
+    static boolean isQuit(ByteBuffer request) {
+        return request.remaining() > 0 && request.get(request.position()) == OP_QUIT;
+    }
+
+    /**
+     * Handles one request frame, the binary counterpart of ConnectionHandler.process
+     * @param sessionController SessionController handling the request
+     * @param request ByteBuffer request frame without its length
+     * @return byte[] response frame including its length
+     */
+    static byte[] process(SessionController sessionController, ByteBuffer request) {
+        long start = System.nanoTime();
+        long parsed = start;
+        // text requests are counted by the SessionController, every other frame here
+        ServerMetrics.Command command = null;
+        boolean failed = true;
+        try {
+            byte op = request.get();
+            switch (op) {
+                case OP_ADD: {
+                    command = ServerMetrics.Command.ADD;
+                    String[] strings = readDictionary(request);
+                    Session session = readSession(request, strings);
+                    parsed = System.nanoTime();
+                    String response = sessionController.handleAdd(session);
+                    failed = response.startsWith("ERROR");
+                    return text(response);
+                }
+                case OP_REMOVE: {
+                    command = ServerMetrics.Command.REMOVE;
+                    DayOfWeek day = readDay(request);
+                    LocalTime startTime = readTime(request);
+                    LocalTime endTime = readTime(request);
+                    String room = readString(request);
+                    parsed = System.nanoTime();
+                    String response = sessionController.handleRemove(day, startTime, endTime, room);
+                    failed = response.startsWith("ERROR");
+                    return text(response);
+                }
+                case OP_DISPLAY: {
+                    command = ServerMetrics.Command.DISPLAY;
+                    List<Session> sessions = sessionController.getSessions(readString(request));
+                    if (sessions.isEmpty())
+                        return text("ERROR There are no scheduled Sessions");
+                    failed = false;
+                    return sessions(sessions);
+                }
+                case OP_QUIT:
+                    return text(ConnectionHandler.QUIT_RESPONSE);
+                case OP_TEXT: {
+                    String line = readLongString(request);
+                    if (ConnectionHandler.isTextOnly(line))
+                        return text("ERROR IMPORT, EXPORT and SUBSCRIBE are only available on text connections");
+                    return text(ConnectionHandler.process(sessionController, line));
+                }
+                default:
+                    throw new IncorrectActionException();
+            }
+        } catch (IncorrectActionException e) {
+            return text("ERROR " + e.getMessage());
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            return text("ERROR " + new IncorrectActionException().getMessage());
+        } finally {
+            if (command != null)
+                ServerMetrics.get().handled(command, start, parsed, failed);
+        }
+    }
+
+    static byte[] text(String line) {
+        FrameWriter frame = new FrameWriter(line.length() + 16);
+        frame.u8(RESPONSE_TEXT);
+        frame.longString(line);
+        return frame.finish();
+    }
+
+    static byte[] sessions(List<Session> sessions) {
+        Dictionary dictionary = new Dictionary();
+        for (Session session : sessions) {
+            dictionary.add(session.getRoom());
+            dictionary.add(session.getClassName());
+            dictionary.add(session.getDescription());
+        }
+        FrameWriter frame = new FrameWriter(64 + dictionary.bytes + sessions.size() * 11);
+        frame.u8(RESPONSE_SESSIONS);
+        dictionary.write(frame);
+        frame.i32(sessions.size());
+        for (Session session : sessions) {
+            writeSession(frame, session, dictionary);
+        }
+        return frame.finish();
+    }
+
+    static byte[] textRequest(String message) {
+        FrameWriter frame = new FrameWriter(message.length() + 16);
+        frame.u8(OP_TEXT);
+        frame.longString(message);
+        return frame.finish();
+    }
+
+    static byte[] addRequest(Session session) {
+        Dictionary dictionary = new Dictionary();
+        dictionary.add(session.getRoom());
+        dictionary.add(session.getClassName());
+        dictionary.add(session.getDescription());
+        FrameWriter frame = new FrameWriter(32 + dictionary.bytes);
+        frame.u8(OP_ADD);
+        dictionary.write(frame);
+        writeSession(frame, session, dictionary);
+        return frame.finish();
+    }
+
+    static byte[] removeRequest(DayOfWeek day, LocalTime startTime, LocalTime endTime, String room) {
+        FrameWriter frame = new FrameWriter(16 + room.length() * 3);
+        frame.u8(OP_REMOVE);
+        frame.u8(day.getValue());
+        frame.time(startTime);
+        frame.time(endTime);
+        frame.string(room);
+        return frame.finish();
+    }
+
+    static byte[] displayRequest(String className) {
+        FrameWriter frame = new FrameWriter(16 + className.length() * 3);
+        frame.u8(OP_DISPLAY);
+        frame.string(className);
+        return frame.finish();
+    }
+
+    static byte[] quitRequest() {
+        FrameWriter frame = new FrameWriter(8);
+        frame.u8(OP_QUIT);
+        return frame.finish();
+    }
+
+    /**
+     * Reads the text of a TEXT response frame
+     * @param response ByteBuffer response frame without its length
+     * @return String response line
+     * @throws IllegalArgumentException if it is not a TEXT frame
+     */
+    static String readText(ByteBuffer response) {
+        if (response.get() != RESPONSE_TEXT)
+            throw new IllegalArgumentException("Not a text response");
+        return readLongString(response);
+    }
+
+    /**
+     * Reads the Sessions of a SESSIONS response frame
+     * @param response ByteBuffer response frame without its length
+     * @return List of Sessions
+     * @throws IllegalArgumentException if it is not a SESSIONS frame
+     */
+    static List<Session> readSessions(ByteBuffer response) {
+        if (response.get() != RESPONSE_SESSIONS)
+            throw new IllegalArgumentException("Not a sessions response");
+        String[] strings = readDictionary(response);
+        int count = response.getInt();
+        if (count < 0 || count > response.remaining() / 7)
+            throw new BufferUnderflowException();
+        List<Session> sessions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sessions.add(readSession(response, strings));
+        }
+        return sessions;
+    }
+
+    private static void writeSession(FrameWriter frame, Session session, Dictionary dictionary) {
+        frame.u8(session.getDay().getValue());
+        frame.time(session.getStartTime());
+        frame.time(session.getEndTime());
+        dictionary.writeId(frame, session.getRoom());
+        dictionary.writeId(frame, session.getClassName());
+        dictionary.writeId(frame, session.getDescription());
+    }
+
+    private static Session readSession(ByteBuffer buffer, String[] strings) {
+        DayOfWeek day = readDay(buffer);
+        LocalTime startTime = readTime(buffer);
+        LocalTime endTime = readTime(buffer);
+        String room = strings[readId(buffer, strings)];
+        String className = strings[readId(buffer, strings)];
+        String description = strings[readId(buffer, strings)];
+        return new Session(day, startTime, endTime, room, className, description);
+    }
+
+    /**
+     * Reads a day as its ISO number, 1 for Monday to 7 for Sunday
+     * @throws IllegalArgumentException if the frame holds any other number
+     */
+    private static DayOfWeek readDay(ByteBuffer buffer) {
+        int day = buffer.get();
+        if (day < 1 || day > 7)
+            throw new IllegalArgumentException("Invalid day " + day);
+        return DayOfWeek.of(day);
+    }
+
+    /**
+     * Reads a time as minutes since midnight
+     * @throws IllegalArgumentException if the frame holds a minute past the end of the day
+     */
+    private static LocalTime readTime(ByteBuffer buffer) {
+        int minutes = buffer.getShort() & 0xFFFF;
+        if (minutes >= 24 * 60)
+            throw new IllegalArgumentException("Invalid time " + minutes);
+        return LocalTime.ofSecondOfDay(minutes * 60L);
+    }
+
+    private static int readId(ByteBuffer buffer, String[] strings) {
+        // ids are shorts unless the dictionary is too big for them
+        return strings.length <= 0xFFFF ? buffer.getShort() & 0xFFFF : buffer.getInt();
+    }
+
+    private static String[] readDictionary(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        // every entry takes at least its 2 length bytes, which bounds what a bad frame can make us allocate
+        if (count < 0 || count > buffer.remaining() / 2)
+            throw new BufferUnderflowException();
+        String[] strings = new String[count];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(buffer);
+        }
+        return strings;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        return readString(buffer, buffer.getShort() & 0xFFFF);
+    }
+
+    private static String readLongString(ByteBuffer buffer) {
+        return readString(buffer, buffer.getInt());
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining())
+            throw new BufferUnderflowException();
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * The distinct strings of one frame, numbered in the order they were first added
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<byte[]> encoded = new ArrayList<>();
+        private int bytes = 0;
+
+        void add(String s) {
+            if (ids.containsKey(s))
+                return;
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length > 0xFFFF)
+                throw new IllegalArgumentException("String too long for a frame dictionary");
+            ids.put(s, encoded.size());
+            encoded.add(utf8);
+            bytes += 2 + utf8.length;
+        }
+
+        void write(FrameWriter frame) {
+            frame.i32(encoded.size());
+            for (byte[] utf8 : encoded) {
+                frame.u16(utf8.length);
+                frame.bytes(utf8);
+            }
+        }
+
+        void writeId(FrameWriter frame, String s) {
+            int id = ids.get(s);
+            if (encoded.size() <= 0xFFFF)
+                frame.u16(id);
+            else
+                frame.i32(id);
+        }
+    }
+
+    /**
+     * Builds a frame in a growing array, leaving room at the front for the length
+     */
+    private static final class FrameWriter {
+        private byte[] buffer;
+        private int length = 4;
+
+        FrameWriter(int capacity) {
+            buffer = new byte[Math.max(capacity, 16)];
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+
+        void u8(int value) {
+            ensure(1);
+            buffer[length++] = (byte) value;
+        }
+
+        void u16(int value) {
+            ensure(2);
+            buffer[length++] = (byte) (value >>> 8);
+            buffer[length++] = (byte) value;
+        }
+
+        void i32(int value) {
+            ensure(4);
+            buffer[length++] = (byte) (value >>> 24);
+            buffer[length++] = (byte) (value >>> 16);
+            buffer[length++] = (byte) (value >>> 8);
+            buffer[length++] = (byte) value;
+        }
+
+        void time(LocalTime time) {
+            u16(time.getHour() * 60 + time.getMinute());
+        }
+
+        void bytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        void string(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length > 0xFFFF)
+                throw new IllegalArgumentException("String too long for a frame");
+            u16(utf8.length);
+            bytes(utf8);
+        }
+
+        void longString(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            i32(utf8.length);
+            bytes(utf8);
+        }
+
+        byte[] finish() {
+            int body = length - 4;
+            buffer[0] = (byte) (body >>> 24);
+            buffer[1] = (byte) (body >>> 16);
+            buffer[2] = (byte) (body >>> 8);
+            buffer[3] = (byte) body;
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package benchmark;
+import controller.ServerConnection;
+import controller.ServerController;
+import controller.TimetableFormat;
+import model.Session;
+import model.SessionScheduler;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+
+/**
+ * Measures IMPORT and EXPORT throughput of whole timetables through both server modes and both row formats.
+ * Each run writes a file of the given number of rows, streams it into an empty server with IMPORT and streams
+ * it back out to another file with EXPORT.
+ * Usage: BulkTransferBenchmark [rows]
+ */
+public class BulkTransferBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Path directory = Files.createTempDirectory("bulk-transfer-benchmark");
+        try {
+            System.out.println("mode,format,rows,file_mb,import_seconds,import_rows_per_second,export_seconds,"
+                    + "export_rows_per_second");
+            for (TimetableFormat format : TimetableFormat.values()) {
+                Path file = directory.resolve("timetable." + format.name().toLowerCase());
+                write(file, format, rows);
+                for (ServerController.Mode mode : ServerController.Mode.values()) {
+                    run(mode, format, file, directory.resolve("export." + format.name().toLowerCase()), rows);
+                }
+                Files.delete(file);
+            }
+        } finally {
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static void run(ServerController.Mode mode, TimetableFormat format, Path file, Path exported,
+                            int rows) throws Exception {
+        SessionScheduler scheduler = new SessionScheduler();
+        ServerController server = new ServerController(0, scheduler, mode);
+        Thread thread = new Thread(server::start, "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        try (ServerConnection connection = new ServerConnection(server.getPort())) {
+            long start = System.nanoTime();
+            String response;
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                response = connection.importRows(in, format);
+            }
+            double importSeconds = (System.nanoTime() - start) / 1e9;
+            if (!response.equals("SUCCESS " + rows + " classes imported"))
+                throw new IllegalStateException("Import failed: " + response);
+
+            start = System.nanoTime();
+            long lines;
+            try (Writer out = Files.newBufferedWriter(exported, StandardCharsets.UTF_8)) {
+                lines = connection.export(format, null, out);
+            }
+            double exportSeconds = (System.nanoTime() - start) / 1e9;
+            long expected = rows + (format.header() == null ? 0 : 1);
+            if (lines != expected)
+                throw new IllegalStateException("Exported " + lines + " of " + expected + " lines");
+
+            System.out.println(mode + "," + format + "," + rows + ","
+                    + String.format("%.1f", Files.size(file) / 1e6) + "," + String.format("%.3f", importSeconds)
+                    + "," + (long) (rows / importSeconds) + "," + String.format("%.3f", exportSeconds) + ","
+                    + (long) (rows / exportSeconds));
+        } finally {
+            server.stop();
+            Files.deleteIfExists(exported);
+        }
+    }
+
+    private static void write(Path file, TimetableFormat format, int rows) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (format.header() != null) {
+                out.write(format.header());
+                out.newLine();
+            }
+            for (int i = 0; i < rows; i++) {
+                out.write(format.format(session(i)));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * A Session that never clashes with any other: 45 weekday hours per room and per class
+     */
+    private static Session session(int i) {
+        int hour = 9 + (i / 5) % 9;
+        return new Session(DayOfWeek.of(1 + i % 5), LocalTime.of(hour, 0), LocalTime.of(hour + 1, 0),
+                "R" + i / 45, "C" + i / 45, "LECTURE");
+    }
+}
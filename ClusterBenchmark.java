@@ -0,0 +1,128 @@
+package benchmark;
+import controller.ServerConnection;
+import java.io.IOException;
+import java.net.Socket;
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how ADD throughput scales as cluster nodes are added. For each cluster size it starts that many
+ * server JVMs on localhost, spreads client connections and tenants over them and times a fixed number of
+ * pipelined ADDs, every one of which is routed to its partition's primary and replicated to its follower.
+ * Usage: ClusterBenchmark [max nodes] [clients] [requests per client] [first port]
+ */
+public class ClusterBenchmark {
+    private static final int TENANTS = 16;
+    private static final int BATCH = 256;
+
+    public static void main(String[] args) throws Exception {
+        int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        int firstPort = args.length > 3 ? Integer.parseInt(args[3]) : 17_001;
+
+        System.out.println("nodes,clients,requests,seconds,requests_per_second,errors");
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            List<Process> servers = startCluster(nodes, firstPort);
+            try {
+                run(nodes, clients, requests, firstPort);
+            } finally {
+                for (Process server : servers) {
+                    server.destroy();
+                }
+                for (Process server : servers) {
+                    server.waitFor();
+                }
+            }
+        }
+    }
+
+    private static void run(int nodes, int clients, int requests, int firstPort) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Integer>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int client = 0; client < clients; client++) {
+            int id = client;
+            results.add(pool.submit(() -> load(id, firstPort + id % nodes, requests)));
+        }
+        int errors = 0;
+        for (Future<Integer> result : results) {
+            errors += result.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        long total = (long) clients * requests;
+        System.out.println(nodes + "," + clients + "," + total + "," + String.format("%.3f", seconds) + ","
+                + (long) (total / seconds) + "," + errors);
+    }
+
+    /**
+     * One client: picks a tenant and sends ADDs of Sessions that never clash, in pipelined batches
+     * @return int number of requests that did not succeed
+     */
+    private static int load(int client, int port, int requests) throws IOException {
+        int errors = 0;
+        try (ServerConnection connection = new ServerConnection("localhost", port)) {
+            if (!connection.send("USE T" + client % TENANTS).startsWith("SUCCESS"))
+                return requests;
+            List<String> batch = new ArrayList<>(BATCH);
+            for (int i = 0; i < requests; i++) {
+                int hour = 9 + i % 8;
+                batch.add("ADD " + DayOfWeek.of(1 + (i / 8) % 5) + " " + String.format("%02d:00", hour) + " "
+                        + String.format("%02d:00", hour + 1) + " R" + client + "_" + i + " K" + client + "_" + i + " LAB");
+                if (batch.size() == BATCH || i == requests - 1) {
+                    for (String response : connection.sendAll(batch)) {
+                        if (!response.startsWith("SUCCESS"))
+                            errors++;
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Starts one server JVM per node with an in-memory schedule and waits until all of them accept connections
+     */
+    private static List<Process> startCluster(int nodes, int firstPort) throws IOException, InterruptedException {
+        StringBuilder addresses = new StringBuilder();
+        for (int node = 0; node < nodes; node++) {
+            if (node > 0)
+                addresses.append(',');
+            addresses.append("localhost:").append(firstPort + node);
+        }
+        String java = System.getProperty("java.home") + "/bin/java";
+        List<Process> servers = new ArrayList<>();
+        for (int node = 0; node < nodes; node++) {
+            servers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "ServerApplication",
+                    "--port=" + (firstPort + node), "--data-dir=", "--cluster=" + addresses,
+                    "--node=" + node)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+        }
+        for (int node = 0; node < nodes; node++) {
+            awaitPort(firstPort + node);
+        }
+        return servers;
+    }
+
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("Node on port " + port + " did not start", e);
+                Thread.sleep(100);
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package controller;
+import logging.AsyncLogger;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.DayOfWeek;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+public class ClusterRouter implements AutoCloseable {
+    private static final int VIRTUAL_NODES = 64;
+    private static final int IDLE_CONNECTIONS_PER_NODE = 32;
+    private static final long RETRY_MILLIS = 1_000;
+    // changes kept for a node that cannot be reached, beyond which its copy can only be rebuilt by hand
+    private static final int MAX_MISSED_CHANGES = 100_000;
+
+    private final List<String> addresses;
+    private final int self;
+    private final HashRing ring;
+    private final List<BlockingQueue<Peer>> idle = new ArrayList<>();
+    // every address the nodes' host names resolve to, resolved once as the router is built
+    private final Set<InetAddress> peers = new HashSet<>();
+    // the changes each node missed as a replica, in the order they were made, each queue is its own lock
+    private final List<ArrayDeque<Missed>> missed = new ArrayList<>();
+    private final ScheduledExecutorService retrier;
+
+    /**
+     * Constructor for the ClusterRouter class. Every node is started with the same list of addresses, so every
+     * node works out the same owner for every partition without asking the others
+     * @param addresses List of every node's 'host:port', in the same order on every node
+     * @param self int index of this node in the list
+     */
+    public ClusterRouter(List<String> addresses, int self) {
+        if (self < 0 || self >= addresses.size())
+            throw new IllegalArgumentException("Node " + self + " is not one of the " + addresses.size() + " cluster nodes");
+        this.addresses = List.copyOf(addresses);
+        this.self = self;
+        this.ring = new HashRing(this.addresses, VIRTUAL_NODES);
+        for (int i = 0; i < addresses.size(); i++) {
+            idle.add(new ArrayBlockingQueue<>(IDLE_CONNECTIONS_PER_NODE));
+            missed.add(new ArrayDeque<>());
+            String host = addresses.get(i).substring(0, addresses.get(i).lastIndexOf(':'));
+            try {
+                peers.addAll(Arrays.asList(InetAddress.getAllByName(host)));
+            } catch (UnknownHostException e) {
+                AsyncLogger.get().warn("Cannot resolve cluster node", "node", addresses.get(i), "error", e.getMessage());
+            }
+        }
+        retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-replication-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retrier.scheduleWithFixedDelay(this::retryMissed, RETRY_MILLIS, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Builds a router from the --cluster and --node arguments
+     * @param nodes String comma separated 'host:port' of every node
+     * @param self int index of this node
+     * @return ClusterRouter router
+     */
+    public static ClusterRouter fromArgs(String nodes, int self) {
+        return new ClusterRouter(Arrays.asList(nodes.split(",")), self);
+    }
+
+    /**
+     * Returns the nodes holding a partition, a tenant's Sessions on one day. A day is the natural partition as
+     * Sessions only ever clash with Sessions on the same day
+     * @param tenant String tenant name
+     * @param day DayOfWeek day
+     * @return int[] the owner followed by its follower, if there is more than one node
+     */
+    public int[] replicas(String tenant, DayOfWeek day) {
+        String key = key(tenant, day);
+        int follower = ring.follower(key);
+        return follower < 0 ? new int[] {ring.owner(key)} : new int[] {ring.owner(key), follower};
+    }
+
+    /**
+     * Checks whether a connection comes from one of the cluster's nodes, the only ones allowed to send each
+     * other 'CLUSTER' requests
+     * @param address InetAddress the connection comes from, or null if unknown
+     * @return true if it is the address of a node
+     */
+    public boolean isPeer(InetAddress address) {
+        return address != null && peers.contains(address);
+    }
+
+    public boolean isSelf(int node) {
+        return node == self;
+    }
+
+    public String getAddress(int node) {
+        return addresses.get(node);
+    }
+
+    /**
+     * Sends a request to another node on behalf of a tenant over one of the connections kept open to it
+     * @param node int node index
+     * @param tenant String tenant the request is for
+     * @param request String request line
+     * @return String response line
+     * @throws IOException if the node cannot be reached
+     */
+    public String send(int node, String tenant, String request) throws IOException {
+        return sendAll(node, tenant, List.of(request)).get(0);
+    }
+
+    /**
+     * Pipelines requests to another node on behalf of a tenant. A connection remembers which tenant it last
+     * used, so 'USE' is only sent when it changes
+     * @param node int node index
+     * @param tenant String tenant the requests are for
+     * @param requests List of request lines
+     * @return List of response lines in the same order
+     * @throws IOException if the node cannot be reached
+     */
+    public List<String> sendAll(int node, String tenant, List<String> requests) throws IOException {
+        Peer peer = idle.get(node).poll();
+        if (peer == null)
+            peer = new Peer(addresses.get(node));
+        try {
+            List<String> responses;
+            if (tenant.equals(peer.tenant)) {
+                responses = peer.connection.sendAll(requests);
+            } else {
+                List<String> withTenant = new ArrayList<>(requests.size() + 1);
+                withTenant.add("USE " + tenant);
+                withTenant.addAll(requests);
+                responses = peer.connection.sendAll(withTenant);
+                if (!responses.get(0).startsWith("SUCCESS"))
+                    throw new IOException("Node " + addresses.get(node) + " refused tenant " + tenant + ": " + responses.get(0));
+                peer.tenant = tenant;
+                responses = responses.subList(1, responses.size());
+            }
+            if (!idle.get(node).offer(peer))
+                peer.connection.close();
+            return responses;
+        } catch (IOException | RuntimeException e) {
+            peer.connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a change the calling node applied as a partition's primary to the partition's other replica.
+     * Replication is synchronous, the client is answered once the replica has the change. A change a replica
+     * cannot be sent is kept, and retried every second until the replica is back. Meanwhile its later changes
+     * queue up behind it, so the replica applies every change in the order the primary made them
+     * @param tenant String tenant name
+     * @param day DayOfWeek day of the change
+     * @param request String the ADD, REMOVE or EARLY_LECTURES applied
+     */
+    public void replicate(String tenant, DayOfWeek day, String request) {
+        for (int node : replicas(tenant, day)) {
+            if (node == self)
+                continue;
+            ArrayDeque<Missed> changes = missed.get(node);
+            synchronized (changes) {
+                if (!changes.isEmpty()) {
+                    keep(node, changes, new Missed(tenant, request));
+                    continue;
+                }
+            }
+            try {
+                send(node, tenant, "CLUSTER REPLICA " + request);
+            } catch (IOException e) {
+                AsyncLogger.get().warn("Replication failed, retrying", "tenant", tenant, "day", day,
+                        "node", addresses.get(node), "error", e.getMessage());
+                synchronized (changes) {
+                    keep(node, changes, new Missed(tenant, request));
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a change a node missed, holding the queue's lock. Past the limit the change is dropped and the
+     * node's copy is known to be out of date
+     */
+    private void keep(int node, ArrayDeque<Missed> changes, Missed change) {
+        if (changes.size() < MAX_MISSED_CHANGES) {
+            changes.add(change);
+            return;
+        }
+        AsyncLogger.get().error("Replica missed too many changes, its copy must be rebuilt", "node",
+                addresses.get(node), "tenant", change.tenant, "request", change.request);
+    }
+
+    /**
+     * Sends every node the changes it missed, oldest first, until they are all through or the node fails
+     * again. Runs on the retry thread only, so a change is never sent twice at once
+     */
+    private void retryMissed() {
+        for (int node = 0; node < missed.size(); node++) {
+            ArrayDeque<Missed> changes = missed.get(node);
+            while (true) {
+                Missed next;
+                synchronized (changes) {
+                    next = changes.peek();
+                }
+                if (next == null)
+                    break;
+                try {
+                    send(node, next.tenant, "CLUSTER REPLICA " + next.request);
+                } catch (IOException e) {
+                    break;
+                }
+                int left;
+                synchronized (changes) {
+                    changes.poll();
+                    left = changes.size();
+                }
+                if (left == 0)
+                    AsyncLogger.get().info("Replica caught up", "node", addresses.get(node));
+            }
+        }
+    }
+
+    /**
+     * Closes every connection kept open to the other nodes
+     */
+    @Override
+    public void close() {
+        retrier.shutdownNow();
+        for (BlockingQueue<Peer> peers : idle) {
+            Peer peer;
+            while ((peer = peers.poll()) != null) {
+                peer.connection.close();
+            }
+        }
+    }
+
+    private static String key(String tenant, DayOfWeek day) {
+        return tenant + "/" + day;
+    }
+
+    /**
+     * A change a replica has not been sent yet
+     */
+    private static final class Missed {
+        private final String tenant;
+        private final String request;
+
+        Missed(String tenant, String request) {
+            this.tenant = tenant;
+            this.request = request;
+        }
+    }
+
+    /**
+     * A connection to another node and the tenant it last switched to
+     */
+    private static final class Peer {
+        private final ServerConnection connection;
+        private String tenant;
+
+        Peer(String address) {
+            int colon = address.lastIndexOf(':');
+            connection = new ServerConnection(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+    }
+}
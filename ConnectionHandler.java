@@ -1,9 +1,28 @@
 package controller;
+import logging.AsyncLogger;
+import metrics.ServerMetrics;
+import model.IncorrectActionException;
+import model.ScheduleStream;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 public class ConnectionHandler implements Runnable {
+    static final String QUIT = "QUIT";
+    static final String QUIT_RESPONSE = "BYE";
+    private static final String DISPLAY_ALL = "DISPLAY ALL;";
+    static final String END = "END";
+    private static final int MAX_PUSH_LINES = 1024;
+    // push subscriptions' changes, so the scheduler writer that made a change never waits for a socket
+    private static final ExecutorService PUSHERS = newPushers();
+
     private final Socket link;
     private final SessionController sessionController;
+    private final int idleTimeoutMillis;
 
     /**
      * Constructor for the ConnectionHandler class
@@ -11,34 +30,393 @@ public class ConnectionHandler implements Runnable {
      * @param sessionController SessionController sessionController
      */
     public ConnectionHandler(Socket link, SessionController sessionController) {
+        this(link, sessionController, 0);
+    }
+
+    /**
+     * Constructor for the ConnectionHandler class
+     * @param link Socket link
+     * @param sessionController SessionController sessionController
+     * @param idleTimeoutMillis int milliseconds a kept-alive connection may stay silent before it is closed, 0 for no limit
+     */
+    public ConnectionHandler(Socket link, SessionController sessionController, int idleTimeoutMillis) {
         this.link = link;
         this.sessionController = sessionController;
+        this.idleTimeoutMillis = idleTimeoutMillis;
     }
 
     /**
-     * The run() method of the ConnectionHandler. Establishes connections to clients reading in messages and sending responses
+     * The run() method of the ConnectionHandler. Establishes connections to clients reading in messages and sending responses.
+     * The connection is kept alive for further requests until the client closes it, sends QUIT or stays idle too long.
+     * Clients may pipeline requests, everything already buffered is answered before the responses are flushed together.
+     * A client whose first line is the BinaryProtocol handshake is answered in binary frames from then on.
+     * After a 'SUBSCRIBE' the schedule's changes are pushed between the responses by a thread of their own
      */
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(link.getInputStream()));
-             PrintWriter out = new PrintWriter(link.getOutputStream(), true)) {
+        ServerMetrics.get().connectionOpened();
+        try (InputStream raw = new BufferedInputStream(link.getInputStream());
+             OutputStream rawOut = new BufferedOutputStream(link.getOutputStream())) {
+            link.setSoTimeout(idleTimeoutMillis);
+
+            // the first line is read byte by byte so nothing after it is buffered away from the binary reader
+            String first = readFirstLine(raw);
+            if (first == null)
+                return;
+            if (BinaryProtocol.isHandshake(first)) {
+                rawOut.write((BinaryProtocol.HANDSHAKE + "\n").getBytes());
+                flush(rawOut);
+                runBinary(new DataInputStream(raw), rawOut);
+                return;
+            }
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(rawOut)));
+            String message = first;
+            boolean following = false;
+            while (message != null) {
+                // a subscription's changes are pushed between responses, never in the middle of one
+                synchronized (out) {
+                    if (isQuit(message)) {
+                        out.println(quitResponse(message));
+                        flush(out);
+                        break;
+                    }
+                    String prefix = displayAllPrefix(message);
+                    ScheduleStream stream = prefix == null ? null : sessionController.streamDisplayAll();
+                    Iterator<String> export = stream == null ? export(sessionController, message) : null;
+                    if (stream != null) {
+                        flush(out);
+                        long start = System.nanoTime();
+                        try (stream) {
+                            writeStream(prefix, stream, rawOut);
+                        }
+                        ServerMetrics.get().written(System.nanoTime() - start);
+                    } else if (export != null) {
+                        while (export.hasNext()) {
+                            out.println(export.next());
+                        }
+                    } else {
+                        String response = process(sessionController, message);
+                        // rows of an import are not answered one by one
+                        if (response != null)
+                            out.println(response);
+                    }
+                    ScheduleSubscription subscription = sessionController.takeNewSubscription();
+                    if (subscription != null || !in.ready())
+                        flush(out);
+                    if (subscription != null) {
+                        // a subscriber may stay silent for as long as it follows the schedule
+                        link.setSoTimeout(0);
+                        following = true;
+                        subscription.start(() -> PUSHERS.execute(() -> push(subscription, out)));
+                    } else if (following && !sessionController.isSubscribed()) {
+                        // 'UNSUBSCRIBE' or 'USE' cancelled it, the connection is kept alive like any other
+                        link.setSoTimeout(idleTimeoutMillis);
+                        following = false;
+                    }
+                }
+                message = in.readLine();
+            }
+            synchronized (out) {
+                flush(out);
+            }
+
+        } catch (SocketTimeoutException e) {
+            // idle keep-alive connection, closed by leaving the try block
+        } catch (IOException e) {
+            AsyncLogger.get().warn("Connection error", "error", e.getMessage());
+        } finally {
+            sessionController.close();
+            ServerMetrics.get().connectionClosed();
+        }
+    }
+
+    /**
+     * Answers length prefixed request frames until the client quits or closes the connection
+     * @param in DataInputStream the client's frames
+     * @param out OutputStream to write response frames to
+     * @throws IOException if the connection fails or a frame is too long
+     */
+    private void runBinary(DataInputStream in, OutputStream out) throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+                throw new IOException("Frame too long: " + length);
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            ByteBuffer request = ByteBuffer.wrap(frame);
+            boolean quit = BinaryProtocol.isQuit(request);
+            out.write(BinaryProtocol.process(sessionController, request));
+            if (quit)
+                break;
+            if (in.available() == 0)
+                flush(out);
+        }
+        flush(out);
+    }
+
+    /**
+     * Writes a subscription's pending lines between responses. A connection that is not read fast enough
+     * blocks here, and only here, while the subscription coalesces the changes it has not been sent. After
+     * MAX_PUSH_LINES the push goes to the back of the queue, so the connection's own requests get a turn
+     * @param subscription ScheduleSubscription started on this connection
+     * @param out PrintWriter of the connection
+     */
+    private static void push(ScheduleSubscription subscription, PrintWriter out) {
+        boolean more = true;
+        synchronized (out) {
+            for (int lines = 0; lines < MAX_PUSH_LINES && more; lines++) {
+                String line = subscription.nextLine();
+                if (line == null)
+                    more = false;
+                else
+                    out.println(line);
+            }
+            long start = System.nanoTime();
+            out.flush();
+            ServerMetrics.get().written(System.nanoTime() - start);
+        }
+        if (more)
+            PUSHERS.execute(() -> push(subscription, out));
+    }
+
+    private static ExecutorService newPushers() {
+        ExecutorService virtual = ServerController.newVirtualThreadExecutor();
+        if (virtual != null)
+            return virtual;
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "subscription-push");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Flushes the buffered responses to the socket, timing the write for the ServerMetrics
+     * @param out Flushable stream or writer holding the responses
+     * @throws IOException if the connection fails
+     */
+    private static void flush(Flushable out) throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        ServerMetrics.get().written(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes a streamed 'DISPLAY ALL' response. The socket's channel takes the buffers in gathering writes, so
+     * the Sessions go from the store to the socket without being copied onto the heap
+     * @param prefix String response prefix up to the first Session
+     * @param stream ScheduleStream schedule text
+     * @param out OutputStream already flushed, used if the socket has no channel
+     * @throws IOException if the connection fails
+     */
+    private void writeStream(String prefix, ScheduleStream stream, OutputStream out) throws IOException {
+        List<ByteBuffer> text = stream.getBuffers();
+        ByteBuffer[] buffers = new ByteBuffer[text.size() + 2];
+        buffers[0] = ByteBuffer.wrap(prefix.getBytes());
+        for (int i = 0; i < text.size(); i++) {
+            buffers[i + 1] = text.get(i);
+        }
+        buffers[buffers.length - 1] = ByteBuffer.wrap(System.lineSeparator().getBytes());
+
+        SocketChannel channel = link.getChannel();
+        if (channel == null) {
+            for (ByteBuffer buffer : buffers) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                out.write(bytes);
+            }
+            out.flush();
+            return;
+        }
+        int next = 0;
+        while (next < buffers.length) {
+            channel.write(buffers, next, buffers.length - next);
+            while (next < buffers.length && !buffers[next].hasRemaining()) {
+                next++;
+            }
+        }
+    }
 
-            String message = in.readLine();
-            String[] parts = message.split("\\s+", 2);
-            String identifier = parts[0];
-            String remainder = parts.length > 1 ? parts[1] : "";
+    private static String readFirstLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                return line.size() == 0 ? null : line.toString();
+            line.write(b);
+        }
+        String s = line.toString();
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * Checks whether a request line asks the server to close the connection
+     * @param message String request line, optionally starting with a correlation ID
+     * @return true if the line is QUIT
+     */
+    static boolean isQuit(String message) {
+        String id = correlationId(message);
+        String request = id == null ? message : message.substring(id.length());
+        return request.trim().equalsIgnoreCase(QUIT);
+    }
+
+    /**
+     * The response to a QUIT line, carrying the same correlation ID as the request
+     * @param message String QUIT request line
+     * @return String response line
+     */
+    static String quitResponse(String message) {
+        String id = correlationId(message);
+        return id == null ? QUIT_RESPONSE : id + " " + QUIT_RESPONSE;
+    }
+
+    /**
+     * Returns the correlation ID a pipelining client put in front of a request, e.g. '#42' in '#42 DISPLAY ALL'
+     * @param message String request line
+     * @return String the ID including its '#', or null if the request has none
+     */
+    static String correlationId(String message) {
+        if (message.isEmpty() || message.charAt(0) != '#')
+            return null;
+        int end = 1;
+        while (end < message.length() && !Character.isWhitespace(message.charAt(end))) {
+            end++;
+        }
+        return message.substring(0, end);
+    }
+
+    /**
+     * Checks whether a request line is a 'DISPLAY ALL', which a server may answer by streaming
+     * @param message String request line, optionally starting with a correlation ID
+     * @return String the response up to the first Session, or null if the line is anything else
+     */
+    static String displayAllPrefix(String message) {
+        String id = correlationId(message);
+        String request = id == null ? message : message.substring(id.length()).trim();
+        int identifierEnd = "DISPLAY".length();
+        if (!request.startsWith("DISPLAY") || request.length() == identifierEnd
+                || !isSpace(request.charAt(identifierEnd)))
+            return null;
+        int remainderStart = identifierEnd;
+        while (remainderStart < request.length() && isSpace(request.charAt(remainderStart))) {
+            remainderStart++;
+        }
+        if (!request.substring(remainderStart).equals("ALL"))
+            return null;
+        return id == null ? DISPLAY_ALL : id + " " + DISPLAY_ALL;
+    }
+
+    /**
+     * Checks whether a request line is an 'IMPORT', an 'EXPORT' or a 'SUBSCRIBE'. They move one row or change
+     * per line, so only text connections can carry them
+     * @param message String request line, optionally starting with a correlation ID
+     * @return true if the line starts an import, an export or a subscription
+     */
+    static boolean isTextOnly(String message) {
+        String id = correlationId(message);
+        String request = id == null ? message : message.substring(id.length()).trim();
+        return startsWithIdentifier(request, "IMPORT") || startsWithIdentifier(request, "EXPORT")
+                || startsWithIdentifier(request, "SUBSCRIBE");
+    }
+
+    private static boolean startsWithIdentifier(String request, String identifier) {
+        return request.startsWith(identifier)
+                && (request.length() == identifier.length() || isSpace(request.charAt(identifier.length())));
+    }
+
+    /**
+     * Starts answering an 'EXPORT' line with its rows, taken from the schedule as they are written, followed
+     * by a line 'END' carrying the request's correlation ID. A request that cannot be exported gets a single
+     * ERROR line instead
+     * @param sessionController SessionController of the connection
+     * @param message String request line, optionally starting with a correlation ID
+     * @return Iterator of response lines, or null if the line is not an 'EXPORT'
+     */
+    static Iterator<String> export(SessionController sessionController, String message) {
+        if (sessionController.isImporting())
+            return null;
+        String id = correlationId(message);
+        String request = id == null ? message : message.substring(id.length()).trim();
+        if (!startsWithIdentifier(request, "EXPORT"))
+            return null;
+        String end = id == null ? END : id + " " + END;
+        Iterator<String> rows;
+        long start = System.nanoTime();
+        try {
+            rows = sessionController.export(request.substring("EXPORT".length()));
+        } catch (IncorrectActionException e) {
+            ServerMetrics.get().handled(ServerMetrics.Command.EXPORT, start, start, true);
+            return List.of(id == null ? "ERROR " + e.getMessage() : id + " ERROR " + e.getMessage()).iterator();
+        }
+        ServerMetrics.get().handled(ServerMetrics.Command.EXPORT, start, start, false);
+        return new Iterator<String>() {
+            private boolean ended = false;
+
+            @Override
+            public boolean hasNext() {
+                return !ended;
+            }
+
+            @Override
+            public String next() {
+                if (rows.hasNext())
+                    return rows.next();
+                ended = true;
+                return end;
+            }
+        };
+    }
 
+    /**
+     * Splits a request line into its identifier and remainder and passes it to the SessionController.
+     * Shared by the blocking handler and the NIO server so both speak exactly the same protocol.
+     * A request carrying a correlation ID gets a response starting with the same ID. While an 'IMPORT' is in
+     * progress every line is one of its rows instead, up to the line 'END'
+     * @param sessionController SessionController handling the request
+     * @param message String request line without its line terminator
+     * @return String response line, or null for an 'IMPORT' and each of its rows, which are answered at the 'END'
+     */
+    static String process(SessionController sessionController, String message) {
+        if (sessionController.isImporting()) {
             try {
-                String response = sessionController.handleIdentifier(identifier, remainder);
-                System.out.println(response);
-                out.println(response);
+                return sessionController.importRow(message);
             } catch (IncorrectActionException e) {
-                out.println("ERROR " + e.getMessage());
+                return "ERROR " + e.getMessage();
             }
+        }
+        String id = correlationId(message);
+        if (id != null)
+            message = message.substring(id.length()).trim();
+        // the identifier runs up to the first whitespace and the remainder starts after it, as split("\\s+", 2)
+        int identifierEnd = 0;
+        while (identifierEnd < message.length() && !isSpace(message.charAt(identifierEnd))) {
+            identifierEnd++;
+        }
+        int remainderStart = identifierEnd;
+        while (remainderStart < message.length() && isSpace(message.charAt(remainderStart))) {
+            remainderStart++;
+        }
 
-        } catch (IOException e) {
-            System.out.println("Connection error: " + e.getMessage());
+        String response;
+        try {
+            response = sessionController.handleRequest(message, identifierEnd, remainderStart);
+        } catch (IncorrectActionException e) {
+            response = "ERROR " + e.getMessage();
         }
+        return id == null || response == null ? response : id + " " + response;
     }
-}
 
+    /**
+     * The characters the regular expression \s matches
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
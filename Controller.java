@@ -3,19 +3,15 @@ import javafx.application.Platform;
 import javafx.concurrent.Task;
 import model.Session;
 import view.SchedulerView;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.List;
 public class Controller {
     private static final int PORT = 1234;
     private SchedulerView view;
-    private InetAddress host;
+    private final ServerConnection connection = new ServerConnection(null, PORT, true);
 
     /**
      *Constructor for Controller of Client Application
@@ -74,11 +70,50 @@ public class Controller {
      * @param message String consisting of identifier and either 'ALL' or class name
      */
     public void onAllOrClassMessage(String message){
-        sendRequest(message);
+        if (message.startsWith("DISPLAY "))
+            sendDisplayRequest(message.substring("DISPLAY ".length()));
+        else
+            sendRequest(message);
+    }
+
+    /**
+     * Fetches the Sessions to display. Over the binary connection they arrive already decoded
+     * @param className String 'ALL' or a class name
+     */
+    private void sendDisplayRequest(String className) {
+        Task<List<Session>> task = new Task<>() {
+            @Override
+            protected List<Session> call() throws IOException {
+                return connection.display(className);
+            }
+        };
+
+        task.setOnSucceeded(event -> {
+            List<Session> sessions = task.getValue();
+            if (sessions.isEmpty()) {
+                view.showAlert("ERROR", "There are no scheduled Sessions");
+                view.showMainScene();
+            } else if (className.equals("ALL")) {
+                Platform.runLater(()->view.displayAllSessions(sessions));
+            } else {
+                Platform.runLater(()->view.displayClassSessions(sessions));
+            }
+        });
+
+        task.setOnFailed(event -> {
+            Throwable cause = task.getException();
+            Platform.runLater(() -> {
+                view.showAlert("Communication Error", "Error communicating with server! " + cause.getMessage());
+            });
+        });
+
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * Sends message to the server
+     * Sends message to the server over the kept-alive connection
      * @param message String being sent to the server
      */
     private void sendRequest(String message) {
@@ -86,16 +121,7 @@ public class Controller {
             @Override
             protected String call(){
                 try {
-                    host = InetAddress.getLocalHost();
-                    Socket link = new Socket(host, PORT);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(link.getInputStream()));
-                    PrintWriter out = new PrintWriter(link.getOutputStream(), true);
-
-                    out.println(message);
-                    String response = in.readLine();
-
-                    link.close();
-                    return response;
+                    return connection.send(message);
                 } catch (UnknownHostException ex) {
                     return "Host ID not found!";
                 } catch (IOException ex) {
@@ -133,6 +159,7 @@ public class Controller {
      */
     private void handleResponse(String response) {
         if (response.equals("TERMINATE")) {
+            connection.close();
             Platform.runLater(() -> {
                 view.showAlert("Server Terminated", "The server has terminated.");
                 view.getStage().close();
@@ -0,0 +1,146 @@
+package model;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+public class EarlyLecturesEngine {
+    private static final int EARLIEST_START = LocalTime.of(9, 0).toSecondOfDay();
+    private static final int HOUR = 3600;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor for an EarlyLecturesEngine running on the common pool
+     */
+    public EarlyLecturesEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for the EarlyLecturesEngine class
+     * @param pool ForkJoinPool shared by every run, one task per day
+     */
+    public EarlyLecturesEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Shifts all or a specific class' lectures to the earliest free whole hour from 09:00 on their own day.
+     * The days are planned in parallel from immutable snapshots and the result is applied as one atomic change
+     * @param scheduler SessionScheduler to compact
+     * @param className String 'ALL' or the class name whose Sessions may move
+     * @return Map of the Sessions that moved to where they moved to
+     */
+    public Map<Session, Session> shift(SessionScheduler scheduler, String className) {
+        return shift(scheduler, className, EnumSet.allOf(DayOfWeek.class));
+    }
+
+    /**
+     * Shifts lectures as shift() does, on some of the days only. Sessions never leave their day, so shifting
+     * every day separately gives the same schedule as shifting them all at once
+     * @param scheduler SessionScheduler to compact
+     * @param className String 'ALL' or the class name whose Sessions may move
+     * @param only Set of the days to shift, locked for the change
+     * @return Map of the Sessions that moved to where they moved to
+     */
+    public Map<Session, Session> shift(SessionScheduler scheduler, String className, Set<DayOfWeek> only) {
+        return scheduler.moveAll(only, days -> pool.invoke(new RecursiveTask<Map<Session, Session>>() {
+            @Override
+            protected Map<Session, Session> compute() {
+                List<DayTask> tasks = new ArrayList<>();
+                for (Map.Entry<DayOfWeek, List<Session>> day : days.entrySet()) {
+                    tasks.add(new DayTask(day.getValue(), className));
+                }
+                ForkJoinTask.invokeAll(tasks);
+                Map<Session, Session> moves = new LinkedHashMap<>();
+                for (DayTask task : tasks) {
+                    moves.putAll(task.join());
+                }
+                return moves;
+            }
+        }));
+    }
+
+    /**
+     * Plans the moves for one day. Sessions are taken in start time order, and each one that may move is
+     * placed at the first whole hour from 09:00 where neither its room nor its class is busy. Instead of trying
+     * every hour against every Session, the sweep jumps straight past whichever occupied interval blocks the
+     * current candidate, found with a lookup in the room and class interval maps
+     */
+    @SuppressWarnings("serial") // never serialized, ForkJoinTask is only Serializable by inheritance
+    private static class DayTask extends RecursiveTask<Map<Session, Session>> {
+        private final List<Session> sessions;
+        private final String className;
+
+        DayTask(List<Session> sessions, String className) {
+            this.sessions = sessions;
+            this.className = className;
+        }
+
+        @Override
+        protected Map<Session, Session> compute() {
+            Map<String, TreeMap<Integer, Integer>> rooms = new HashMap<>();
+            Map<String, TreeMap<Integer, Integer>> classes = new HashMap<>();
+            for (Session session : sessions) {
+                occupy(rooms, session.getRoom(), session);
+                occupy(classes, session.getClassName().toUpperCase(), session);
+            }
+
+            Map<Session, Session> moves = new LinkedHashMap<>();
+            for (Session session : sessions) {
+                if (!className.equals("ALL") && !session.getClassName().toUpperCase().equals(className))
+                    continue;
+                TreeMap<Integer, Integer> room = rooms.get(session.getRoom());
+                TreeMap<Integer, Integer> classIntervals = classes.get(session.getClassName().toUpperCase());
+                int start = session.getStartTime().toSecondOfDay();
+                int length = session.getEndTime().toSecondOfDay() - start;
+                room.remove(start);
+                classIntervals.remove(start);
+
+                int candidate = earliestFree(room, classIntervals, length, start);
+                room.put(candidate, candidate + length);
+                classIntervals.put(candidate, candidate + length);
+                if (candidate < start) {
+                    moves.put(session, new Session(session.getDay(), LocalTime.ofSecondOfDay(candidate),
+                            LocalTime.ofSecondOfDay(candidate + length), session.getRoom(),
+                            session.getClassName(), session.getDescription()));
+                }
+            }
+            return moves;
+        }
+
+        private static void occupy(Map<String, TreeMap<Integer, Integer>> index, String key, Session session) {
+            index.computeIfAbsent(key, k -> new TreeMap<>())
+                    .put(session.getStartTime().toSecondOfDay(), session.getEndTime().toSecondOfDay());
+        }
+
+        /**
+         * Sweeps forward over the occupied intervals of a room and a class
+         * @return int first whole hour where the Session fits, or its current start if none is earlier
+         */
+        private static int earliestFree(TreeMap<Integer, Integer> room, TreeMap<Integer, Integer> classIntervals,
+                                        int length, int currentStart) {
+            int candidate = EARLIEST_START;
+            while (candidate < currentStart) {
+                int blockedUntil = Math.max(busyUntil(room, candidate, candidate + length),
+                        busyUntil(classIntervals, candidate, candidate + length));
+                if (blockedUntil <= candidate)
+                    return candidate;
+                // next whole hour at or after the end of whatever is in the way
+                candidate = EARLIEST_START + ((blockedUntil - EARLIEST_START + HOUR - 1) / HOUR) * HOUR;
+            }
+            return currentStart;
+        }
+
+        /**
+         * The intervals in a map are disjoint, so only the last one starting before end can overlap [start, end)
+         * @return int end of the overlapping interval, or start if the range is free
+         */
+        private static int busyUntil(TreeMap<Integer, Integer> intervals, int start, int end) {
+            Map.Entry<Integer, Integer> last = intervals.lowerEntry(end);
+            return last != null && last.getValue() > start ? last.getValue() : start;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package controller;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+public class HashRing {
+    private final long[] points;
+    private final int[] nodes;
+    private final int nodeCount;
+
+    /**
+     * Constructor for the HashRing class. Every node is placed on the ring many times so the keys spread evenly,
+     * and adding a node only takes over the keys that now fall just before its points
+     * @param nodeNames List of node names, a node's position in the list is its index
+     * @param virtualNodes int points on the ring per node
+     */
+    public HashRing(List<String> nodeNames, int virtualNodes) {
+        nodeCount = nodeNames.size();
+        long[][] entries = new long[nodeCount * virtualNodes][];
+        for (int node = 0; node < nodeCount; node++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[node * virtualNodes + v] = new long[] {hash(nodeNames.get(node) + "#" + v), node};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[entries.length];
+        nodes = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            nodes[i] = (int) entries[i][1];
+        }
+    }
+
+    /**
+     * Returns the node owning a key, the first node at or after the key's point on the ring
+     * @param key String key
+     * @return int node index
+     */
+    public int owner(String key) {
+        return nodes[firstAtOrAfter(hash(key))];
+    }
+
+    /**
+     * Returns the node holding the replica of a key, the next node on the ring after the owner
+     * @param key String key
+     * @return int node index, or -1 if there is only one node
+     */
+    public int follower(String key) {
+        int i = firstAtOrAfter(hash(key));
+        int owner = nodes[i];
+        for (int step = 1; step < nodes.length; step++) {
+            int node = nodes[(i + step) % nodes.length];
+            if (node != owner)
+                return node;
+        }
+        return -1;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    private int firstAtOrAfter(long point) {
+        int i = Arrays.binarySearch(points, point);
+        if (i < 0)
+            i = -i - 1;
+        return i == points.length ? 0 : i;
+    }
+
+    /**
+     * 64 bit FNV-1a with a final mix, so keys differing in one character land far apart
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ccd53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,106 @@
+package metrics;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in an HdrHistogram kept to three significant digits, which grows to hold any latency from a
+ * nanosecond to hours. Recording is wait free and may be done from any number of threads at once; each read
+ * first takes in what was recorded since the last one, so it may miss the values being recorded meanwhile
+ */
+public class LatencyHistogram {
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+    // everything recorded up to the last read, and the interval histogram handed back to the recorder, both
+    // guarded by this
+    private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+    private Histogram interval;
+    // exact, where the histogram only keeps each value to within its precision
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records one latency
+     * @param nanos long latency in nanoseconds, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        recorder.recordValue(value);
+        sum.add(value);
+    }
+
+    /**
+     * Records a latency measured by a client that waits for each response before sending its next request,
+     * correcting for coordinated omission: a response that took longer than the interval requests should have
+     * been sent at held back the requests that would have been sent meanwhile, so those are recorded too, each
+     * with the latency it would have seen
+     * @param nanos long latency in nanoseconds
+     * @param expectedIntervalNanos long interval the client meant to send requests at, 0 for no correction
+     */
+    public void recordCorrected(long nanos, long expectedIntervalNanos) {
+        long value = Math.max(0, nanos);
+        long interval = Math.max(0, expectedIntervalNanos);
+        recorder.recordValueWithExpectedInterval(value, interval);
+        sum.add(value);
+        if (interval == 0)
+            return;
+        for (long missed = value - interval; missed >= interval; missed -= interval) {
+            sum.add(missed);
+        }
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one
+     * @param other LatencyHistogram to add
+     */
+    public void add(LatencyHistogram other) {
+        Histogram theirs;
+        synchronized (other) {
+            theirs = other.update().copy();
+        }
+        synchronized (this) {
+            update().add(theirs);
+        }
+        sum.add(other.getSum());
+    }
+
+    public synchronized long getCount() {
+        return update().getTotalCount();
+    }
+
+    public synchronized long getMax() {
+        return update().getMaxValue();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Mean of the recorded values
+     * @return double mean in nanoseconds, 0 if nothing was recorded
+     */
+    public synchronized double getMean() {
+        return update().getMean();
+    }
+
+    /**
+     * The value at a percentile, e.g. 99.9, as the highest value the histogram cannot tell apart from it, so
+     * the true percentile is never reported lower than it was
+     * @param percentile double percentile from 0 to 100
+     * @return long value in nanoseconds, 0 if nothing was recorded
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        return update().getValueAtPercentile(Math.min(100, Math.max(0, percentile)));
+    }
+
+    /**
+     * Moves what was recorded since the last read into the total, holding this histogram's lock
+     * @return Histogram total
+     */
+    private Histogram update() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total;
+    }
+}
@@ -0,0 +1,264 @@
+package benchmark;
+import controller.ServerConnection;
+import controller.ServerController;
+import metrics.LatencyHistogram;
+import model.SessionScheduler;
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load test for a running server, or one started in this JVM with --embedded. Every virtual user has
+ * a connection of its own and sends a random mix of requests over it through ServerConnection, the same client
+ * the JavaFX Controller uses.
+ * In the closed loop model each user sends its next request once the last one is answered and the think time
+ * has passed. In the open loop model requests are due at a fixed total rate whatever the server does, and a
+ * user that falls behind sends late. Latencies are measured from when a request was due, not from when it
+ * could be sent, so a slow server is not flattered by the requests it held back (coordinated omission). In the
+ * closed loop model nothing says when a request was due, so latencies are only corrected given the --interval
+ * in milliseconds each user was expected to send at, and are printed uncorrected otherwise.
+ * Results are printed per command as CSV, latencies in milliseconds.
+ * Usage: LoadGenerator [--host=localhost] [--port=1234] [--embedded=NIO|BLOCKING] [--users=1000]
+ *        [--model=closed|open] [--rate=10000] [--think=0] [--interval=0] [--duration=30] [--warmup=5]
+ *        [--mix=ADD:45,REMOVE:40,DISPLAY:14,EARLY_LECTURES:1] [--rooms=500] [--classes=200] [--binary=false]
+ */
+public class LoadGenerator {
+    /**
+     * The kinds of request a virtual user sends
+     */
+    enum Command { ADD, REMOVE, DISPLAY, DISPLAY_ALL, EARLY_LECTURES }
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private final int users;
+    private final boolean open;
+    private final double rate;
+    private final long thinkNanos;
+    private final long expectedIntervalNanos;
+    private final int rooms;
+    private final int classes;
+    private final Command[] weighted;
+    private final Map<Command, Stats> stats = new EnumMap<>(Command.class);
+
+    private LoadGenerator(Map<String, String> options, int port) {
+        this.host = options.get("host");
+        this.port = port;
+        this.binary = Boolean.parseBoolean(options.get("binary"));
+        this.users = Integer.parseInt(options.get("users"));
+        this.open = options.get("model").equalsIgnoreCase("open");
+        if (!open && !options.get("model").equalsIgnoreCase("closed"))
+            throw new IllegalArgumentException("The model is either closed or open");
+        this.rate = Double.parseDouble(options.get("rate"));
+        this.thinkNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.get("think")));
+        this.expectedIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.get("interval")));
+        this.rooms = Integer.parseInt(options.get("rooms"));
+        this.classes = Integer.parseInt(options.get("classes"));
+        this.weighted = weights(options.get("mix"));
+        for (Command command : Command.values()) {
+            stats.put(command, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("host", "localhost");
+        options.put("port", "1234");
+        options.put("embedded", "");
+        options.put("users", "1000");
+        options.put("model", "closed");
+        options.put("rate", "10000");
+        options.put("think", "0");
+        options.put("interval", "0");
+        options.put("duration", "30");
+        options.put("warmup", "5");
+        options.put("mix", "ADD:45,REMOVE:40,DISPLAY:14,EARLY_LECTURES:1");
+        options.put("rooms", "500");
+        options.put("classes", "200");
+        options.put("binary", "false");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0 || !options.containsKey(arg.substring(2, equals)))
+                throw new IllegalArgumentException("Unknown option " + arg);
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+
+        ServerController server = null;
+        int port = Integer.parseInt(options.get("port"));
+        if (!options.get("embedded").isEmpty()) {
+            server = new ServerController(0, new SessionScheduler(),
+                    ServerController.Mode.valueOf(options.get("embedded").toUpperCase()));
+            Thread thread = new Thread(server::start, "embedded-server");
+            thread.setDaemon(true);
+            thread.start();
+            port = server.getPort();
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(options, port);
+            generator.run(TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup"))),
+                    TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration"))));
+        } finally {
+            if (server != null)
+                server.stop();
+        }
+    }
+
+    /**
+     * Runs every virtual user for the warmup and then the measured duration and prints the results
+     */
+    private void run(long warmupNanos, long durationNanos) throws InterruptedException {
+        ExecutorService executor = ServerController.newVirtualThreadExecutor();
+        if (executor == null)
+            executor = Executors.newCachedThreadPool();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        for (int user = 0; user < users; user++) {
+            int id = user;
+            executor.execute(() -> user(id, start, measureFrom, end));
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(durationNanos + warmupNanos + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS))
+            System.out.println("Some virtual users did not finish");
+
+        double seconds = durationNanos / 1e9;
+        if (!open && expectedIntervalNanos == 0)
+            System.err.println("Closed loop without --interval: latencies are NOT corrected for coordinated omission");
+        System.out.println("command,requests,ok,rejected,failed,requests_per_second,p50_ms,p99_ms,p999_ms,max_ms,"
+                + "uncorrected_p99_ms");
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram allUncorrected = new LatencyHistogram();
+        long[] totals = new long[4];
+        for (Map.Entry<Command, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            if (s.latency.getCount() == 0)
+                continue;
+            print(entry.getKey().toString(), s.requests.get(), s.ok.get(), s.rejected.get(), s.failed.get(), seconds,
+                    s.latency, s.uncorrected);
+            all.add(s.latency);
+            allUncorrected.add(s.uncorrected);
+            totals[0] += s.requests.get();
+            totals[1] += s.ok.get();
+            totals[2] += s.rejected.get();
+            totals[3] += s.failed.get();
+        }
+        print("ALL", totals[0], totals[1], totals[2], totals[3], seconds, all, allUncorrected);
+    }
+
+    private static void print(String name, long requests, long ok, long rejected, long failed, double seconds,
+                              LatencyHistogram latency, LatencyHistogram uncorrected) {
+        System.out.println(name + "," + requests + "," + ok + "," + rejected + "," + failed + ","
+                + (long) (requests / seconds) + "," + millis(latency.getValueAtPercentile(50)) + ","
+                + millis(latency.getValueAtPercentile(99)) + "," + millis(latency.getValueAtPercentile(99.9)) + ","
+                + millis(latency.getMax()) + "," + millis(uncorrected.getValueAtPercentile(99)));
+    }
+
+    private static String millis(long nanos) {
+        // the CSV needs a decimal point whatever the default locale
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * One virtual user, sending requests from start until end and recording those due after measureFrom
+     */
+    private void user(int id, long start, long measureFrom, long end) {
+        Random random = new Random(id);
+        // in the open loop every user takes an equal share of the rate, their first requests spread out evenly
+        long interval = open ? (long) (users * 1e9 / rate) : thinkNanos;
+        long due = open ? start + (long) (id * 1e9 / rate) : start;
+        try (ServerConnection connection = new ServerConnection(host, port, binary)) {
+            while (due < end) {
+                long now = System.nanoTime();
+                if (due > now)
+                    LockSupport.parkNanos(due - now);
+                Command command = weighted[random.nextInt(weighted.length)];
+                String request = request(command, random);
+                long sent = System.nanoTime();
+                String response;
+                try {
+                    response = connection.send(request);
+                } catch (IOException e) {
+                    response = null;
+                }
+                long answered = System.nanoTime();
+                if (due >= measureFrom) {
+                    Stats s = stats.get(command);
+                    s.requests.incrementAndGet();
+                    if (response == null)
+                        s.failed.incrementAndGet();
+                    else if (response.startsWith("ERROR"))
+                        s.rejected.incrementAndGet();
+                    else
+                        s.ok.incrementAndGet();
+                    s.uncorrected.record(answered - sent);
+                    if (open)
+                        s.latency.record(answered - due);
+                    else
+                        s.latency.recordCorrected(answered - sent, expectedIntervalNanos);
+                }
+                due = open ? due + interval : answered + interval;
+            }
+        }
+    }
+
+    private String request(Command command, Random random) {
+        int hour = 9 + random.nextInt(9);
+        String slot = DayOfWeek.of(1 + random.nextInt(5)) + " " + String.format(Locale.ROOT, "%02d:00 %02d:00", hour, hour + 1)
+                + " R" + random.nextInt(rooms);
+        String className = "C" + random.nextInt(classes);
+        switch (command) {
+            case ADD:
+                return "ADD " + slot + " " + className + " LOAD";
+            case REMOVE:
+                return "REMOVE " + slot;
+            case DISPLAY:
+                return "DISPLAY " + className;
+            case DISPLAY_ALL:
+                return "DISPLAY ALL";
+            default:
+                return "EARLY_LECTURES " + className;
+        }
+    }
+
+    /**
+     * Expands a mix such as 'ADD:45,REMOVE:40' into a table with each command in it as often as its weight
+     */
+    private static Command[] weights(String mix) {
+        List<Command> table = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            if (parts.length != 2)
+                throw new IllegalArgumentException("A mix is a list of COMMAND:weight, not " + entry);
+            Command command = Command.valueOf(parts[0].trim().toUpperCase());
+            for (int i = Integer.parseInt(parts[1].trim()); i > 0; i--) {
+                table.add(command);
+            }
+        }
+        if (table.isEmpty())
+            throw new IllegalArgumentException("The mix has no commands in it");
+        return table.toArray(new Command[0]);
+    }
+
+    /**
+     * Counts and latencies of one command, shared by every virtual user
+     */
+    private static final class Stats {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong ok = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram uncorrected = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,312 @@
+package model;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+public class MappedSessionStore extends PackedSessionStore {
+    private static final int MAGIC = 0x53455353;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 128;
+    private static final int TEXT_OFFSET = 8;
+    private static final int MAX_TEXT_LENGTH = RECORD_SIZE - TEXT_OFFSET;
+    private static final int INITIAL_CAPACITY = 256;
+    // a single mapping cannot reach past 2GB
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+
+    private final DayOfWeek day;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer map;
+    private int capacity;
+
+    // rows changed since the last force(), and whether the file has grown since, guarded by dirtyLock
+    private final Object dirtyLock = new Object();
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+    private boolean resized = false;
+    // one force() at a time, so a caller finding nothing dirty knows the force that took its rows has finished
+    private final Object forceLock = new Object();
+
+    // rows deleted while a stream may still be sending their text, reused once no stream is open
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private int[] retired = new int[16];
+    private int retiredCount = 0;
+
+    /**
+     * Constructor for the MappedSessionStore class. Opens the day's record file, creating it if needed, maps
+     * it and rebuilds the in-memory indexes from the records already in it
+     * @param day DayOfWeek every Session in the store is on
+     * @param file Path of the day's record file
+     * @param rooms SymbolTable room names, shared by the stores of every day
+     * @param classes SymbolTable class names, shared by the stores of every day
+     * @param descriptions SymbolTable descriptions, shared by the stores of every day
+     * @throws IOException if the file cannot be opened or was not written by a MappedSessionStore
+     */
+    public MappedSessionStore(DayOfWeek day, Path file, SymbolTable rooms, SymbolTable classes,
+                              SymbolTable descriptions) throws IOException {
+        super(day, rooms, classes, descriptions);
+        this.day = day;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long fileSize = channel.size();
+            if (fileSize == 0) {
+                capacity = INITIAL_CAPACITY;
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+                map.putInt(0, MAGIC).putInt(4, FORMAT).putInt(8, RECORD_SIZE).putInt(12, day.ordinal());
+                map.force();
+            } else {
+                if (fileSize < HEADER_SIZE + RECORD_SIZE)
+                    throw new IOException("Not a " + day + " session file: " + file);
+                capacity = (int) Math.min((fileSize - HEADER_SIZE) / RECORD_SIZE, MAX_CAPACITY);
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+                if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT || map.getInt(8) != RECORD_SIZE
+                        || map.getInt(12) != day.ordinal())
+                    throw new IOException("Not a " + day + " session file: " + file);
+                load();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Store factory for a SessionScheduler, one record file per day in a directory, sharing one set of symbol
+     * tables. Files left by an earlier run are remapped, so the schedule is back as soon as they are scanned
+     * @param directory Path directory holding the record files, created if needed
+     * @return Function from day to its store
+     */
+    public static Function<DayOfWeek, SessionStore> perDay(Path directory) {
+        SymbolTable rooms = new SymbolTable();
+        SymbolTable classes = new SymbolTable();
+        SymbolTable descriptions = new SymbolTable();
+        return day -> {
+            try {
+                Files.createDirectories(directory);
+                return new MappedSessionStore(day, directory.resolve(day + ".sessions"), rooms, classes,
+                        descriptions);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Records are fixed width and a stored Session is read back by splitting its text on spaces, so the
+     * formatted Session must fit a record and its names must not contain spaces
+     */
+    @Override
+    public boolean supports(Session s) {
+        return super.supports(s) && s.getDay() == day && isName(s.getRoom()) && isName(s.getClassName())
+                && isName(s.getDescription()) && text(s).length <= MAX_TEXT_LENGTH;
+    }
+
+    @Override
+    public void insert(Session s) {
+        if (retiredCount > 0 && openStreams.get() == 0) {
+            for (int i = 0; i < retiredCount; i++) {
+                freeRow(retired[i]);
+            }
+            retiredCount = 0;
+        }
+        super.insert(s);
+    }
+
+    /**
+     * Writes the Session into the record of its row. The record is only marked used once it is complete
+     */
+    @Override
+    protected void stored(int row, Session s) {
+        if (row >= capacity)
+            grow(row + 1);
+        byte[] text = text(s);
+        int offset = offset(row);
+        map.putShort(offset + 2, (short) minutes(s.getStartTime()));
+        map.putShort(offset + 4, (short) minutes(s.getEndTime()));
+        map.putShort(offset + 6, (short) text.length);
+        map.put(offset + TEXT_OFFSET, text);
+        map.put(offset, USED);
+        dirty(row);
+    }
+
+    /**
+     * Marks the row's record free. Its text is left as it was, an open stream may still be sending it
+     */
+    @Override
+    protected void released(int row) {
+        map.put(offset(row), FREE);
+        dirty(row);
+        if (openStreams.get() == 0) {
+            freeRow(row);
+            return;
+        }
+        if (retiredCount == retired.length)
+            retired = Arrays.copyOf(retired, retiredCount * 2);
+        retired[retiredCount++] = row;
+    }
+
+    /**
+     * Adds a read-only view of every record's text, in start time order, straight over the mapped file. Rows
+     * deleted from now on keep their records until the returned Runnable has run
+     */
+    @Override
+    public Runnable stream(List<ByteBuffer> into) {
+        openStreams.incrementAndGet();
+        ByteBuffer records = map.asReadOnlyBuffer();
+        for (int i = 0; i < size(); i++) {
+            int offset = offset(rowAt(i));
+            int length = records.getShort(offset + 6);
+            into.add(records.slice(offset + TEXT_OFFSET, length));
+        }
+        return openStreams::decrementAndGet;
+    }
+
+    /**
+     * Forces the records changed since the last call out to the file, so a change is on disk before the client
+     * is told it succeeded. Concurrent callers queue behind each other, and each force takes every row changed
+     * up to its start, so the changes of many requests share one write
+     */
+    @Override
+    public void force() throws IOException {
+        synchronized (forceLock) {
+            MappedByteBuffer records;
+            int from;
+            int to;
+            boolean grown;
+            synchronized (dirtyLock) {
+                if (dirtyTo < 0 && !resized)
+                    return;
+                records = map;
+                from = dirtyFrom;
+                to = dirtyTo;
+                grown = resized;
+                dirtyFrom = Integer.MAX_VALUE;
+                dirtyTo = -1;
+                resized = false;
+            }
+            // the new length of a grown file is metadata, which syncing the mapped pages does not write
+            if (grown)
+                channel.force(true);
+            if (to >= 0)
+                records.force(offset(from), offset(to) + RECORD_SIZE - offset(from));
+        }
+    }
+
+    /**
+     * Writes the mapped records out to the file and closes it
+     */
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    /**
+     * Rebuilds the indexes from the records of an earlier run. Each record goes back into the row it came from,
+     * so the records and rows stay the same from one run to the next
+     */
+    private void load() {
+        boolean[] used = new boolean[capacity];
+        for (int row = 0; row < capacity; row++) {
+            int offset = offset(row);
+            if (map.get(offset) != USED)
+                continue;
+            Session session = read(offset);
+            // a record torn by a crash before it was forced was never acknowledged, so it is dropped
+            if (session == null)
+                continue;
+            restore(row, session);
+            used[row] = true;
+        }
+        for (int row = 0; row < rowCount(); row++) {
+            if (!used[row])
+                freeRow(row);
+        }
+    }
+
+    /**
+     * Reads back a used record
+     * @return Session, or null if the record is not a complete one
+     */
+    private Session read(int offset) {
+        int start = map.getShort(offset + 2);
+        int end = map.getShort(offset + 4);
+        int length = map.getShort(offset + 6);
+        if (start < 0 || start >= end || end >= 24 * 60 || length < 0 || length > MAX_TEXT_LENGTH)
+            return null;
+        byte[] text = new byte[length];
+        map.get(offset + TEXT_OFFSET, text);
+        Session session;
+        try {
+            String[] parts = new String(text, StandardCharsets.UTF_8).split(" ");
+            if (parts.length != 6)
+                return null;
+            session = new Session(day, time(start), time(end), parts[3], parts[4], parts[5]);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return Arrays.equals(text(session), text) ? session : null;
+    }
+
+    private void dirty(int row) {
+        synchronized (dirtyLock) {
+            dirtyFrom = Math.min(dirtyFrom, row);
+            dirtyTo = Math.max(dirtyTo, row);
+        }
+    }
+
+    /**
+     * Extends the file and maps it again. Buffers sliced from the old mapping stay valid, they see the same file
+     */
+    private void grow(int needed) {
+        if (needed > MAX_CAPACITY)
+            throw new IllegalStateException("The " + day + " session file is full");
+        int grown = capacity;
+        while (grown < needed) {
+            grown = (int) Math.min((long) grown * 2, MAX_CAPACITY);
+        }
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) grown * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot grow " + day + " session file", e);
+        }
+        capacity = grown;
+        synchronized (dirtyLock) {
+            resized = true;
+        }
+    }
+
+    private static int offset(int row) {
+        return HEADER_SIZE + row * RECORD_SIZE;
+    }
+
+    private static byte[] text(Session s) {
+        return s.format().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean isName(String name) {
+        return !name.isEmpty() && name.indexOf(' ') < 0;
+    }
+
+    private static int minutes(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    private static LocalTime time(int minutes) {
+        return LocalTime.of(minutes / 60, minutes % 60);
+    }
+}
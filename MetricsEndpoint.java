@@ -0,0 +1,61 @@
+package metrics;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the ServerMetrics as plain text for a scraper such as Prometheus, at '/metrics' on a port of the loopback
+ * address, so only the machine the server runs on can read them. Requests are answered on a single thread of
+ * their own, away from the threads handling clients
+ */
+public class MetricsEndpoint implements AutoCloseable {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    /**
+     * Constructor for the MetricsEndpoint class, which starts serving straight away
+     * @param port int local port to listen on, 0 for any free port
+     * @param metrics ServerMetrics to serve
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsEndpoint(int port, ServerMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                StringBuilder text = new StringBuilder(16 * 1024);
+                metrics.writeText(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Returns the port the endpoint is listening on
+     * @return int local port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving, without waiting for a scrape in progress
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
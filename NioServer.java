@@ -0,0 +1,749 @@
+package controller;
+import logging.AsyncLogger;
+import metrics.ServerMetrics;
+import model.SchedulerRegistry;
+import model.ScheduleStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int MAX_PENDING_REQUESTS = 1024;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final int MAX_GATHER = 1024;
+    // queued in place of the handshake line, so only a first line switches the connection to binary frames
+    private static final Object SWITCH_TO_BINARY = new Object();
+
+    private final ServerSocketChannel serverChannel;
+    private final SchedulerRegistry registry;
+    private final ClusterRouter cluster;
+    private final IoLoop[] ioLoops;
+    private final ThreadPoolExecutor workers;
+    private final int idleTimeoutMillis;
+    // opened by start() and closed by stop() from another thread
+    private volatile Selector acceptSelector;
+    private volatile boolean running = true;
+    private int nextLoop = 0;
+
+    /**
+     * Constructor for the NioServer class
+     * @param serverChannel ServerSocketChannel already bound to the server port
+     * @param registry SchedulerRegistry holding every tenant's scheduler
+     * @param cluster ClusterRouter when the server is a cluster node, or null
+     * @param ioThreads int number of selector threads doing the reading, framing and writing
+     * @param workerThreads int number of worker threads running the SessionController
+     * @param queueCapacity int number of complete requests allowed to wait for a worker
+     * @param idleTimeoutMillis int milliseconds a connection may stay silent before it is closed, 0 for no limit
+     */
+    public NioServer(ServerSocketChannel serverChannel, SchedulerRegistry registry, ClusterRouter cluster,
+                     int ioThreads, int workerThreads, int queueCapacity, int idleTimeoutMillis) {
+        this.serverChannel = serverChannel;
+        this.registry = registry;
+        this.cluster = cluster;
+        this.ioLoops = new IoLoop[ioThreads];
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), namedThreads("scheduler-worker"));
+    }
+
+    /**
+     * Starts the selector threads and runs the accept loop on the calling thread until stop() is called
+     */
+    public void start() {
+        try {
+            acceptSelector = Selector.open();
+            for (int i = 0; i < ioLoops.length; i++) {
+                ioLoops[i] = new IoLoop(Selector.open());
+                Thread thread = new Thread(ioLoops[i], "nio-io-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to start NIO server", e);
+        }
+
+        while (running) {
+            try {
+                acceptSelector.select();
+                if (!running)
+                    break;
+                acceptSelector.selectedKeys().clear();
+                SocketChannel client;
+                while ((client = serverChannel.accept()) != null) {
+                    client.configureBlocking(false);
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    ioLoops[nextLoop].register(client);
+                    nextLoop = (nextLoop + 1) % ioLoops.length;
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                AsyncLogger.get().warn("Error accepting client connection", "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes every selector and shuts down the worker pool
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (acceptSelector != null)
+                acceptSelector.close();
+        } catch (IOException e) {
+            AsyncLogger.get().warn("Error closing accept selector", "error", e.getMessage());
+        }
+        for (IoLoop loop : ioLoops) {
+            if (loop != null)
+                loop.close();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Address the server is listening on, useful when it was bound to an ephemeral port
+     * @return InetSocketAddress local address
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private static InetAddress remoteAddress(SocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        return new ThreadFactory() {
+            private int count = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + "-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * A selector thread owning a share of the connections. Only this thread touches the channels and keys,
+     * workers hand their responses back through the pending queue
+     */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        void wakeForWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void close() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                AsyncLogger.get().warn("Error closing selector", "error", e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            long sweepInterval = idleTimeoutMillis > 0 ? Math.max(100, idleTimeoutMillis / 4) : 0;
+            long nextSweep = System.currentTimeMillis() + sweepInterval;
+            while (running) {
+                try {
+                    selector.select(sweepInterval);
+                    if (sweepInterval > 0 && System.currentTimeMillis() >= nextSweep) {
+                        closeIdle();
+                        nextSweep = System.currentTimeMillis() + sweepInterval;
+                    }
+                    registerPending();
+                    flushPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                connection.read();
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    return;
+                } catch (IOException e) {
+                    AsyncLogger.get().error("Selector error", "error", e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = registrations.poll()) != null) {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+        }
+
+        private void closeIdle() {
+            long deadline = System.currentTimeMillis() - idleTimeoutMillis;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdleSince(deadline))
+                    connection.close();
+            }
+        }
+
+        private void flushPending() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                try {
+                    connection.write();
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection state: the partial line or binary frame being framed, the complete requests waiting for a
+     * worker and the encoded responses waiting for the socket. Requests of one connection are handled one at a
+     * time and in order
+     */
+    private class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final SessionController sessionController;
+        private SelectionKey key;
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        private final Queue<Object> requests = new ArrayDeque<>();
+        // response buffers, the Runnables releasing streamed buffers once everything before them is written and
+        // the Iterators of exports, whose lines are only encoded, by a worker, once they reach the head
+        private final Deque<Object> responses = new ArrayDeque<>();
+        // its changes are encoded a batch at a time by a worker, once everything before them is written, as
+        // sending the Sessions afresh reads the schedule and may wait for a day's lock
+        private ScheduleSubscription subscription;
+        // set whenever the subscription has changes to send, cleared as a worker starts encoding them
+        private volatile boolean changesPending = false;
+        private boolean encoding = false;
+        // set while a worker encodes the next lines of the export at the head of the responses
+        private boolean exporting = false;
+        private boolean dispatching = false;
+        private boolean closeAfterWrite = false;
+        private boolean readPaused = false;
+        private boolean firstLine = true;
+        private boolean closed = false;
+        private volatile boolean binary = false;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        Connection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.sessionController = new SessionController(registry, cluster, remoteAddress(channel));
+            ServerMetrics.get().connectionOpened();
+        }
+
+        /**
+         * Reads what is available and frames it into newline terminated requests
+         */
+        void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int count = channel.read(buffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            buffer.flip();
+            if (binary) {
+                readFrames(buffer);
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String request = new String(line, 0, end, CHARSET);
+                    lineLength = 0;
+                    if (firstLine && BinaryProtocol.isHandshake(request)) {
+                        binary = true;
+                        if (submit(SWITCH_TO_BINARY))
+                            readFrames(buffer);
+                        return;
+                    }
+                    firstLine = false;
+                    if (ConnectionHandler.isQuit(request)) {
+                        // anything the client sent after QUIT is ignored
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        synchronized (this) {
+                            closeAfterWrite = true;
+                        }
+                        submit(request);
+                        return;
+                    }
+                    if (!submit(request))
+                        return;
+                    continue;
+                }
+                if (lineLength == line.length) {
+                    if (line.length >= MAX_LINE_LENGTH) {
+                        close();
+                        return;
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                }
+                line[lineLength++] = b;
+            }
+        }
+
+        /**
+         * Frames what is left in the buffer into length prefixed requests, once the connection is binary
+         */
+        private void readFrames(ByteBuffer buffer) {
+            int available = buffer.remaining();
+            if (lineLength + available > line.length)
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + available));
+            buffer.get(line, lineLength, available);
+            lineLength += available;
+
+            int offset = 0;
+            while (lineLength - offset >= 4) {
+                int length = ByteBuffer.wrap(line, offset, 4).getInt();
+                if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    close();
+                    return;
+                }
+                if (lineLength - offset - 4 < length)
+                    break;
+                ByteBuffer request = ByteBuffer.wrap(Arrays.copyOfRange(line, offset + 4, offset + 4 + length));
+                offset += 4 + length;
+                if (BinaryProtocol.isQuit(request)) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    synchronized (this) {
+                        closeAfterWrite = true;
+                    }
+                    submit(request);
+                    return;
+                }
+                if (!submit(request))
+                    return;
+            }
+            System.arraycopy(line, offset, line, 0, lineLength - offset);
+            lineLength -= offset;
+        }
+
+        /**
+         * Queues a request behind the ones already waiting for this connection. A client pipelining faster than
+         * its requests are handled stops being read until the backlog has halved
+         * @param request String request line, ByteBuffer request frame or SWITCH_TO_BINARY
+         * @return false if the server was too busy and the connection is being closed
+         */
+        private boolean submit(Object request) {
+            synchronized (this) {
+                requests.add(request);
+                ServerMetrics.get().queued(1);
+                if (requests.size() >= MAX_PENDING_REQUESTS && !readPaused) {
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                if (dispatching)
+                    return true;
+                dispatching = true;
+            }
+            try {
+                workers.execute(this::dispatch);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // answer everything still queued so the client is not left waiting, then hang up
+                int dropped;
+                synchronized (this) {
+                    dropped = requests.size();
+                    requests.clear();
+                    ServerMetrics.get().queued(-dropped);
+                    dispatching = false;
+                    closeAfterWrite = true;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                for (int i = 0; i < dropped; i++) {
+                    respond(encode("ERROR Server busy, try again later"));
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Runs on a worker thread, handles every queued request of this connection in order. Responses to
+         * pipelined requests are gathered into batches so each batch costs one buffer and one socket write
+         */
+        private void dispatch() {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            boolean drained = false;
+            try {
+                while (true) {
+                    Object request;
+                    synchronized (this) {
+                        request = requests.poll();
+                        if (request == null) {
+                            dispatching = false;
+                            drained = true;
+                            break;
+                        }
+                    }
+                    ServerMetrics.get().queued(-1);
+                    byte[] response;
+                    try {
+                        response = handle(request, batch);
+                    } catch (RuntimeException e) {
+                        // one failed request must not take the rest of the connection's requests with it
+                        AsyncLogger.get().error("Request failed", "error", e.toString());
+                        response = encode("ERROR The request could not be handled");
+                    }
+                    if (response == null)
+                        continue;
+                    batch.write(response, 0, response.length);
+                    if (batch.size() >= MAX_BATCH_BYTES) {
+                        respond(batch.toByteArray());
+                        batch.reset();
+                    }
+                }
+            } finally {
+                // once drained another worker may already be dispatching, so only an abandoned dispatch resets it
+                if (!drained) {
+                    synchronized (this) {
+                        dispatching = false;
+                    }
+                }
+                if (batch.size() > 0)
+                    respond(batch.toByteArray());
+                // lets the selector thread close the connection once the last response is out
+                loop.wakeForWrite(this);
+            }
+        }
+
+        /**
+         * Handles one request on the worker thread
+         * @return byte[] encoded response to batch, or null if the request was answered some other way or not
+         *         at all
+         */
+        private byte[] handle(Object request, ByteArrayOutputStream batch) {
+            if (request == SWITCH_TO_BINARY)
+                return (BinaryProtocol.HANDSHAKE + "\n").getBytes(CHARSET);
+            if (request instanceof ByteBuffer)
+                return BinaryProtocol.process(sessionController, (ByteBuffer) request);
+            String line = (String) request;
+            if (streamed(line, batch) || exported(line, batch))
+                return null;
+            String text = ConnectionHandler.isQuit(line) ? ConnectionHandler.quitResponse(line)
+                    : ConnectionHandler.process(sessionController, line);
+            // rows of an import are not answered one by one
+            if (text == null)
+                return null;
+            byte[] response = encode(text);
+            ScheduleSubscription subscribed = sessionController.takeNewSubscription();
+            if (subscribed == null)
+                return response;
+            // the changes follow the response, and everything batched before it. Changes of the subscription
+            // replaced, still being encoded, are dropped from here on
+            synchronized (this) {
+                subscription = subscribed;
+            }
+            batch.write(response, 0, response.length);
+            respond(batch.toByteArray());
+            batch.reset();
+            subscribed.start(() -> {
+                changesPending = true;
+                loop.wakeForWrite(this);
+            });
+            return null;
+        }
+
+        /**
+         * Answers a 'DISPLAY ALL' on a text connection by queueing the schedule's own buffers, after whatever
+         * is already batched, instead of encoding the schedule
+         * @return true if the request was answered
+         */
+        private boolean streamed(String request, ByteArrayOutputStream batch) {
+            String prefix = ConnectionHandler.displayAllPrefix(request);
+            ScheduleStream stream = prefix == null ? null : sessionController.streamDisplayAll();
+            if (stream == null)
+                return false;
+            byte[] encoded = prefix.getBytes(CHARSET);
+            batch.write(encoded, 0, encoded.length);
+            synchronized (this) {
+                if (!channel.isOpen()) {
+                    stream.close();
+                    return true;
+                }
+                responses.add(ByteBuffer.wrap(batch.toByteArray()));
+                responses.addAll(stream.getBuffers());
+                responses.add(ByteBuffer.wrap(new byte[] {'\n'}));
+                responses.add((Runnable) stream::close);
+            }
+            batch.reset();
+            loop.wakeForWrite(this);
+            return true;
+        }
+
+        /**
+         * Answers an 'EXPORT' by queueing its rows, after whatever is already batched. A worker encodes them a
+         * batch at a time as the socket takes them, so a connection never holds more than one batch of an
+         * export however large the schedule is
+         * @return true if the request was answered
+         */
+        private boolean exported(String request, ByteArrayOutputStream batch) {
+            Iterator<String> export = ConnectionHandler.export(sessionController, request);
+            if (export == null)
+                return false;
+            synchronized (this) {
+                if (batch.size() > 0)
+                    responses.add(ByteBuffer.wrap(batch.toByteArray()));
+                responses.add(export);
+            }
+            batch.reset();
+            loop.wakeForWrite(this);
+            return true;
+        }
+
+        /**
+         * Runs on a worker thread, encodes the next lines of an export, up to one batch, and queues them ahead of
+         * it. The rows are read from the schedule as they are needed, which may wait for a day's lock. An export
+         * that fails part way hangs up, as the client could not tell its rows were cut short
+         * @param lines Iterator of the export at the head of the responses
+         */
+        private void encodeExport(Iterator<?> lines) {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            boolean ended = true;
+            boolean failed = false;
+            try {
+                while (chunk.size() < MAX_BATCH_BYTES && lines.hasNext()) {
+                    byte[] line = encode((String) lines.next());
+                    chunk.write(line, 0, line.length);
+                }
+                ended = !lines.hasNext();
+            } catch (RuntimeException e) {
+                AsyncLogger.get().error("Export failed", "error", e.toString());
+                failed = true;
+            } finally {
+                synchronized (this) {
+                    exporting = false;
+                    if (failed) {
+                        close();
+                    } else if (!closed && responses.peek() == lines) {
+                        if (ended)
+                            responses.poll();
+                        if (chunk.size() > 0)
+                            responses.addFirst(ByteBuffer.wrap(chunk.toByteArray()));
+                    }
+                }
+                loop.wakeForWrite(this);
+            }
+        }
+
+        /**
+         * Runs on a worker thread, encodes the subscription's next changes, up to one batch, and queues them.
+         * The selector thread asks for the next batch once this one is written, so a subscriber that reads
+         * slowly holds at most one batch here while the subscription coalesces the rest
+         * @param current ScheduleSubscription whose changes are encoded
+         */
+        private void encodeChanges(ScheduleSubscription current) {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            boolean more = false;
+            try {
+                String line;
+                while ((line = current.nextLine()) != null) {
+                    byte[] encoded = encode(line);
+                    chunk.write(encoded, 0, encoded.length);
+                    if (chunk.size() >= MAX_BATCH_BYTES) {
+                        more = true;
+                        break;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    encoding = false;
+                    if (more)
+                        changesPending = true;
+                    if (chunk.size() > 0 && !closed && current == subscription && !current.isCancelled())
+                        responses.add(ByteBuffer.wrap(chunk.toByteArray()));
+                }
+                loop.wakeForWrite(this);
+            }
+        }
+
+        /**
+         * Encodes a response line the way this connection speaks, a text line or a binary TEXT frame
+         */
+        private byte[] encode(String response) {
+            if (binary)
+                return BinaryProtocol.text(response);
+            return (response + "\n").getBytes(CHARSET);
+        }
+
+        private void respond(byte[] bytes) {
+            ByteBuffer encoded = ByteBuffer.wrap(bytes);
+            synchronized (this) {
+                responses.add(encoded);
+            }
+            loop.wakeForWrite(this);
+        }
+
+        /**
+         * Writes as much of the queued responses as the socket accepts, only called on the selector thread
+         */
+        void write() throws IOException {
+            if (!key.isValid())
+                return;
+            synchronized (this) {
+                Object head;
+                while ((head = responses.peek()) != null) {
+                    if (head instanceof Runnable) {
+                        responses.poll();
+                        ((Runnable) head).run();
+                        continue;
+                    }
+                    if (head instanceof Iterator) {
+                        // everything behind the export waits for the worker encoding its next lines
+                        if (!exporting)
+                            exportNext((Iterator<?>) head);
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    // consecutive buffers go out in one gathering write
+                    ByteBuffer[] gather = loop.gather;
+                    int count = 0;
+                    for (Object response : responses) {
+                        if (count == gather.length || !(response instanceof ByteBuffer))
+                            break;
+                        gather[count++] = (ByteBuffer) response;
+                    }
+                    long start = System.nanoTime();
+                    channel.write(gather, 0, count);
+                    ServerMetrics.get().written(System.nanoTime() - start);
+                    boolean blocked = gather[count - 1].hasRemaining();
+                    Arrays.fill(gather, 0, count, null);
+                    while ((head = responses.peek()) instanceof ByteBuffer && !((ByteBuffer) head).hasRemaining()) {
+                        responses.poll();
+                    }
+                    if (blocked) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (subscription != null && changesPending && !encoding && !closeAfterWrite)
+                    encodeChanges();
+                if (readPaused && !closeAfterWrite && requests.size() < MAX_PENDING_REQUESTS / 2) {
+                    readPaused = false;
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                if (closeAfterWrite && !dispatching && requests.isEmpty())
+                    close();
+            }
+        }
+
+        /**
+         * Has a worker encode the next lines of the export at the head of the responses, holding the lock. A
+         * server too busy to take the task hangs up, as it does on a request
+         */
+        private void exportNext(Iterator<?> lines) {
+            exporting = true;
+            try {
+                workers.execute(() -> encodeExport(lines));
+            } catch (RejectedExecutionException e) {
+                exporting = false;
+                close();
+            }
+        }
+
+        /**
+         * Has a worker encode the subscription's next changes, holding the lock. A server too busy to take the
+         * task hangs up, as it does on a request
+         */
+        private void encodeChanges() {
+            ScheduleSubscription current = subscription;
+            encoding = true;
+            changesPending = false;
+            try {
+                workers.execute(() -> encodeChanges(current));
+            } catch (RejectedExecutionException e) {
+                encoding = false;
+                close();
+            }
+        }
+
+        /**
+         * A connection is idle when nothing was read since the deadline, it owes the client no response and it
+         * is not subscribed to the schedule's changes
+         * @param deadline long time in milliseconds
+         * @return true if the connection can be closed
+         */
+        synchronized boolean isIdleSince(long deadline) {
+            return lastActivity < deadline && !dispatching && requests.isEmpty() && responses.isEmpty()
+                    && (subscription == null || subscription.isCancelled());
+        }
+
+        synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            // requests no worker has taken yet are dropped with the connection
+            ServerMetrics.get().queued(-requests.size());
+            requests.clear();
+            ServerMetrics.get().connectionClosed();
+            // streamed buffers still queued are given back to the stores
+            for (Object response : responses) {
+                if (response instanceof Runnable)
+                    ((Runnable) response).run();
+            }
+            responses.clear();
+            sessionController.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                AsyncLogger.get().warn("Error closing connection", "error", e.getMessage());
+            }
+        }
+    }
+}
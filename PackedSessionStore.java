@@ -0,0 +1,368 @@
+package model;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+public class PackedSessionStore implements SessionStore {
+    private static final LocalTime[] TIMES = new LocalTime[24 * 60];
+
+    static {
+        for (int minute = 0; minute < TIMES.length; minute++) {
+            TIMES[minute] = LocalTime.of(minute / 60, minute % 60);
+        }
+    }
+
+    private final DayOfWeek day;
+    private final SymbolTable rooms;
+    private final SymbolTable classes;
+    private final SymbolTable descriptions;
+
+    // one row per Session, a row freed by a delete is reused by the next insert
+    private short[] start = new short[16];
+    private short[] end = new short[16];
+    private int[] room = new int[16];
+    private int[] className = new int[16];
+    private int[] classKey = new int[16];
+    private int[] description = new int[16];
+    private int[] freeRows = new int[16];
+    private int freeCount = 0;
+    private int rowCount = 0;
+
+    // rows in start time order, and per room and per class key the rows in start time order
+    private int[] order = new int[16];
+    private int size = 0;
+    private int[][] byRoom = new int[16][];
+    private int[] byRoomSize = new int[16];
+    private int[][] byClass = new int[16][];
+    private int[] byClassSize = new int[16];
+
+    /**
+     * Constructor for the PackedSessionStore class
+     * @param day DayOfWeek every Session in the store is on
+     * @param rooms SymbolTable room names, shared by the stores of every day
+     * @param classes SymbolTable class names, shared by the stores of every day
+     * @param descriptions SymbolTable descriptions, shared by the stores of every day
+     */
+    public PackedSessionStore(DayOfWeek day, SymbolTable rooms, SymbolTable classes, SymbolTable descriptions) {
+        this.day = day;
+        this.rooms = rooms;
+        this.classes = classes;
+        this.descriptions = descriptions;
+    }
+
+    /**
+     * Store factory for a SessionScheduler, one store per day sharing one set of symbol tables
+     * @return Function from day to its store
+     */
+    public static Function<DayOfWeek, SessionStore> perDay() {
+        SymbolTable rooms = new SymbolTable();
+        SymbolTable classes = new SymbolTable();
+        SymbolTable descriptions = new SymbolTable();
+        return day -> new PackedSessionStore(day, rooms, classes, descriptions);
+    }
+
+    /**
+     * Times are kept in minutes, so only Sessions starting and ending on a whole minute fit
+     */
+    @Override
+    public boolean supports(Session s) {
+        return s.getStartTime().getSecond() == 0 && s.getStartTime().getNano() == 0
+                && s.getEndTime().getSecond() == 0 && s.getEndTime().getNano() == 0;
+    }
+
+    @Override
+    public boolean holdsSessions() {
+        return false;
+    }
+
+    @Override
+    public boolean clashes(Session s, Session ignore) {
+        int startMinute = minutes(s.getStartTime());
+        int endMinute = minutes(s.getEndTime());
+        int ignored = ignore == null ? -1 : row(ignore);
+        int roomId = rooms.lookup(s.getRoom());
+        if (roomId >= 0 && roomId < byRoom.length
+                && overlaps(byRoom[roomId], byRoomSize[roomId], startMinute, endMinute, ignored))
+            return true;
+        int keyId = classes.lookup(classKey(s.getClassName()));
+        return keyId >= 0 && keyId < byClass.length
+                && overlaps(byClass[keyId], byClassSize[keyId], startMinute, endMinute, ignored);
+    }
+
+    /**
+     * The rows of one room or class never overlap, so only the last one starting before endMinute can
+     */
+    private boolean overlaps(int[] rows, int count, int startMinute, int endMinute, int ignored) {
+        int i = lastStartingBefore(rows, count, endMinute);
+        if (i >= 0 && rows[i] == ignored)
+            i--;
+        return i >= 0 && end[rows[i]] > startMinute;
+    }
+
+    @Override
+    public void insert(Session s) {
+        int row = freeCount > 0 ? freeRows[--freeCount] : newRow();
+        place(row, s);
+        stored(row, s);
+    }
+
+    /**
+     * Puts a Session back into the row it was stored in before, when a store is reloaded. The rows left
+     * empty must be handed to freeRow once everything is restored
+     * @param row int row the Session was stored in
+     * @param s Session to restore
+     */
+    protected void restore(int row, Session s) {
+        while (rowCount <= row) {
+            newRow();
+        }
+        place(row, s);
+    }
+
+    /**
+     * Called once a Session has been inserted into a row, for stores that keep the rows somewhere else as well
+     * @param row int row
+     * @param s Session inserted
+     */
+    protected void stored(int row, Session s) {
+    }
+
+    /**
+     * Called once a row has been deleted. The row is free for the next insert as soon as it is passed to
+     * freeRow, which is straight away unless a subclass still needs it
+     * @param row int row
+     */
+    protected void released(int row) {
+        freeRow(row);
+    }
+
+    /**
+     * Makes a row available to the next insert
+     * @param row int row no Session is stored in
+     */
+    protected void freeRow(int row) {
+        if (freeCount == freeRows.length)
+            freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+        freeRows[freeCount++] = row;
+    }
+
+    /**
+     * Returns the row of the i'th Session in start time order
+     * @param i int position, below size()
+     * @return int row
+     */
+    protected int rowAt(int i) {
+        return order[i];
+    }
+
+    /**
+     * Number of rows ever used, every row is below it
+     * @return int row count
+     */
+    protected int rowCount() {
+        return rowCount;
+    }
+
+    private void place(int row, Session s) {
+        start[row] = (short) minutes(s.getStartTime());
+        end[row] = (short) minutes(s.getEndTime());
+        room[row] = rooms.intern(s.getRoom());
+        className[row] = classes.intern(s.getClassName());
+        classKey[row] = classes.intern(classKey(s.getClassName()));
+        description[row] = descriptions.intern(s.getDescription());
+
+        if (size == order.length)
+            order = Arrays.copyOf(order, size * 2);
+        int at = orderPosition(row);
+        System.arraycopy(order, at, order, at + 1, size - at);
+        order[at] = row;
+        size++;
+
+        byRoom = indexInsert(byRoom, byRoomSize, room[row], row);
+        if (byRoomSize.length < byRoom.length)
+            byRoomSize = Arrays.copyOf(byRoomSize, byRoom.length);
+        byRoomSize[room[row]]++;
+        byClass = indexInsert(byClass, byClassSize, classKey[row], row);
+        if (byClassSize.length < byClass.length)
+            byClassSize = Arrays.copyOf(byClassSize, byClass.length);
+        byClassSize[classKey[row]]++;
+    }
+
+    @Override
+    public void delete(Session s) {
+        int row = row(s);
+        if (row < 0)
+            return;
+        int at = orderPosition(row) - 1;
+        System.arraycopy(order, at + 1, order, at, size - at - 1);
+        size--;
+        indexDelete(byRoom[room[row]], byRoomSize, room[row], row);
+        indexDelete(byClass[classKey[row]], byClassSize, classKey[row], row);
+        released(row);
+    }
+
+    @Override
+    public boolean contains(Session s) {
+        return row(s) >= 0;
+    }
+
+    @Override
+    public Session find(LocalTime startTime, LocalTime endTime, String roomName) {
+        int row = slot(startTime, endTime, roomName);
+        return row < 0 ? null : session(row);
+    }
+
+    @Override
+    public void collectClass(String name, List<Session> into) {
+        int keyId = classes.lookup(classKey(name));
+        if (keyId < 0 || keyId >= byClass.length || byClass[keyId] == null)
+            return;
+        int nameId = classes.lookup(name);
+        int[] rows = byClass[keyId];
+        for (int i = 0; i < byClassSize[keyId]; i++) {
+            if (className[rows[i]] == nameId)
+                into.add(session(rows[i]));
+        }
+    }
+
+    @Override
+    public List<Session> sessions() {
+        List<Session> sessions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            sessions.add(session(order[i]));
+        }
+        return sessions;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Makes the Session a row stands for, Sessions only exist outside the store
+     */
+    private Session session(int row) {
+        return new Session(day, TIMES[start[row]], TIMES[end[row]], rooms.name(room[row]),
+                classes.name(className[row]), descriptions.name(description[row]));
+    }
+
+    /**
+     * Finds the row of a stored Session equal to s
+     * @return int row, or -1
+     */
+    private int row(Session s) {
+        if (!supports(s))
+            return -1;
+        int row = slot(s.getStartTime(), s.getEndTime(), s.getRoom());
+        if (row < 0 || className[row] != classes.lookup(s.getClassName())
+                || description[row] != descriptions.lookup(s.getDescription()))
+            return -1;
+        return row;
+    }
+
+    /**
+     * Finds the row booked in a room at a time. A room's rows never overlap, so its start time alone picks it
+     */
+    private int slot(LocalTime startTime, LocalTime endTime, String roomName) {
+        int roomId = rooms.lookup(roomName);
+        if (roomId < 0 || roomId >= byRoom.length || byRoom[roomId] == null)
+            return -1;
+        int startMinute = minutes(startTime);
+        int[] rows = byRoom[roomId];
+        int i = lastStartingBefore(rows, byRoomSize[roomId], startMinute + 1);
+        if (i < 0 || start[rows[i]] != startMinute || end[rows[i]] != minutes(endTime)
+                || startTime.getSecond() != 0 || startTime.getNano() != 0
+                || endTime.getSecond() != 0 || endTime.getNano() != 0)
+            return -1;
+        return rows[i];
+    }
+
+    /**
+     * Binary search of rows in start time order
+     * @return int index of the last row starting before minute, or -1
+     */
+    private int lastStartingBefore(int[] rows, int count, int minute) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (start[rows[mid]] < minute)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    private int[][] indexInsert(int[][] index, int[] sizes, int id, int row) {
+        if (id >= index.length)
+            index = Arrays.copyOf(index, Math.max(index.length * 2, id + 1));
+        int count = id < sizes.length ? sizes[id] : 0;
+        int[] rows = index[id];
+        if (rows == null)
+            rows = index[id] = new int[4];
+        else if (count == rows.length)
+            rows = index[id] = Arrays.copyOf(rows, count * 2);
+        int at = lastStartingBefore(rows, count, start[row]) + 1;
+        System.arraycopy(rows, at, rows, at + 1, count - at);
+        rows[at] = row;
+        return index;
+    }
+
+    private void indexDelete(int[] rows, int[] sizes, int id, int row) {
+        int count = sizes[id];
+        int at = lastStartingBefore(rows, count, start[row] + 1);
+        System.arraycopy(rows, at + 1, rows, at, count - at - 1);
+        sizes[id]--;
+    }
+
+    /**
+     * Binary search for where a row goes in start time, end time, room, class order
+     * @return int index of the first row that sorts after it
+     */
+    private int orderPosition(int row) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(order[mid], row) <= 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    private int compare(int a, int b) {
+        if (start[a] != start[b])
+            return Integer.compare(start[a], start[b]);
+        if (end[a] != end[b])
+            return Integer.compare(end[a], end[b]);
+        if (room[a] != room[b])
+            return rooms.name(room[a]).compareTo(rooms.name(room[b]));
+        return classes.name(className[a]).compareTo(classes.name(className[b]));
+    }
+
+    private int newRow() {
+        if (rowCount == start.length) {
+            int capacity = rowCount * 2;
+            start = Arrays.copyOf(start, capacity);
+            end = Arrays.copyOf(end, capacity);
+            room = Arrays.copyOf(room, capacity);
+            className = Arrays.copyOf(className, capacity);
+            classKey = Arrays.copyOf(classKey, capacity);
+            description = Arrays.copyOf(description, capacity);
+        }
+        return rowCount++;
+    }
+
+    private static int minutes(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    private static String classKey(String name) {
+        // class names clash regardless of case, see SessionScheduler.conflicts()
+        return name.toUpperCase();
+    }
+}
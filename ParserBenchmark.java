@@ -0,0 +1,87 @@
+package benchmark;
+import controller.RequestTokenizer;
+import model.IncorrectActionException;
+import model.Session;
+import java.lang.management.ManagementFactory;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compares parsing ADD requests the way the server used to, splitting the line, parsing each part and then
+ * building the Session from the text a second time, with the single pass RequestTokenizer.
+ * Usage: ParserBenchmark [requests]
+ */
+public class ParserBenchmark {
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String[] lines = new String[4096];
+        for (int i = 0; i < lines.length; i++) {
+            int hour = 9 + i % 8;
+            lines[i] = "ADD " + DayOfWeek.of(1 + i % 5).name().toLowerCase() + " " + String.format("%02d:00", hour)
+                    + " " + String.format("%02d:00", hour + 1) + " s" + i % 200 + " lm" + i % 300 + " lab";
+        }
+
+        RequestTokenizer tokenizer = new RequestTokenizer();
+        ToIntFunction<String> split = ParserBenchmark::splitAndParse;
+        ToIntFunction<String> tokenized = line -> {
+            try {
+                return tokenizer.reset(line, 4).readSession().getEndTime().getHour();
+            } catch (IncorrectActionException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+
+        System.out.println("parser,requests,ns_per_request,bytes_per_request");
+        for (int round = 0; round < 3; round++) {
+            // the first round is warm up for the JIT
+            run("split", split, lines, requests, round > 0);
+            run("tokenizer", tokenized, lines, requests, round > 0);
+        }
+    }
+
+    private static void run(String name, ToIntFunction<String> parser, String[] lines, int requests, boolean print) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int check = 0;
+        for (int i = 0; i < requests; i++) {
+            check += parser.applyAsInt(lines[i & (lines.length - 1)]);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (check == 0)
+            throw new IllegalStateException("Nothing was parsed");
+        if (print)
+            System.out.println(name + "," + requests + "," + nanos / requests + ","
+                    + (allocatedBefore < 0 ? -1 : allocated / requests));
+    }
+
+    /**
+     * The previous request path: ConnectionHandler's split, then SessionController.parseSession
+     */
+    private static int splitAndParse(String line) {
+        String[] parts = line.split("\\s+", 2);
+        String remainder = parts[1];
+        String[] remainderSplit = remainder.split(" ");
+        DayOfWeek day = DayOfWeek.valueOf(remainderSplit[0].toUpperCase());
+        LocalTime startTime = LocalTime.parse(remainderSplit[1]);
+        LocalTime endTime = LocalTime.parse(remainderSplit[2]);
+        String room = remainderSplit[3].toUpperCase();
+        String className = remainderSplit[4].toUpperCase();
+        String description = remainderSplit[5].toUpperCase();
+        if (room.isEmpty() || className.isEmpty() || description.isEmpty()
+                || !startTime.isBefore(endTime))
+            throw new IllegalStateException(line);
+        return new Session(remainder).getEndTime().getHour();
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 where the JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
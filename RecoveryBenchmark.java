@@ -0,0 +1,73 @@
+package benchmark;
+import model.ScheduleJournal;
+import model.Session;
+import model.SessionScheduler;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long ScheduleJournal takes to recover schedules of growing size. Half of each schedule is
+ * in the snapshot and half in the journal tail, as if the server crashed midway between two checkpoints.
+ * Usage: RecoveryBenchmark [size ...]
+ */
+public class RecoveryBenchmark {
+    public static void main(String[] args) throws IOException {
+        int[] sizes = args.length > 0 ? Stream.of(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{10_000, 100_000, 500_000};
+        System.out.println("sessions,snapshot_bytes,journal_bytes,recovery_ms");
+        for (int size : sizes) {
+            Path directory = Files.createTempDirectory("recovery-benchmark");
+            try {
+                SessionScheduler scheduler = new SessionScheduler();
+                ScheduleJournal journal = new ScheduleJournal(directory, scheduler, 0);
+                for (int i = 0; i < size; i++) {
+                    scheduler.add(session(i));
+                    if (i == size / 2)
+                        journal.checkpoint();
+                }
+                scheduler.awaitDurable();
+
+                // recover from what is on disk without closing the first journal, as after a crash
+                long start = System.nanoTime();
+                SessionScheduler recovered = new SessionScheduler();
+                ScheduleJournal reopened = new ScheduleJournal(directory, recovered, 0);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                int count = recovered.getListSchedule().size();
+                if (count != size)
+                    throw new IllegalStateException("Recovered " + count + " of " + size + " sessions");
+                System.out.println(size + "," + bytes(directory, "snapshot") + "," + bytes(directory, "journal")
+                        + "," + millis);
+                reopened.close();
+            } finally {
+                delete(directory);
+            }
+        }
+    }
+
+    /**
+     * A Session that never clashes with any other index: 45 weekday hours per room and per class
+     */
+    private static Session session(int i) {
+        int hour = 9 + (i / 5) % 9;
+        return new Session(DayOfWeek.of(1 + i % 5), LocalTime.of(hour, 0), LocalTime.of(hour + 1, 0),
+                "R" + i / 45, "C" + i / 45, "LECTURE");
+    }
+
+    private static long bytes(Path directory, String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().startsWith(prefix))
+                    .mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package controller;
+import model.IncorrectActionException;
+import model.Session;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+public class RequestTokenizer {
+    private static final LocalTime[] TIMES = new LocalTime[24 * 60];
+    private static final DayOfWeek[] DAYS = DayOfWeek.values();
+    private static final int SYMBOL_CACHE_SIZE = 1024;
+    // returned by nextTime() for anything but HH:mm, which is left to LocalTime.parse
+    private static final int NOT_HH_MM = -1;
+
+    static {
+        for (int minute = 0; minute < TIMES.length; minute++) {
+            TIMES[minute] = LocalTime.of(minute / 60, minute % 60);
+        }
+    }
+
+    private final String[] symbols = new String[SYMBOL_CACHE_SIZE];
+    private final char[] upper = new char[64];
+    private String line;
+    private int position;
+    private int end;
+    private int tokenStart;
+    private int tokenEnd;
+    private DayOfWeek day;
+    private LocalTime startTime;
+    private LocalTime endTime;
+    private String room;
+
+    /**
+     * Starts tokenizing the space separated arguments of a request line. Like String.split(" "), every single
+     * space separates two tokens and trailing spaces are ignored. Not thread safe, each connection has its own
+     * @param line String request line
+     * @param from int index the arguments start at
+     * @return this RequestTokenizer
+     */
+    public RequestTokenizer reset(String line, int from) {
+        this.line = line;
+        this.position = from;
+        int last = line.length();
+        while (last > from && line.charAt(last - 1) == ' ') {
+            last--;
+        }
+        this.end = last;
+        return this;
+    }
+
+    /**
+     * Reads the arguments of an ADD, 'MONDAY 10:00 11:00 S115 LM121 LAB', straight into a Session with
+     * upper case room, class and description, applying the same format rules as splitting and parsing it
+     * @return Session, or null if the arguments are valid in a form this tokenizer leaves to the full parser,
+     * such as times with seconds or names outside ASCII
+     * @throws IncorrectActionException if the arguments are not a Session
+     */
+    public Session readSession() throws IncorrectActionException {
+        if (!readSlot())
+            return null;
+        String className = nextSymbol();
+        String description = nextSymbol();
+        if (className == null || description == null)
+            return null;
+        if (className.isEmpty() || next())
+            throw new IncorrectActionException();
+        return new Session(day, startTime, endTime, room, className, description);
+    }
+
+    /**
+     * Reads the day, start time, end time and room at the start of the arguments, as used by REMOVE on its
+     * own and by ADD in front of the class and description
+     * @return true if they were read, false if they are in a form left to the full parser
+     * @throws IncorrectActionException if the arguments do not start with a time slot
+     */
+    public boolean readSlot() throws IncorrectActionException {
+        day = nextDay();
+        int start = nextTime();
+        int finish = nextTime();
+        room = nextSymbol();
+        if (start == NOT_HH_MM || finish == NOT_HH_MM || room == null)
+            return false;
+        if (room.isEmpty())
+            throw new IncorrectActionException();
+        startTime = TIMES[start];
+        endTime = TIMES[finish];
+        return true;
+    }
+
+    /**
+     * Checks nothing follows what has been read so far
+     * @throws IncorrectActionException if there are more arguments
+     */
+    public void expectEnd() throws IncorrectActionException {
+        if (next())
+            throw new IncorrectActionException();
+    }
+
+    public DayOfWeek getDay() {
+        return day;
+    }
+
+    public LocalTime getStartTime() {
+        return startTime;
+    }
+
+    public LocalTime getEndTime() {
+        return endTime;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    private boolean next() {
+        if (position > end)
+            return false;
+        tokenStart = position;
+        int i = position;
+        while (i < end && line.charAt(i) != ' ') {
+            i++;
+        }
+        tokenEnd = i;
+        position = i + 1;
+        return true;
+    }
+
+    private void require() throws IncorrectActionException {
+        if (!next())
+            throw new IncorrectActionException();
+    }
+
+    private DayOfWeek nextDay() throws IncorrectActionException {
+        require();
+        int length = tokenEnd - tokenStart;
+        for (DayOfWeek candidate : DAYS) {
+            String name = candidate.name();
+            if (name.length() == length && line.regionMatches(true, tokenStart, name, 0, length))
+                return candidate;
+        }
+        throw new IncorrectActionException();
+    }
+
+    /**
+     * @return int minutes since midnight, or NOT_HH_MM
+     */
+    private int nextTime() throws IncorrectActionException {
+        require();
+        if (tokenEnd - tokenStart != 5 || line.charAt(tokenStart + 2) != ':')
+            return NOT_HH_MM;
+        int hours = digits(tokenStart);
+        int minutes = digits(tokenStart + 3);
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59)
+            return NOT_HH_MM;
+        return hours * 60 + minutes;
+    }
+
+    private int digits(int at) {
+        char tens = line.charAt(at);
+        char units = line.charAt(at + 1);
+        if (tens < '0' || tens > '9' || units < '0' || units > '9')
+            return -1;
+        return (tens - '0') * 10 + (units - '0');
+    }
+
+    /**
+     * Returns the next token in upper case. Names repeat across requests, so recent ones are kept in a small
+     * cache and a name seen before costs no allocation at all
+     * @return String upper case token, or null if it is not plain ASCII
+     */
+    private String nextSymbol() throws IncorrectActionException {
+        require();
+        int length = tokenEnd - tokenStart;
+        if (length > upper.length)
+            return null;
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(tokenStart + i);
+            if (c > 127)
+                return null;
+            if (c >= 'a' && c <= 'z')
+                c -= 'a' - 'A';
+            upper[i] = c;
+            hash = 31 * hash + c;
+        }
+        int slot = (hash ^ (hash >>> 16)) & (SYMBOL_CACHE_SIZE - 1);
+        String cached = symbols[slot];
+        if (cached != null && cached.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = cached.charAt(i) == upper[i];
+            }
+            if (same)
+                return cached;
+        }
+        String symbol = new String(upper, 0, length);
+        symbols[slot] = symbol;
+        return symbol;
+    }
+}
@@ -0,0 +1,461 @@
+package model;
+import logging.AsyncLogger;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+public class ScheduleJournal implements ScheduleListener, AutoCloseable {
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x53434844;
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final int SEGMENT_MAGIC = 0x5343484A;
+    private static final int SEGMENT_FORMAT = 1;
+    // a record is its length and CRC32 followed by its type, the number of Sessions and the Sessions, each
+    // written as the snapshot writes them, so no name can be mistaken for a separator
+    private static final int RECORD_HEADER = 8;
+    private static final byte ADD = 'A';
+    private static final byte REMOVE = 'R';
+    private static final byte MOVE = 'M';
+
+    private final Path directory;
+    private final SessionScheduler scheduler;
+    private final Object lock = new Object();
+    private final ScheduledExecutorService checkpointer;
+    private final Thread writer;
+    private ArrayList<Object> pending = new ArrayList<>();
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private long lastSegmentId;
+    private long changesSinceCheckpoint = 0;
+    private FileChannel segment;
+    private IOException failure;
+    private boolean closed = false;
+
+    /**
+     * Opens the journal in a directory: loads the latest snapshot into the scheduler, replays the journal
+     * written since that snapshot, and from then on records every change the scheduler makes
+     * @param directory Path directory holding the snapshot and journal segments, created if missing
+     * @param scheduler SessionScheduler to recover into, expected to be empty
+     * @param checkpointIntervalMillis long how often a snapshot is taken if anything changed, 0 for never
+     * @throws IOException if the directory cannot be read or written
+     */
+    public ScheduleJournal(Path directory, SessionScheduler scheduler, long checkpointIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.scheduler = scheduler;
+        Files.createDirectories(directory);
+
+        lastSegmentId = recover();
+        segment = openSegment(lastSegmentId);
+        scheduler.addListener(this);
+
+        writer = new Thread(this::writeLoop, "schedule-journal");
+        writer.setDaemon(true);
+        writer.start();
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "schedule-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (checkpointIntervalMillis > 0) {
+            checkpointer.scheduleWithFixedDelay(this::checkpointIfChanged, checkpointIntervalMillis,
+                    checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void sessionAdded(Session session) {
+        append(record(ADD, List.of(session)));
+    }
+
+    @Override
+    public void sessionRemoved(Session session) {
+        append(record(REMOVE, List.of(session)));
+    }
+
+    @Override
+    public void sessionMoved(Session from, Session to) {
+        append(record(MOVE, List.of(from, to)));
+    }
+
+    /**
+     * Journals an atomic group of moves as a single record, so replay applies them together. Every Session
+     * moved from comes first, followed by where each of them moved to
+     */
+    @Override
+    public void sessionsMoved(List<Session> from, List<Session> to) {
+        List<Session> sessions = new ArrayList<>(from);
+        sessions.addAll(to);
+        append(record(MOVE, sessions));
+    }
+
+    /**
+     * Journals a batch of additions as a single record, so replay applies all of them or none
+     */
+    @Override
+    public void sessionsAdded(List<Session> sessions) {
+        append(record(ADD, sessions));
+    }
+
+    /**
+     * Journals a batch of removals as a single record, so replay applies all of them or none
+     */
+    @Override
+    public void sessionsRemoved(List<Session> sessions) {
+        append(record(REMOVE, sessions));
+    }
+
+    /**
+     * Encodes the body of a journal record, the writer thread frames it with its length and checksum
+     * @param type byte ADD, REMOVE or MOVE
+     * @param sessions List of the record's Sessions
+     * @return byte[] record body
+     */
+    private static byte[] record(byte type, List<Session> sessions) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + 32 * sessions.size());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeInt(sessions.size());
+            for (Session session : sessions) {
+                writeSession(out, session);
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream never throws
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Queues a record for the writer thread, which writes and syncs everything queued since its last sync
+     * in one go, so concurrent changes share a single fsync
+     * @param record byte[] journal record body
+     */
+    private void append(byte[] record) {
+        synchronized (lock) {
+            pending.add(record);
+            appendedSeq++;
+            changesSinceCheckpoint++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until every record appended before the call has been synced to disk. That covers the changes
+     * of the calling thread and of any tasks it waited for, such as the early lectures workers
+     * @throws UncheckedIOException if the journal failed, or the thread was interrupted, before the records
+     *         were synced
+     */
+    @Override
+    public void awaitDurable() {
+        synchronized (lock) {
+            long seq = appendedSeq;
+            while (durableSeq < seq && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    // the records may not be on disk, so the caller must not report them as durable
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(
+                            new InterruptedIOException("Interrupted waiting for the schedule journal"));
+                }
+            }
+            if (failure != null)
+                throw new UncheckedIOException("Schedule journal failed", failure);
+        }
+    }
+
+    private void writeLoop() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        while (true) {
+            List<Object> batch;
+            long batchSeq;
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                pending = new ArrayList<>();
+                batchSeq = appendedSeq;
+            }
+            try {
+                for (Object entry : batch) {
+                    if (entry instanceof Long) {
+                        // a checkpoint cut: everything before it belongs in the old segment
+                        flush(buffer);
+                        segment.close();
+                        segment = openSegment((Long) entry);
+                    } else {
+                        byte[] record = (byte[]) entry;
+                        CRC32 checksum = new CRC32();
+                        checksum.update(record);
+                        writeInt(buffer, record.length);
+                        writeInt(buffer, (int) checksum.getValue());
+                        buffer.write(record);
+                    }
+                }
+                flush(buffer);
+            } catch (IOException e) {
+                AsyncLogger.get().error("Error writing schedule journal", "error", e.getMessage());
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                durableSeq = batchSeq;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void flush(ByteArrayOutputStream buffer) throws IOException {
+        if (buffer.size() == 0)
+            return;
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        while (bytes.hasRemaining()) {
+            segment.write(bytes);
+        }
+        segment.force(false);
+        buffer.reset();
+    }
+
+    private static void writeInt(ByteArrayOutputStream buffer, int value) {
+        buffer.write(value >>> 24);
+        buffer.write(value >>> 16);
+        buffer.write(value >>> 8);
+        buffer.write(value);
+    }
+
+    /**
+     * Opens a segment to append to, starting a new one with its header. The header reaches the disk with
+     * the segment's first records
+     */
+    private FileChannel openSegment(long id) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(SEGMENT_MAGIC).putInt(SEGMENT_FORMAT).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        return channel;
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private void checkpointIfChanged() {
+        try {
+            boolean changed;
+            synchronized (lock) {
+                changed = changesSinceCheckpoint > 0;
+            }
+            if (changed)
+                checkpoint();
+        } catch (IOException e) {
+            AsyncLogger.get().error("Error writing schedule snapshot", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a snapshot of the whole schedule and deletes the journal segments it makes redundant. Changes
+     * carry on while the snapshot is written, they go to a new segment that starts exactly at the snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void checkpoint() throws IOException {
+        long[] cut = new long[1];
+        List<Session> sessions = scheduler.checkpoint(() -> {
+            synchronized (lock) {
+                cut[0] = ++lastSegmentId;
+                pending.add(cut[0]);
+                changesSinceCheckpoint = 0;
+                lock.notifyAll();
+            }
+        });
+        writeSnapshot(sessions, cut[0]);
+        for (long id : segmentIds()) {
+            if (id < cut[0])
+                Files.deleteIfExists(segmentPath(id));
+        }
+    }
+
+    private void writeSnapshot(List<Session> sessions, long firstSegment) throws IOException {
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeLong(firstSegment);
+            out.writeInt(sessions.size());
+            for (Session session : sessions) {
+                writeSession(out, session);
+            }
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeSession(DataOutputStream out, Session session) throws IOException {
+        out.writeByte(session.getDay().getValue());
+        out.writeInt(session.getStartTime().toSecondOfDay());
+        out.writeInt(session.getEndTime().toSecondOfDay());
+        writeString(out, session.getRoom());
+        writeString(out, session.getClassName());
+        writeString(out, session.getDescription());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Loads the snapshot, memory mapped, and replays every journal segment written since it
+     * @return long id for the first segment to write after recovery
+     */
+    private long recover() throws IOException {
+        long firstSegment = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_FORMAT)
+                    throw new IOException("Not a schedule snapshot: " + snapshot);
+                firstSegment = buffer.getLong();
+                int count = buffer.getInt();
+                Map<String, String> names = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    scheduler.add(readSession(buffer, names));
+                }
+            }
+        }
+        long last = firstSegment;
+        for (long id : segmentIds()) {
+            if (id >= firstSegment) {
+                replay(segmentPath(id));
+                last = id;
+            }
+        }
+        // never append after a possibly torn last record
+        return last + 1;
+    }
+
+    private static Session readSession(ByteBuffer buffer, Map<String, String> names) {
+        DayOfWeek day = DayOfWeek.of(buffer.get());
+        LocalTime start = LocalTime.ofSecondOfDay(buffer.getInt());
+        LocalTime end = LocalTime.ofSecondOfDay(buffer.getInt());
+        String room = readString(buffer, names);
+        String className = readString(buffer, names);
+        String description = readString(buffer, names);
+        return new Session(day, start, end, room, className, description);
+    }
+
+    private static String readString(ByteBuffer buffer, Map<String, String> names) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        return names.computeIfAbsent(s, k -> k);
+    }
+
+    private void replay(Path segmentFile) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(segmentFile));
+        // a segment created just before a crash may not have its whole header
+        if (content.remaining() < 8)
+            return;
+        if (content.getInt() != SEGMENT_MAGIC || content.getInt() != SEGMENT_FORMAT)
+            throw new IOException("Not a schedule journal segment: " + segmentFile);
+        Map<String, String> names = new HashMap<>();
+        while (content.remaining() >= RECORD_HEADER) {
+            int length = content.getInt();
+            int expected = content.getInt();
+            if (length < 0 || length > content.remaining())
+                break;
+            CRC32 checksum = new CRC32();
+            checksum.update(content.array(), content.position(), length);
+            if ((int) checksum.getValue() != expected)
+                break;
+            ByteBuffer record = content.slice(content.position(), length);
+            content.position(content.position() + length);
+            byte type = record.get();
+            List<Session> sessions = new ArrayList<>();
+            for (int count = record.getInt(); count > 0; count--) {
+                sessions.add(readSession(record, names));
+            }
+            if (type == ADD) {
+                for (Session session : sessions) {
+                    scheduler.add(session);
+                }
+            } else if (type == REMOVE) {
+                for (Session session : sessions) {
+                    scheduler.remove(session);
+                }
+            } else if (type == MOVE) {
+                // every from is removed before any to is added
+                int half = sessions.size() / 2;
+                for (Session session : sessions.subList(0, half)) {
+                    scheduler.remove(session);
+                }
+                for (Session session : sessions.subList(half, sessions.size())) {
+                    scheduler.add(session);
+                }
+            }
+        }
+        // a record cut short or failing its checksum was never synced and never acknowledged
+    }
+
+    private List<Long> segmentIds() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Takes a final snapshot, stops recording changes and closes the journal
+     */
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        checkpoint();
+        scheduler.removeListener(this);
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+}
@@ -0,0 +1,68 @@
+package model;
+
+import java.util.List;
+
+/**
+ * Receives every change made to a SessionScheduler. The methods are called while the changed day is still
+ * locked, in the order the changes were made, so implementations must be quick and must not call back into
+ * the scheduler
+ */
+public interface ScheduleListener {
+    /**
+     * A Session was added to the schedule
+     * @param session Session added
+     */
+    void sessionAdded(Session session);
+
+    /**
+     * A Session was removed from the schedule
+     * @param session Session removed
+     */
+    void sessionRemoved(Session session);
+
+    /**
+     * A Session was replaced by a copy at a different time
+     * @param from Session as it was
+     * @param to Session as it is now
+     */
+    void sessionMoved(Session from, Session to);
+
+    /**
+     * Several Sessions were moved at once as one atomic change. The moves only make sense together, one of
+     * them on its own may clash with a Session that another one moves out of the way
+     * @param from List of Sessions as they were
+     * @param to List of the same Sessions as they are now, in the same order
+     */
+    default void sessionsMoved(List<Session> from, List<Session> to) {
+        for (int i = 0; i < from.size(); i++) {
+            sessionMoved(from.get(i), to.get(i));
+        }
+    }
+
+    /**
+     * Several Sessions were added at once as one atomic change
+     * @param sessions List of Sessions added
+     */
+    default void sessionsAdded(List<Session> sessions) {
+        for (Session session : sessions) {
+            sessionAdded(session);
+        }
+    }
+
+    /**
+     * Several Sessions were removed at once as one atomic change
+     * @param sessions List of Sessions removed
+     */
+    default void sessionsRemoved(List<Session> sessions) {
+        for (Session session : sessions) {
+            sessionRemoved(session);
+        }
+    }
+
+    /**
+     * Called outside any lock once a change has been made, before the client is told it succeeded. Listeners
+     * that make changes durable block here until the changes made by the calling thread are safe
+     */
+    default void awaitDurable() {
+    }
+}
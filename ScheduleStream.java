@@ -0,0 +1,40 @@
+package model;
+import java.nio.ByteBuffer;
+import java.util.List;
+public class ScheduleStream implements AutoCloseable {
+    private final List<ByteBuffer> buffers;
+    private final List<Runnable> releases;
+    private boolean closed = false;
+
+    /**
+     * Constructor for the ScheduleStream class
+     * @param buffers List of buffers making up the schedule text
+     * @param releases List of Runnables handing the buffers back to the stores they came from
+     */
+    ScheduleStream(List<ByteBuffer> buffers, List<Runnable> releases) {
+        this.buffers = buffers;
+        this.releases = releases;
+    }
+
+    /**
+     * The schedule text, the formatted Sessions separated by ', ' as in SessionScheduler.getSchedule(). The
+     * buffers are views of the stores' own memory and are only valid until the stream is closed
+     * @return List of buffers to write out in order
+     */
+    public List<ByteBuffer> getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Hands the buffers back to the stores once they have been written, closing twice does nothing
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (Runnable release : releases) {
+            release.run();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package controller;
+import model.ScheduleListener;
+import model.Session;
+import model.SessionScheduler;
+import java.time.DayOfWeek;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One connection's 'SUBSCRIBE' to the whole schedule or one class. The connection is first sent the Sessions as
+ * they are, as 'RESYNC', an 'ADDED' line for each and 'SYNCED', and then every change as it is made:
+ * 'ADDED session', 'REMOVED session' or 'MOVED from, to'. A client keeps the Sessions as a set, which makes the
+ * changes made while the Sessions were being sent harmless to apply twice.
+ * The scheduler's writers never wait for a subscriber. A change only updates the pending changes, under a lock
+ * of this subscription alone, and the connection sends them whenever its socket has room. Changes to the same
+ * Session waiting to be sent are coalesced into one, an ADDED then REMOVED Session is never sent at all, and a
+ * subscriber that falls so far behind that more than the capacity of distinct changes are waiting is sent the
+ * Sessions afresh instead
+ */
+public class ScheduleSubscription implements ScheduleListener {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    private final SessionScheduler scheduler;
+    private final String className;
+    private final int capacity;
+    // net change of each Session the client has not been sent yet, keyed by the Session as it is now, or as it
+    // was if it was removed
+    private final Map<Session, Change> pending = new LinkedHashMap<>();
+    private boolean resync = true;
+    private boolean draining = true;
+    private boolean cancelled = false;
+    private Runnable wake;
+    // only touched by the thread draining the subscription
+    private Iterator<Session> snapshot;
+    private int snapshotDay = 0;
+
+    /**
+     * Constructor for the ScheduleSubscription class. Nothing is sent until start() is called
+     * @param scheduler SessionScheduler to follow, the subscription is added to its listeners
+     * @param className String class to follow, or null for every class
+     * @param capacity int distinct pending changes kept before the subscriber is sent the Sessions afresh
+     */
+    public ScheduleSubscription(SessionScheduler scheduler, String className, int capacity) {
+        this.scheduler = scheduler;
+        this.className = className;
+        this.capacity = capacity;
+        scheduler.addListener(this);
+    }
+
+    /**
+     * Lets the subscription be sent, once the response to the 'SUBSCRIBE' is on its way
+     * @param wake Runnable called, on a scheduler writer's thread, whenever there is something to send and
+     *             nobody is sending it. It must return at once and have nextLine() called until it returns null
+     */
+    public void start(Runnable wake) {
+        synchronized (this) {
+            this.wake = wake;
+        }
+        wake.run();
+    }
+
+    /**
+     * Stops following the schedule, nothing more is sent
+     */
+    public void cancel() {
+        scheduler.removeListener(this);
+        synchronized (this) {
+            pending.clear();
+            resync = false;
+            wake = null;
+            cancelled = true;
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * The next line to send, only to be called by the one thread sending the subscription at a time
+     * @return String line without its terminator, or null once everything has been sent or it was cancelled
+     */
+    public String nextLine() {
+        synchronized (this) {
+            if (cancelled) {
+                snapshot = null;
+                draining = false;
+                return null;
+            }
+        }
+        if (snapshot != null) {
+            // the Sessions are read outside this subscription's lock, which writers take under a day's lock
+            while (!snapshot.hasNext() && className == null && snapshotDay < DayOfWeek.values().length) {
+                snapshot = scheduler.getListSchedule(DayOfWeek.values()[snapshotDay++]).iterator();
+            }
+            if (snapshot.hasNext())
+                return "ADDED " + snapshot.next().format();
+            snapshot = null;
+            return "SYNCED";
+        }
+        synchronized (this) {
+            if (!resync) {
+                Iterator<Change> changes = pending.values().iterator();
+                if (!changes.hasNext()) {
+                    draining = false;
+                    return null;
+                }
+                Change change = changes.next();
+                changes.remove();
+                return change.line();
+            }
+            resync = false;
+        }
+        // changes made from here on are sent after the Sessions, which may already include them
+        snapshotDay = 0;
+        snapshot = className == null ? Collections.emptyIterator()
+                : scheduler.getListSchedule(className).iterator();
+        return "RESYNC";
+    }
+
+    @Override
+    public void sessionAdded(Session session) {
+        if (!follows(session))
+            return;
+        Runnable toWake;
+        synchronized (this) {
+            Change removal = pending.remove(session);
+            // removed and added back the same is no change at all
+            if (removal == null || !same(removal.from, session))
+                put(new Change(removal == null ? null : removal.from, session));
+            toWake = toWake();
+        }
+        if (toWake != null)
+            toWake.run();
+    }
+
+    @Override
+    public void sessionRemoved(Session session) {
+        if (!follows(session))
+            return;
+        Runnable toWake;
+        synchronized (this) {
+            Change change = pending.remove(session);
+            if (change == null)
+                put(new Change(session, null));
+            else if (change.from != null)
+                put(new Change(change.from, null));
+            toWake = toWake();
+        }
+        if (toWake != null)
+            toWake.run();
+    }
+
+    @Override
+    public void sessionMoved(Session from, Session to) {
+        if (!follows(from))
+            return;
+        Runnable toWake;
+        synchronized (this) {
+            Change change = pending.remove(from);
+            Session original = change == null ? from : change.from;
+            // moved back to where the client has it is no change at all
+            if (original == null || !same(original, to))
+                put(new Change(original, to));
+            toWake = toWake();
+        }
+        if (toWake != null)
+            toWake.run();
+    }
+
+    private boolean follows(Session session) {
+        return className == null || className.equals(session.getClassName());
+    }
+
+    private static boolean same(Session a, Session b) {
+        return a.equals(b) && a.getDescription().equals(b.getDescription());
+    }
+
+    /**
+     * Keeps a change, or if that makes too many drops them all and has the Sessions sent afresh, holding the lock
+     */
+    private void put(Change change) {
+        pending.put(change.to != null ? change.to : change.from, change);
+        if (pending.size() > capacity) {
+            pending.clear();
+            resync = true;
+        }
+    }
+
+    /**
+     * The wake call to make once the lock is released, if nobody is sending the subscription yet
+     */
+    private Runnable toWake() {
+        if (draining || wake == null)
+            return null;
+        draining = true;
+        return wake;
+    }
+
+    /**
+     * The net change to one Session since the client last heard of it
+     */
+    private static final class Change {
+        private final Session from;
+        private final Session to;
+
+        Change(Session from, Session to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        String line() {
+            if (from == null)
+                return "ADDED " + to.format();
+            if (to == null)
+                return "REMOVED " + from.format();
+            return "MOVED " + from.format() + ", " + to.format();
+        }
+    }
+}
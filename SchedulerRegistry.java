@@ -0,0 +1,215 @@
+package model;
+import logging.AsyncLogger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+public class SchedulerRegistry implements AutoCloseable {
+    public static final String DEFAULT_TENANT = "DEFAULT";
+    private static final Pattern TENANT_NAME = Pattern.compile("[A-Z0-9_-]{1,64}");
+
+    /**
+     * Loads the schedule of one tenant, from disk or wherever it is kept. Closing the SessionScheduler it
+     * returns must write everything back, the registry does that when the tenant is evicted
+     */
+    public interface Loader {
+        /**
+         * @param tenant String tenant name, see isTenant()
+         * @return SessionScheduler holding the tenant's schedule
+         * @throws IOException if the schedule cannot be loaded
+         */
+        SessionScheduler load(String tenant) throws IOException;
+    }
+
+    private final Loader loader;
+    private final long idleMillis;
+    private final ConcurrentHashMap<String, Shard> shards = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Constructor for the SchedulerRegistry class
+     * @param loader Loader loading a tenant's scheduler the first time it is used
+     * @param idleMillis long milliseconds a tenant nobody uses stays loaded, 0 to keep every tenant loaded
+     */
+    public SchedulerRegistry(Loader loader, long idleMillis) {
+        this.loader = loader;
+        this.idleMillis = idleMillis;
+        if (idleMillis > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "tenant-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long sweep = Math.max(100, idleMillis / 4);
+            evictor.scheduleWithFixedDelay(this::evictIdle, sweep, sweep, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Constructor for a registry serving an existing scheduler as the default tenant. Other tenants are kept in
+     * memory only, so nothing is ever evicted
+     * @param scheduler SessionScheduler of the default tenant
+     */
+    public SchedulerRegistry(SessionScheduler scheduler) {
+        this(tenant -> DEFAULT_TENANT.equals(tenant) ? scheduler : new SessionScheduler(), 0);
+    }
+
+    /**
+     * Checks a tenant name is one the registry accepts. Names become directory names, so they are limited to
+     * upper case letters, digits, '_' and '-'
+     * @param tenant String tenant name
+     * @return true if the name is valid
+     */
+    public static boolean isTenant(String tenant) {
+        return TENANT_NAME.matcher(tenant).matches();
+    }
+
+    /**
+     * Takes a lease on a tenant's scheduler, loading it if it is not loaded. Each tenant has a scheduler of its
+     * own, so tenants share no locks, caches or files. A leased tenant is never evicted
+     * @param tenant String tenant name, see isTenant()
+     * @return Shard to take the scheduler from, released once it is no longer used
+     * @throws IOException if the tenant's schedule cannot be loaded
+     */
+    public Shard acquire(String tenant) throws IOException {
+        if (!isTenant(tenant))
+            throw new IllegalArgumentException("Invalid tenant name: " + tenant);
+        while (true) {
+            Shard shard = shards.computeIfAbsent(tenant, Shard::new);
+            if (shard.enter())
+                return shard;
+            // the shard is being evicted, it is loaded again once it has been written out
+            synchronized (shard) {
+                shards.remove(tenant, shard);
+            }
+        }
+    }
+
+    /**
+     * Number of tenants currently loaded
+     * @return int count
+     */
+    public int loadedShards() {
+        return shards.size();
+    }
+
+    /**
+     * Writes out and unloads every tenant that has had no lease for the idle time. Runs periodically on its
+     * own thread, only one tenant is locked at a time
+     */
+    public void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleMillis;
+        for (Shard shard : shards.values()) {
+            if (shard.lastUsed < deadline) {
+                try {
+                    if (shard.evict())
+                        AsyncLogger.get().info("Evicted tenant", "tenant", shard.tenant);
+                } catch (IOException | RuntimeException e) {
+                    AsyncLogger.get().error("Error evicting tenant", "tenant", shard.tenant, "error", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops evicting and closes every loaded scheduler, leased or not, once the server has stopped
+     * @throws IOException if a scheduler cannot be written out, after trying all of them
+     */
+    @Override
+    public void close() throws IOException {
+        if (evictor != null)
+            evictor.shutdownNow();
+        List<IOException> failures = new ArrayList<>();
+        for (Shard shard : shards.values()) {
+            shard.users.set(0);
+            try {
+                shard.evict();
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        }
+        if (!failures.isEmpty())
+            throw failures.get(0);
+    }
+
+    /**
+     * One tenant's scheduler and the number of leases on it. The count goes to -1 once the shard is evicted,
+     * after which it can no longer be leased
+     */
+    public final class Shard {
+        private final String tenant;
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile SessionScheduler scheduler;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Shard(String tenant) {
+            this.tenant = tenant;
+        }
+
+        public String getTenant() {
+            return tenant;
+        }
+
+        public SessionScheduler getScheduler() {
+            return scheduler;
+        }
+
+        /**
+         * Gives the lease back. The shard may be evicted once it has had no lease for the idle time
+         */
+        public void release() {
+            lastUsed = System.currentTimeMillis();
+            users.decrementAndGet();
+        }
+
+        /**
+         * Takes a lease, loading the scheduler under the shard's lock the first time
+         * @return false if the shard is being evicted
+         */
+        private boolean enter() throws IOException {
+            int count;
+            do {
+                count = users.get();
+                if (count < 0)
+                    return false;
+            } while (!users.compareAndSet(count, count + 1));
+            if (scheduler == null) {
+                synchronized (this) {
+                    if (scheduler == null) {
+                        try {
+                            scheduler = loader.load(tenant);
+                        } catch (IOException | RuntimeException e) {
+                            users.decrementAndGet();
+                            throw e;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Closes the scheduler if there are no leases. The shard's lock is held until it is written out, so a
+         * lease taken meanwhile waits for that before the tenant is loaded again
+         * @return true if the shard was evicted
+         */
+        private synchronized boolean evict() throws IOException {
+            if (!users.compareAndSet(0, -1))
+                return false;
+            try {
+                if (scheduler != null)
+                    scheduler.close();
+            } finally {
+                shards.remove(tenant, this);
+            }
+            return true;
+        }
+    }
+}
@@ -1,12 +1,103 @@
+import controller.ClusterRouter;
+import controller.ServerConfig;
 import controller.ServerController;
+import logging.AsyncLogger;
+import metrics.MetricsEndpoint;
+import metrics.ServerMetrics;
+import model.MappedSessionStore;
+import model.PackedSessionStore;
+import model.ScheduleJournal;
+import model.SchedulerRegistry;
 import model.SessionScheduler;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.management.JMException;
 
 public class ServerApplication {
-    public static void main(String[] args) {
-        SessionScheduler scheduler = new SessionScheduler();
-        ServerController serverController = new ServerController(1234, scheduler);
+    public static void main(String[] args) throws IOException {
+        ServerConfig config = ServerConfig.fromArgs(args);
+        if (config.getStore() == ServerConfig.Store.MAPPED && config.getDataDirectory().isEmpty())
+            throw new IllegalArgumentException("--store=mapped needs a --data-dir");
+        AsyncLogger.set(new AsyncLogger(System.out, config.getLogLevel(), config.getLogBufferSize(),
+                config.getLogDropPolicy(), config.getLogSampleEvery()));
+        AsyncLogger log = AsyncLogger.get();
 
-        System.out.println("Starting server...");
+        // without a data directory an evicted tenant would be lost, so tenants stay loaded
+        long idleMillis = config.getDataDirectory().isEmpty() ? 0 : config.getTenantIdleMillis();
+        SchedulerRegistry registry = new SchedulerRegistry(tenant -> load(config, tenant), idleMillis);
+
+        ClusterRouter cluster = config.getClusterNodes().isEmpty() ? null
+                : ClusterRouter.fromArgs(config.getClusterNodes(), config.getNodeIndex());
+
+        ServerController serverController = new ServerController(config, registry, cluster);
+        try {
+            ServerMetrics.get().registerMBean();
+        } catch (JMException e) {
+            log.warn("Metrics are not available over JMX", "error", e.getMessage());
+        }
+        MetricsEndpoint metrics = config.getMetricsPort() == 0 ? null
+                : new MetricsEndpoint(config.getMetricsPort(), ServerMetrics.get());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            serverController.stop();
+            if (metrics != null)
+                metrics.close();
+            if (cluster != null)
+                cluster.close();
+            try {
+                registry.close();
+            } catch (IOException e) {
+                log.error("Error closing schedules", "error", e.getMessage());
+            }
+            // last, so everything logged while shutting down is written
+            log.close();
+        }));
+
+        if (cluster == null)
+            log.info("Starting server", "mode", config.getMode(), "port", config.getPort());
+        else
+            log.info("Starting server", "mode", config.getMode(), "port", config.getPort(),
+                    "node", config.getNodeIndex(), "cluster", config.getClusterNodes());
+        if (metrics != null)
+            log.info("Serving metrics", "url", "http://localhost:" + metrics.getPort() + "/metrics");
         serverController.start();
     }
+
+    /**
+     * Loads one tenant's schedule from its directory, the data directory itself for the default tenant
+     * @param config ServerConfig store and data directory
+     * @param tenant String tenant name
+     * @return SessionScheduler with the tenant's Sessions, closing it writes them back
+     * @throws IOException if the schedule cannot be recovered
+     */
+    private static SessionScheduler load(ServerConfig config, String tenant) throws IOException {
+        long start = System.nanoTime();
+        Path directory = config.getDataDirectory().isEmpty() ? null : Paths.get(config.getDataDirectory());
+        if (directory != null && !SchedulerRegistry.DEFAULT_TENANT.equals(tenant))
+            directory = directory.resolve("tenants").resolve(tenant);
+
+        SessionScheduler scheduler;
+        switch (config.getStore()) {
+            case PACKED:
+                scheduler = new SessionScheduler(PackedSessionStore.perDay());
+                break;
+            case MAPPED:
+                try {
+                    scheduler = new SessionScheduler(MappedSessionStore.perDay(directory));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                break;
+            default:
+                scheduler = new SessionScheduler();
+        }
+        // the mapped files already hold the schedule, replaying a journal on top of them would apply it twice
+        if (directory != null && config.getStore() != ServerConfig.Store.MAPPED)
+            new ScheduleJournal(directory, scheduler, config.getCheckpointIntervalMillis());
+        if (directory != null && AsyncLogger.get().isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.get().info("Loaded tenant", "tenant", tenant, "sessions", scheduler.getListSchedule().size(),
+                    "millis", (System.nanoTime() - start) / 1_000_000);
+        return scheduler;
+    }
 }
@@ -0,0 +1,258 @@
+package controller;
+import logging.AsyncLogger;
+
+public class ServerConfig {
+    /**
+     * How the blocking server runs each ConnectionHandler
+     */
+    public enum Execution { THREAD_PER_CONNECTION, FIXED_POOL, VIRTUAL_THREADS }
+
+    /**
+     * How the SessionScheduler keeps each day's Sessions: as Session objects in trees, packed into primitive
+     * columns with interned names, or as records in memory-mapped files in the data directory, which then hold
+     * the schedule across restarts in place of the journal. Each change to a mapped file is forced to disk
+     * before it is acknowledged, as a journaled change is synced
+     */
+    public enum Store { TREE, PACKED, MAPPED }
+
+    private int port = 1234;
+    private ServerController.Mode mode = ServerController.Mode.BLOCKING;
+    private Execution execution = Execution.THREAD_PER_CONNECTION;
+    private int poolSize = Runtime.getRuntime().availableProcessors() * 4;
+    private int queueCapacity = 10_000;
+    private long shutdownGraceMillis = 5000;
+    private int idleTimeoutMillis = 60_000;
+    private String dataDirectory = "data";
+    private long checkpointIntervalMillis = 60_000;
+    private Store store = Store.TREE;
+    private long tenantIdleMillis = 300_000;
+    private String clusterNodes = "";
+    private int nodeIndex = 0;
+    private int metricsPort = 0;
+    private AsyncLogger.Level logLevel = AsyncLogger.Level.INFO;
+    private int logBufferSize = 8192;
+    private AsyncLogger.DropPolicy logDropPolicy = AsyncLogger.DropPolicy.DROP_NEWEST;
+    private int logSampleEvery = 1;
+
+    /**
+     * Builds a config from command line arguments of the form --name=value, unknown arguments are rejected
+     * @param args String[] command line arguments
+     * @return ServerConfig config
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            String value = pair.length > 1 ? pair[1] : "";
+            switch (pair[0]) {
+                case "port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "mode":
+                    config.setMode(ServerController.Mode.valueOf(value.toUpperCase()));
+                    break;
+                case "nio":
+                    config.setMode(ServerController.Mode.NIO);
+                    break;
+                case "execution":
+                    config.setExecution(Execution.valueOf(value.toUpperCase().replace('-', '_')));
+                    break;
+                case "pool-size":
+                    config.setPoolSize(Integer.parseInt(value));
+                    break;
+                case "queue-capacity":
+                    config.setQueueCapacity(Integer.parseInt(value));
+                    break;
+                case "shutdown-grace":
+                    config.setShutdownGraceMillis(Long.parseLong(value));
+                    break;
+                case "idle-timeout":
+                    config.setIdleTimeoutMillis(Integer.parseInt(value));
+                    break;
+                case "data-dir":
+                    config.setDataDirectory(value);
+                    break;
+                case "checkpoint-interval":
+                    config.setCheckpointIntervalMillis(Long.parseLong(value));
+                    break;
+                case "store":
+                    config.setStore(Store.valueOf(value.toUpperCase()));
+                    break;
+                case "tenant-idle":
+                    config.setTenantIdleMillis(Long.parseLong(value));
+                    break;
+                case "cluster":
+                    config.setClusterNodes(value);
+                    break;
+                case "node":
+                    config.setNodeIndex(Integer.parseInt(value));
+                    break;
+                case "metrics-port":
+                    config.setMetricsPort(Integer.parseInt(value));
+                    break;
+                case "log-level":
+                    config.setLogLevel(AsyncLogger.Level.valueOf(value.toUpperCase()));
+                    break;
+                case "log-buffer":
+                    config.setLogBufferSize(Integer.parseInt(value));
+                    break;
+                case "log-drop":
+                    config.setLogDropPolicy(AsyncLogger.DropPolicy.valueOf("DROP_" + value.toUpperCase()));
+                    break;
+                case "log-sample":
+                    config.setLogSampleEvery(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+    public void setPort(int port) {
+        this.port = port;
+    }
+    public ServerController.Mode getMode() {
+        return mode;
+    }
+    public void setMode(ServerController.Mode mode) {
+        this.mode = mode;
+    }
+    public Execution getExecution() {
+        return execution;
+    }
+    public void setExecution(Execution execution) {
+        this.execution = execution;
+    }
+    public int getPoolSize() {
+        return poolSize;
+    }
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+    /**
+     * Requests the NIO server lets wait for a worker before it answers that it is too busy
+     * @return int queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+    public long getShutdownGraceMillis() {
+        return shutdownGraceMillis;
+    }
+    public void setShutdownGraceMillis(long shutdownGraceMillis) {
+        this.shutdownGraceMillis = shutdownGraceMillis;
+    }
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+    public void setIdleTimeoutMillis(int idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+    /**
+     * Directory the schedule is journaled to and recovered from, empty to keep the schedule in memory only.
+     * Tenants other than the default one each have a directory of their own under its tenants directory
+     * @return String directory
+     */
+    public String getDataDirectory() {
+        return dataDirectory;
+    }
+    public void setDataDirectory(String dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+    public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+    public Store getStore() {
+        return store;
+    }
+    public void setStore(Store store) {
+        this.store = store;
+    }
+    /**
+     * Milliseconds a tenant no connection uses stays loaded before it is written out and unloaded, 0 to keep
+     * every tenant loaded. Tenants are never unloaded without a data directory to write them to
+     * @return long milliseconds
+     */
+    public long getTenantIdleMillis() {
+        return tenantIdleMillis;
+    }
+    public void setTenantIdleMillis(long tenantIdleMillis) {
+        this.tenantIdleMillis = tenantIdleMillis;
+    }
+    /**
+     * Comma separated 'host:port' of every node of the cluster, the same on every node, empty to run on its own
+     * @return String cluster nodes
+     */
+    public String getClusterNodes() {
+        return clusterNodes;
+    }
+    public void setClusterNodes(String clusterNodes) {
+        this.clusterNodes = clusterNodes;
+    }
+    /**
+     * Index of this server in the cluster nodes
+     * @return int node index
+     */
+    public int getNodeIndex() {
+        return nodeIndex;
+    }
+    public void setNodeIndex(int nodeIndex) {
+        this.nodeIndex = nodeIndex;
+    }
+    /**
+     * Port on the loopback address the metrics are served on as plain text, 0 to serve them over JMX only
+     * @return int metrics port
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+    public AsyncLogger.Level getLogLevel() {
+        return logLevel;
+    }
+    public void setLogLevel(AsyncLogger.Level logLevel) {
+        this.logLevel = logLevel;
+    }
+    /**
+     * Log events buffered for the logging thread before the drop policy applies
+     * @return int buffer size
+     */
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+    public void setLogBufferSize(int logBufferSize) {
+        this.logBufferSize = logBufferSize;
+    }
+    /**
+     * Which log event is lost when the buffer is full, given on the command line as 'newest' or 'oldest'
+     * @return DropPolicy drop policy
+     */
+    public AsyncLogger.DropPolicy getLogDropPolicy() {
+        return logDropPolicy;
+    }
+    public void setLogDropPolicy(AsyncLogger.DropPolicy logDropPolicy) {
+        this.logDropPolicy = logDropPolicy;
+    }
+    /**
+     * One in how many log events of each kind below ERROR are kept, 1 to keep all
+     * @return int sampling
+     */
+    public int getLogSampleEvery() {
+        return logSampleEvery;
+    }
+    public void setLogSampleEvery(int logSampleEvery) {
+        this.logSampleEvery = logSampleEvery;
+    }
+}
@@ -0,0 +1,544 @@
+package controller;
+import model.Session;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+public class ServerConnection implements AutoCloseable {
+    private static final int PIPELINE_WINDOW = 256;
+    // a connection unused for longer than this is checked for having been closed by the server before reuse
+    private static final long STALE_CHECK_MILLIS = 1_000;
+
+    private final String hostName;
+    private final int port;
+    private final boolean binary;
+    private Socket link;
+    private InputStream rawIn;
+    private long lastUsed;
+    private BufferedReader in;
+    private PrintWriter out;
+    private DataInputStream frameIn;
+    private DataOutputStream frameOut;
+    private long nextId = 0;
+
+    /**
+     * Constructor for a connection to a server on this machine
+     * @param port int server port
+     */
+    public ServerConnection(int port) {
+        this(null, port);
+    }
+
+    /**
+     * Constructor for the ServerConnection class. Nothing is opened until the first request is sent
+     * @param hostName String host name, or null for the local host
+     * @param port int server port
+     */
+    public ServerConnection(String hostName, int port) {
+        this(hostName, port, false);
+    }
+
+    /**
+     * Constructor for the ServerConnection class
+     * @param hostName String host name, or null for the local host
+     * @param port int server port
+     * @param binary boolean ask the server for BinaryProtocol frames, falling back to text if it does not know them
+     */
+    public ServerConnection(String hostName, int port, boolean binary) {
+        this.hostName = hostName;
+        this.port = port;
+        this.binary = binary;
+    }
+
+    /**
+     * Sends a request over the kept-alive connection and waits for its response. The connection is opened on
+     * first use, and a reused connection the server has closed (idle timeout or restart) is reopened. A request
+     * is only sent once more if writing it failed: once it is written the server may have carried it out
+     * @param message String request line
+     * @return String response line
+     * @throws IOException if the server cannot be reached
+     */
+    public synchronized String send(String message) throws IOException {
+        return retryOnce(() -> exchange(message));
+    }
+
+    /**
+     * Adds a Session, sent as a binary frame when the connection is binary
+     * @param session Session to add
+     * @return String response line
+     * @throws IOException if the server cannot be reached
+     */
+    public synchronized String add(Session session) throws IOException {
+        return retryOnce(() -> {
+            connect();
+            if (frameOut == null)
+                return exchange("ADD " + session.format());
+            ByteBuffer response = exchangeFrame(BinaryProtocol.addRequest(session));
+            return response == null ? null : BinaryProtocol.readText(response);
+        });
+    }
+
+    /**
+     * Adds many Sessions in one 'BATCH_ADD' request, all of them or, if any is rejected, none
+     * @param sessions List of Sessions to add
+     * @return String response line, listing the rejected rows if nothing was added
+     * @throws IOException if the server cannot be reached
+     */
+    public synchronized String addAll(List<Session> sessions) throws IOException {
+        StringBuilder request = new StringBuilder("BATCH_ADD ");
+        for (int i = 0; i < sessions.size(); i++) {
+            if (i > 0)
+                request.append(", ");
+            request.append(sessions.get(i).format());
+        }
+        return send(request.toString());
+    }
+
+    /**
+     * Streams a timetable to the server with 'IMPORT', one row per line, and waits for the response once every
+     * row is sent. Rows are sent as they are read, so the size of the timetable does not matter. Only a text
+     * connection can import, and as the rows cannot be read twice the request is never retried
+     * @param rows BufferedReader rows in the format given
+     * @param format TimetableFormat of the rows
+     * @return String response line counting the Sessions imported and listing rejected rows
+     * @throws IOException if the rows cannot be read or the server cannot be reached
+     */
+    public synchronized String importRows(BufferedReader rows, TimetableFormat format) throws IOException {
+        connect();
+        if (frameOut != null)
+            throw new IOException("IMPORT is only available on text connections");
+        try {
+            out.println("IMPORT " + format);
+            String row;
+            while ((row = rows.readLine()) != null) {
+                out.println(row);
+            }
+            out.println(ConnectionHandler.END);
+            out.flush();
+            if (out.checkError())
+                throw new IOException("Error writing to server");
+            String response = in.readLine();
+            if (response == null)
+                throw new IOException("Server closed the connection");
+            return response;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Fetches the whole schedule, or one class, with 'EXPORT' and writes its rows out as they arrive
+     * @param format TimetableFormat of the rows
+     * @param className String class name, or null for every class
+     * @param into Writer the rows are written to, one per line
+     * @return long number of lines written, including the format's header
+     * @throws IOException if the server cannot be reached or refuses the export
+     */
+    public synchronized long export(TimetableFormat format, String className, Writer into) throws IOException {
+        connect();
+        if (frameOut != null)
+            throw new IOException("EXPORT is only available on text connections");
+        try {
+            out.println("EXPORT " + format + (className == null ? "" : " " + className));
+            out.flush();
+            long lines = 0;
+            String line;
+            while ((line = in.readLine()) != null && !line.equals(ConnectionHandler.END)) {
+                if (lines == 0 && line.startsWith("ERROR "))
+                    throw new IOException(line.substring(6));
+                into.write(line);
+                into.write(System.lineSeparator());
+                lines++;
+            }
+            if (line == null)
+                throw new IOException("Server closed the connection");
+            return lines;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Follows the schedule, or one class, with 'SUBSCRIBE'. The connection is given over to the subscription:
+     * this blocks, passing each line the server pushes to changes on the calling thread, until the connection
+     * is closed. The lines are 'RESYNC', an 'ADDED session' for each Session there is, 'SYNCED', and then
+     * 'ADDED session', 'REMOVED session' or 'MOVED from, to' for every change, see ScheduleSubscription
+     * @param className String 'ALL' or a class name
+     * @param changes Consumer of the pushed lines
+     * @throws IOException if the server cannot be reached, refuses the subscription or the connection fails
+     */
+    public void subscribe(String className, Consumer<String> changes) throws IOException {
+        Socket subscribed;
+        BufferedReader lines;
+        synchronized (this) {
+            connect();
+            if (frameOut != null)
+                throw new IOException("SUBSCRIBE is only available on text connections");
+            String response = exchange("SUBSCRIBE " + className);
+            if (response == null)
+                throw new IOException("Server closed the connection");
+            if (response.startsWith("ERROR "))
+                throw new IOException(response.substring(6));
+            subscribed = link;
+            lines = in;
+        }
+        // read without the lock, so close() can end the subscription
+        try {
+            String line;
+            while ((line = lines.readLine()) != null && !line.equals(ConnectionHandler.QUIT_RESPONSE)) {
+                changes.accept(line);
+            }
+        } catch (IOException e) {
+            if (!subscribed.isClosed())
+                throw e;
+        } finally {
+            synchronized (this) {
+                if (link == subscribed)
+                    disconnect();
+            }
+        }
+    }
+
+    /**
+     * Removes the Session booked in a room at a time, sent as a binary frame when the connection is binary
+     * @param day DayOfWeek day
+     * @param startTime LocalTime start time
+     * @param endTime LocalTime end time
+     * @param room String room
+     * @return String response line
+     * @throws IOException if the server cannot be reached
+     */
+    public synchronized String remove(DayOfWeek day, LocalTime startTime, LocalTime endTime, String room)
+            throws IOException {
+        return retryOnce(() -> {
+            connect();
+            if (frameOut == null)
+                return exchange("REMOVE " + day + " " + startTime + " " + endTime + " " + room);
+            ByteBuffer response = exchangeFrame(BinaryProtocol.removeRequest(day, startTime, endTime, room));
+            return response == null ? null : BinaryProtocol.readText(response);
+        });
+    }
+
+    /**
+     * Fetches the Sessions of the whole schedule or of one class. Over a binary connection they arrive already
+     * decoded, over text the DISPLAY response is parsed
+     * @param className String 'ALL' or a class name
+     * @return List of Sessions, empty if none are scheduled
+     * @throws IOException if the server cannot be reached or its response cannot be read
+     */
+    public synchronized List<Session> display(String className) throws IOException {
+        return retryOnce(() -> {
+            connect();
+            if (frameOut == null) {
+                String response = exchange("DISPLAY " + className);
+                return response == null ? null : parseDisplay(response);
+            }
+            ByteBuffer response = exchangeFrame(BinaryProtocol.displayRequest(className));
+            if (response == null)
+                return null;
+            if (response.get(0) == BinaryProtocol.RESPONSE_TEXT)
+                return new ArrayList<>();
+            return BinaryProtocol.readSessions(response);
+        });
+    }
+
+    private static List<Session> parseDisplay(String response) throws IOException {
+        List<Session> sessions = new ArrayList<>();
+        if (!response.startsWith("DISPLAY "))
+            return sessions;
+        int separator = response.indexOf(';');
+        try {
+            for (String session : response.substring(separator + 1).split(", ")) {
+                sessions.add(new Session(session));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable DISPLAY response: " + response);
+        }
+        return sessions;
+    }
+
+    private interface Exchange<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs an exchange and, if the request could not be written to a reused connection, reopens it and runs
+     * the exchange once more. A request that was written is never sent again, as resending a change the server
+     * already made would answer with a spurious ERROR
+     * @param exchange Exchange returning null if the server had closed the connection
+     */
+    private <T> T retryOnce(Exchange<T> exchange) throws IOException {
+        boolean reused = link != null;
+        try {
+            T response = exchange.run();
+            if (response == null)
+                throw new IOException("Server closed the connection");
+            return response;
+        } catch (NotSentException e) {
+            if (!reused)
+                throw e;
+        }
+        disconnect();
+        T response = exchange.run();
+        if (response == null)
+            throw new IOException("Server closed the connection");
+        return response;
+    }
+
+    /**
+     * Thrown when a request could not be written at all, so it is safe to send again
+     */
+    private static final class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(IOException cause) {
+            super("Error writing to server", cause);
+        }
+    }
+
+    /**
+     * Pipelines many requests over the connection without waiting for each response. Every text request is
+     * tagged with a correlation ID, binary frames are answered in order anyway, and at most a window of requests
+     * is outstanding at a time, so neither side can fill the other's socket buffer while the other is not reading
+     * @param messages List of request lines
+     * @return List of response lines, in the same order as the requests, with their IDs removed
+     * @throws IOException if the server cannot be reached or closes the connection part way through
+     */
+    public synchronized List<String> sendAll(List<String> messages) throws IOException {
+        boolean reused = link != null;
+        try {
+            return pipeline(messages);
+        } catch (NotSentException e) {
+            if (!reused)
+                throw e;
+        }
+        return pipeline(messages);
+    }
+
+    /**
+     * Runs one pipelined exchange
+     * @return List of responses
+     * @throws NotSentException if not even the first window of requests could be written
+     */
+    private List<String> pipeline(List<String> messages) throws IOException {
+        connect();
+        if (frameOut != null)
+            return pipelineFrames(messages);
+        List<String> responses = new ArrayList<>(messages.size());
+        long firstId = nextId;
+        int sent = 0;
+        try {
+            while (responses.size() < messages.size()) {
+                while (sent < messages.size() && sent - responses.size() < PIPELINE_WINDOW) {
+                    out.print('#');
+                    out.print(nextId++);
+                    out.print(' ');
+                    out.println(messages.get(sent++));
+                }
+                out.flush();
+                if (out.checkError())
+                    throw responses.isEmpty() ? new NotSentException(null) : new IOException("Error writing to server");
+                String response = in.readLine();
+                if (response == null)
+                    throw new IOException("Server closed the connection");
+                String expected = "#" + (firstId + responses.size());
+                if (!response.startsWith(expected + " "))
+                    throw new IOException("Unexpected response " + response + ", was waiting for " + expected);
+                responses.add(response.substring(expected.length() + 1));
+            }
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+        return responses;
+    }
+
+    private List<String> pipelineFrames(List<String> messages) throws IOException {
+        List<String> responses = new ArrayList<>(messages.size());
+        int sent = 0;
+        try {
+            while (responses.size() < messages.size()) {
+                try {
+                    while (sent < messages.size() && sent - responses.size() < PIPELINE_WINDOW) {
+                        frameOut.write(BinaryProtocol.textRequest(messages.get(sent++)));
+                    }
+                    frameOut.flush();
+                } catch (IOException e) {
+                    throw responses.isEmpty() ? new NotSentException(e) : e;
+                }
+                ByteBuffer response = readFrame();
+                if (response == null)
+                    throw new IOException("Server closed the connection");
+                responses.add(BinaryProtocol.readText(response));
+            }
+        } catch (IOException | RuntimeException e) {
+            disconnect();
+            throw e instanceof IOException ? (IOException) e : new IOException("Unreadable response frame", e);
+        }
+        return responses;
+    }
+
+    private String exchange(String message) throws IOException {
+        connect();
+        if (frameOut != null) {
+            boolean quit = ConnectionHandler.isQuit(message);
+            ByteBuffer response = exchangeFrame(quit ? BinaryProtocol.quitRequest()
+                    : BinaryProtocol.textRequest(message));
+            if (quit)
+                disconnect();
+            return response == null ? null : BinaryProtocol.readText(response);
+        }
+        out.println(message);
+        out.flush();
+        if (out.checkError()) {
+            disconnect();
+            throw new NotSentException(null);
+        }
+        String response = in.readLine();
+        if (response == null || ConnectionHandler.isQuit(message))
+            disconnect();
+        return response;
+    }
+
+    /**
+     * Sends one frame and waits for the response frame
+     * @return ByteBuffer response frame without its length, or null if the server had closed the connection
+     */
+    private ByteBuffer exchangeFrame(byte[] frame) throws IOException {
+        try {
+            frameOut.write(frame);
+            frameOut.flush();
+        } catch (IOException e) {
+            disconnect();
+            throw new NotSentException(e);
+        }
+        ByteBuffer response = readFrame();
+        if (response == null)
+            disconnect();
+        return response;
+    }
+
+    private ByteBuffer readFrame() throws IOException {
+        int length;
+        try {
+            length = frameIn.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+            throw new IOException("Frame too long: " + length);
+        byte[] frame = new byte[length];
+        frameIn.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private void connect() throws IOException {
+        if (link != null && System.currentTimeMillis() - lastUsed > STALE_CHECK_MILLIS && isClosedByServer())
+            disconnect();
+        lastUsed = System.currentTimeMillis();
+        if (link != null)
+            return;
+        InetAddress host = hostName == null ? InetAddress.getLocalHost() : InetAddress.getByName(hostName);
+        link = new Socket(host, port);
+        link.setTcpNoDelay(true);
+        rawIn = new BufferedInputStream(link.getInputStream());
+        OutputStream rawOut = new BufferedOutputStream(link.getOutputStream());
+        if (binary && handshake(rawIn, rawOut)) {
+            frameIn = new DataInputStream(rawIn);
+            frameOut = new DataOutputStream(rawOut);
+            return;
+        }
+        in = new BufferedReader(new InputStreamReader(rawIn));
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(rawOut)));
+    }
+
+    /**
+     * Asks the server to switch to binary frames. A server that does not know the handshake answers it with an
+     * empty line, in which case the connection carries on as text
+     * @return true if the server agreed
+     */
+    private boolean handshake(InputStream rawIn, OutputStream rawOut) throws IOException {
+        rawOut.write((BinaryProtocol.HANDSHAKE + "\n").getBytes());
+        rawOut.flush();
+        StringBuilder reply = new StringBuilder();
+        int b;
+        while ((b = rawIn.read()) != '\n') {
+            if (b < 0)
+                throw new IOException("Server closed the connection");
+            reply.append((char) b);
+        }
+        return reply.toString().trim().equals(BinaryProtocol.HANDSHAKE);
+    }
+
+    /**
+     * Checks whether the server has closed the connection, e.g. after its idle timeout, by peeking at the next
+     * byte for at most a millisecond
+     * @return true if the connection can no longer be used
+     */
+    private boolean isClosedByServer() {
+        try {
+            if (in != null && in.ready())
+                return false;
+            int timeout = link.getSoTimeout();
+            link.setSoTimeout(1);
+            try {
+                rawIn.mark(1);
+                if (rawIn.read() < 0)
+                    return true;
+                rawIn.reset();
+            } catch (SocketTimeoutException e) {
+                // nothing to read, the connection is still open
+            } finally {
+                link.setSoTimeout(timeout);
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private void disconnect() {
+        if (link == null)
+            return;
+        try {
+            link.close();
+        } catch (IOException e) {
+            // already unusable, nothing more to do
+        }
+        link = null;
+        rawIn = null;
+        in = null;
+        out = null;
+        frameIn = null;
+        frameOut = null;
+    }
+
+    /**
+     * Says QUIT to the server if a connection is open and closes it
+     */
+    @Override
+    public synchronized void close() {
+        if (link != null && !link.isClosed()) {
+            if (frameOut != null) {
+                try {
+                    frameOut.write(BinaryProtocol.quitRequest());
+                    frameOut.flush();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            } else {
+                out.println(ConnectionHandler.QUIT);
+                out.flush();
+            }
+        }
+        disconnect();
+    }
+}
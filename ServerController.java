@@ -1,10 +1,28 @@
 package controller;
+import logging.AsyncLogger;
+import metrics.ServerMetrics;
+import model.SchedulerRegistry;
 import model.SessionScheduler;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.*;
 public class ServerController {
-    private final ServerSocket serverSocket;
-    private final SessionScheduler scheduler;
+    /**
+     * BLOCKING runs one ConnectionHandler per client connection, NIO multiplexes all connections over a few
+     * selector threads and hands complete requests to a bounded worker pool
+     */
+    public enum Mode { BLOCKING, NIO }
+
+    private final ServerSocketChannel serverChannel;
+    private final SchedulerRegistry registry;
+    private final ClusterRouter cluster;
+    private final ServerConfig config;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    // created by start() and read by stop(), usually from a shutdown hook, both under the lock
+    private ExecutorService executor;
+    private NioServer nioServer;
     private volatile boolean running = true;
 
     /**
@@ -13,35 +31,207 @@ public class ServerController {
      * @param scheduler SessionScheduler scheduler
      */
     public ServerController(int port, SessionScheduler scheduler) {
+        this(port, scheduler, Mode.BLOCKING);
+    }
+
+    /**
+     * Constructor for the ServerController class
+     * @param port int port
+     * @param scheduler SessionScheduler scheduler
+     * @param mode Mode blocking thread-per-connection or NIO selector based
+     */
+    public ServerController(int port, SessionScheduler scheduler, Mode mode) {
+        this(withPortAndMode(port, mode), scheduler);
+    }
+
+    /**
+     * Constructor for the ServerController class
+     * @param config ServerConfig port, mode and execution strategy
+     * @param scheduler SessionScheduler scheduler
+     */
+    public ServerController(ServerConfig config, SessionScheduler scheduler) {
+        this(config, new SchedulerRegistry(scheduler));
+    }
+
+    /**
+     * Constructor for a multi-tenant ServerController, each connection uses the default tenant until it sends 'USE'
+     * @param config ServerConfig port, mode and execution strategy
+     * @param registry SchedulerRegistry holding every tenant's scheduler
+     */
+    public ServerController(ServerConfig config, SchedulerRegistry registry) {
+        this(config, registry, null);
+    }
+
+    /**
+     * Constructor for a ServerController running as one node of a cluster
+     * @param config ServerConfig port, mode and execution strategy
+     * @param registry SchedulerRegistry holding the partitions kept on this node
+     * @param cluster ClusterRouter routing requests to the nodes owning them, or null to run on its own
+     */
+    public ServerController(ServerConfig config, SchedulerRegistry registry, ClusterRouter cluster) {
+        // a node waits on other nodes while handling a request, with a bounded pool of request threads every
+        // node's threads can end up waiting on each other's
+        if (cluster != null && (config.getMode() == Mode.NIO || config.getExecution() == ServerConfig.Execution.FIXED_POOL))
+            throw new IllegalArgumentException("A cluster node needs a thread per connection or virtual threads");
+        this.cluster = cluster;
         try {
-            this.serverSocket = new ServerSocket(port);
-            this.scheduler = scheduler;
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(new InetSocketAddress(config.getPort()));
+            this.registry = registry;
+            this.config = config;
         } catch (IOException e) {
             throw new RuntimeException("Failed to create server socket", e);
         }
     }
 
+    private static ServerConfig withPortAndMode(int port, Mode mode) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        config.setMode(mode);
+        return config;
+    }
+
     /**
-     * Start method which establishes a new Thread for each client connection
+     * Start method which serves client connections until stop() is called. Nothing is started once stop() has
+     * been called
      */
     public void start() {
+        ExecutorService executor;
+        NioServer nioServer;
+        synchronized (this) {
+            if (!running)
+                return;
+            if (config.getMode() == Mode.NIO) {
+                int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+                nioServer = new NioServer(serverChannel, registry, cluster, ioThreads, config.getPoolSize(),
+                        config.getQueueCapacity(), config.getIdleTimeoutMillis());
+                this.nioServer = nioServer;
+                executor = null;
+            } else {
+                nioServer = null;
+                executor = createExecutor(config.getExecution(), config.getPoolSize());
+                this.executor = executor;
+            }
+        }
+        if (nioServer != null) {
+            // serves on this thread until stopped
+            nioServer.start();
+            return;
+        }
+        ServerSocket serverSocket = serverChannel.socket();
         while (running) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new ConnectionHandler(clientSocket, new SessionController(scheduler))).start();
+                connections.add(clientSocket);
+                ConnectionHandler handler = new ConnectionHandler(clientSocket,
+                        new SessionController(registry, cluster, clientSocket.getInetAddress()),
+                        config.getIdleTimeoutMillis());
+                // a connection waiting for a pool thread counts towards the queue depth until it gets one
+                ServerMetrics.get().queued(1);
+                executor.execute(() -> {
+                    ServerMetrics.get().queued(-1);
+                    try {
+                        handler.run();
+                    } finally {
+                        connections.remove(clientSocket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                ServerMetrics.get().queued(-1);
+                break;
             } catch (IOException e) {
-                System.out.println("Error accepting client connection: " + e.getMessage());
+                if (running)
+                    AsyncLogger.get().warn("Error accepting client connection", "error", e.getMessage());
             }
         }
     }
+
+    /**
+     * Stops accepting connections, gives the running handlers the configured grace period to finish and then
+     * closes whatever connections are still open
+     */
     public void stop() {
-        running = false;
+        ExecutorService executor;
+        NioServer nioServer;
+        synchronized (this) {
+            running = false;
+            executor = this.executor;
+            nioServer = this.nioServer;
+        }
+        if (nioServer != null)
+            nioServer.stop();
         try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
+            serverChannel.close();
         } catch (IOException e) {
-            System.out.println("Error closing server socket: " + e.getMessage());
+            AsyncLogger.get().warn("Error closing server socket", "error", e.getMessage());
+        }
+        if (executor == null)
+            return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(config.getShutdownGraceMillis(), TimeUnit.MILLISECONDS)) {
+                for (Socket socket : connections) {
+                    // one connection failing to close must not leave the others open
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        AsyncLogger.get().warn("Error closing client connection", "error", e.getMessage());
+                    }
+                }
+                ServerMetrics.get().queued(-executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            ServerMetrics.get().queued(-executor.shutdownNow().size());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the port the server is listening on
+     * @return int local port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Creates the executor the blocking server hands each ConnectionHandler to
+     * @param execution Execution strategy
+     * @param poolSize int number of threads for FIXED_POOL
+     * @return ExecutorService executor
+     */
+    static ExecutorService createExecutor(ServerConfig.Execution execution, int poolSize) {
+        switch (execution) {
+            case FIXED_POOL:
+                return Executors.newFixedThreadPool(poolSize);
+            case VIRTUAL_THREADS:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null)
+                    return virtual;
+                AsyncLogger.get().warn("Virtual threads are not available on this JDK, using a thread per connection");
+                return newThreadPerTaskExecutor();
+            default:
+                return newThreadPerTaskExecutor();
+        }
+    }
+
+    /**
+     * A new platform thread per task, but one that shutdown() and awaitTermination() can manage
+     * @return ExecutorService executor
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>());
+    }
+
+    /**
+     * Looks the virtual thread executor up reflectively so the server still compiles and runs on JDKs without it
+     * @return ExecutorService running each task on a new virtual thread, or null if the JDK has none
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 }
@@ -0,0 +1,266 @@
+package metrics;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms of the server, one set per JVM shared by every connection and tenant.
+ * Every update is a few uncontended atomic operations, cheap enough for the request path. A request's latency is
+ * split into phases: parse, reading its arguments, scheduler, carrying it out once parsed, and write, putting the
+ * responses on the socket. Only requests whose arguments are read before they are carried out, the in-place ADD
+ * and REMOVE and their binary frames, have a parse phase of their own, for the others it is part of scheduler
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /**
+     * The commands requests are counted under, OTHER for anything unrecognised
+     */
+    public enum Command {
+        ADD, REMOVE, BATCH_ADD, BATCH_REMOVE, DISPLAY, EARLY_LECTURES, OPTIMIZE, USE, CLUSTER, IMPORT, EXPORT, STOP,
+        SUBSCRIBE, UNSUBSCRIBE, OTHER;
+
+        private static final Command[] VALUES = values();
+
+        /**
+         * The command a request line starts with, found without taking the identifier out of the line
+         * @param line String request line without a correlation ID
+         * @param identifierEnd int index just after the identifier
+         * @return Command of the line, OTHER if it is not one
+         */
+        public static Command of(String line, int identifierEnd) {
+            for (Command command : VALUES) {
+                if (command != OTHER && identifierEnd == command.name().length() && line.startsWith(command.name()))
+                    return command;
+            }
+            return OTHER;
+        }
+    }
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+    static final String OBJECT_NAME = "scheduler:type=ServerMetrics";
+
+    private final LongAdder[] requests = new LongAdder[Command.VALUES.length];
+    private final LongAdder[] errors = new LongAdder[Command.VALUES.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Command.VALUES.length];
+    private final LatencyHistogram parse = new LatencyHistogram();
+    private final LatencyHistogram scheduler = new LatencyHistogram();
+    private final LatencyHistogram write = new LatencyHistogram();
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder queueDepth = new LongAdder();
+
+    private ServerMetrics() {
+        for (int i = 0; i < Command.VALUES.length; i++) {
+            requests[i] = new LongAdder();
+            errors[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * The metrics of this JVM's server
+     * @return ServerMetrics metrics
+     */
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBeanServer, doing nothing if they already are
+     * @throws JMException if JMX refuses them
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by an earlier server in this JVM
+        }
+    }
+
+    /**
+     * Records a handled request
+     * @param command Command of the request
+     * @param startNanos long System.nanoTime() when handling began
+     * @param parsedNanos long System.nanoTime() once its arguments were read, startNanos if they were not read apart
+     * @param failed boolean true if the request was answered with an ERROR
+     */
+    public void handled(Command command, long startNanos, long parsedNanos, boolean failed) {
+        long end = System.nanoTime();
+        int i = command.ordinal();
+        requests[i].increment();
+        if (failed)
+            errors[i].increment();
+        latencies[i].record(end - startNanos);
+        if (parsedNanos != startNanos)
+            parse.record(parsedNanos - startNanos);
+        scheduler.record(end - parsedNanos);
+    }
+
+    /**
+     * Records the time taken to write responses to a socket
+     * @param nanos long nanoseconds the write took
+     */
+    public void written(long nanos) {
+        write.record(nanos);
+    }
+
+    /**
+     * Records a wait for a lock another thread held
+     * @param nanos long nanoseconds waited
+     */
+    public void lockWaited(long nanos) {
+        lockWait.record(nanos);
+    }
+
+    /**
+     * Counts a client connection as open until connectionClosed() is called for it
+     */
+    public void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    /**
+     * Counts a client connection as closed
+     */
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Changes the number of requests waiting to be handled
+     * @param delta int requests queued, negative for requests taken off the queue
+     */
+    public void queued(int delta) {
+        queueDepth.add(delta);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequests() {
+        return counts(requests);
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        return counts(errors);
+    }
+
+    @Override
+    public Map<String, Double> getRequestP99Millis() {
+        Map<String, Double> p99 = new LinkedHashMap<>();
+        for (Command command : Command.VALUES) {
+            p99.put(command.name(), latencies[command.ordinal()].getValueAtPercentile(99) / 1e6);
+        }
+        return p99;
+    }
+
+    @Override
+    public Map<String, Double> getParseMillis() {
+        return summary(parse);
+    }
+
+    @Override
+    public Map<String, Double> getSchedulerMillis() {
+        return summary(scheduler);
+    }
+
+    @Override
+    public Map<String, Double> getWriteMillis() {
+        return summary(write);
+    }
+
+    @Override
+    public Map<String, Double> getLockWaitMillis() {
+        return summary(lockWait);
+    }
+
+    @Override
+    public long getLockWaits() {
+        return lockWait.getCount();
+    }
+
+    private static Map<String, Long> counts(LongAdder[] adders) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Command command : Command.VALUES) {
+            counts.put(command.name(), adders[command.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    private static Map<String, Double> summary(LatencyHistogram histogram) {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        summary.put("mean", histogram.getMean() / 1e6);
+        summary.put("p50", histogram.getValueAtPercentile(50) / 1e6);
+        summary.put("p99", histogram.getValueAtPercentile(99) / 1e6);
+        summary.put("p999", histogram.getValueAtPercentile(99.9) / 1e6);
+        summary.put("max", histogram.getMax() / 1e6);
+        return summary;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format, latencies as summaries in seconds
+     * @param out StringBuilder to append to
+     */
+    public void writeText(StringBuilder out) {
+        type(out, "scheduler_requests_total", "counter", "Requests handled, by command");
+        for (Command command : Command.VALUES) {
+            out.append("scheduler_requests_total{command=\"").append(command).append("\"} ")
+                    .append(requests[command.ordinal()].sum()).append('\n');
+        }
+        type(out, "scheduler_request_errors_total", "counter", "Requests answered with an ERROR, by command");
+        for (Command command : Command.VALUES) {
+            out.append("scheduler_request_errors_total{command=\"").append(command).append("\"} ")
+                    .append(errors[command.ordinal()].sum()).append('\n');
+        }
+        type(out, "scheduler_request_seconds", "summary", "Time to parse and carry out a request, by command");
+        for (Command command : Command.VALUES) {
+            summary(out, "scheduler_request_seconds", "command=\"" + command + "\"", latencies[command.ordinal()]);
+        }
+        type(out, "scheduler_phase_seconds", "summary", "Time spent in each phase of handling requests");
+        summary(out, "scheduler_phase_seconds", "phase=\"parse\"", parse);
+        summary(out, "scheduler_phase_seconds", "phase=\"scheduler\"", scheduler);
+        summary(out, "scheduler_phase_seconds", "phase=\"write\"", write);
+        type(out, "scheduler_lock_wait_seconds", "summary", "Time spent waiting for a day's lock held by another thread");
+        summary(out, "scheduler_lock_wait_seconds", "", lockWait);
+        type(out, "scheduler_active_connections", "gauge", "Client connections currently open");
+        out.append("scheduler_active_connections ").append(getActiveConnections()).append('\n');
+        type(out, "scheduler_queue_depth", "gauge", "Requests waiting for a thread to handle them");
+        out.append("scheduler_queue_depth ").append(getQueueDepth()).append('\n');
+    }
+
+    private static void type(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+            long nanos = histogram.getValueAtPercentile(Double.parseDouble(quantile) * 100);
+            out.append(name).append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(nanos)).append('\n');
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,58 @@
+package metrics;
+import java.util.Map;
+
+/**
+ * The server's metrics as JMX sees them, registered under 'scheduler:type=ServerMetrics'. Latencies are given in
+ * milliseconds as maps of 'mean', 'p50', 'p99', 'p999' and 'max'
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * @return long client connections currently open
+     */
+    long getActiveConnections();
+
+    /**
+     * @return long requests received but not yet taken up by a thread to handle them
+     */
+    long getQueueDepth();
+
+    /**
+     * @return Map of each command to the number of requests for it handled since the server started
+     */
+    Map<String, Long> getRequests();
+
+    /**
+     * @return Map of each command to the number of its requests answered with an ERROR
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * @return Map of each command to its 99th percentile latency in milliseconds, parse and scheduler phases together
+     */
+    Map<String, Double> getRequestP99Millis();
+
+    /**
+     * @return Map of latencies of reading a request's arguments
+     */
+    Map<String, Double> getParseMillis();
+
+    /**
+     * @return Map of latencies of carrying out a request once it is parsed, including any lock wait
+     */
+    Map<String, Double> getSchedulerMillis();
+
+    /**
+     * @return Map of latencies of writing responses to the socket
+     */
+    Map<String, Double> getWriteMillis();
+
+    /**
+     * @return Map of latencies of waiting for a day's lock held by another thread
+     */
+    Map<String, Double> getLockWaitMillis();
+
+    /**
+     * @return long times a thread had to wait for a day's lock
+     */
+    long getLockWaits();
+}
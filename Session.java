@@ -3,6 +3,7 @@ package model;
 import java.time.Duration;
 import java.time.LocalTime;
 import java.time.DayOfWeek;
+import java.util.Objects;
 
 public class Session {
     private DayOfWeek day;
@@ -62,6 +63,15 @@ public class Session {
                 && room.equals(b.room) && className.equals(b.className);
     }
 
+    /**
+     * Hash code consistent with equals(), so Sessions can be kept in hash based collections
+     * @return int hash code
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(day, startTime, endTime, room, className);
+    }
+
     /**
      * Checks to see if two sessions are equal, besides their class name and description
      * @param other An object which will be parsed to a Session
@@ -1,21 +1,141 @@
 package controller;
+import model.EarlyLecturesEngine;
+import model.IncorrectActionException;
+import model.SchedulerRegistry;
+import model.ScheduleStream;
 import model.Session;
 import model.SessionScheduler;
+import model.TimetableSolver;
+import logging.AsyncLogger;
+import metrics.ServerMetrics;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.DayOfWeek;
 import java.time.LocalTime;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveAction;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
 public class SessionController {
-    private SessionScheduler scheduler;
+    private static final EarlyLecturesEngine EARLY_LECTURES = new EarlyLecturesEngine();
+    private static final TimetableSolver SOLVER = new TimetableSolver();
+    private static final long DEFAULT_OPTIMIZE_MILLIS = 2_000;
+    private static final long MAX_OPTIMIZE_MILLIS = 60_000;
+
+    private final SchedulerRegistry registry;
+    private final ClusterRouter cluster;
+    // address the connection comes from, null if unknown
+    private final InetAddress remote;
+    private final RequestTokenizer tokenizer = new RequestTokenizer();
+    private Import importing;
+    private String tenant = SchedulerRegistry.DEFAULT_TENANT;
+    private SchedulerRegistry.Shard shard;
+    private boolean closed = false;
+    private ScheduleSubscription subscription;
+    // a subscription made by the last request, which the server starts once the response is on its way
+    private ScheduleSubscription unstarted;
+    // true while a change routed to this node as a partition's primary or replica is applied here
+    private boolean applying = false;
 
     /**
      * Constructor for the SessionController
      * @param scheduler
      */
     public SessionController(SessionScheduler scheduler){
-        this.scheduler=scheduler;
+        this(new SchedulerRegistry(scheduler));
+    }
+
+    /**
+     * Constructor for a SessionController serving one connection of a multi-tenant server. Requests go to the
+     * default tenant until the client sends 'USE'
+     * @param registry SchedulerRegistry holding every tenant's scheduler
+     */
+    public SessionController(SchedulerRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * Constructor for a SessionController serving one connection of a cluster node. ADD, REMOVE, EARLY_LECTURES
+     * and DISPLAY are routed to the nodes owning the days they touch. The connection's address is unknown, so
+     * 'CLUSTER' requests are refused
+     * @param registry SchedulerRegistry holding the tenants' partitions kept on this node
+     * @param cluster ClusterRouter, or null if the server runs on its own
+     */
+    public SessionController(SchedulerRegistry registry, ClusterRouter cluster) {
+        this(registry, cluster, null);
+    }
+
+    /**
+     * Constructor for a SessionController serving one connection of a cluster node, which only accepts the
+     * 'CLUSTER' requests nodes send each other from the addresses of the cluster's nodes
+     * @param registry SchedulerRegistry holding the tenants' partitions kept on this node
+     * @param cluster ClusterRouter, or null if the server runs on its own
+     * @param remote InetAddress the connection comes from, or null if unknown
+     */
+    public SessionController(SchedulerRegistry registry, ClusterRouter cluster, InetAddress remote) {
+        this.registry = registry;
+        this.cluster = cluster;
+        this.remote = remote;
+    }
+
+    /**
+     * Gives back the lease on the current tenant once the connection is closed, so the tenant can be evicted
+     */
+    public synchronized void close() {
+        closed = true;
+        unsubscribe();
+        if (shard != null) {
+            shard.release();
+            shard = null;
+        }
+    }
+
+    /**
+     * Handles a request line whose identifier ends at identifierEnd and whose arguments start at remainderStart.
+     * ADD and REMOVE arguments are read in place by the RequestTokenizer, everything else, and anything the
+     * tokenizer leaves to the full parser, goes through handleIdentifier. Every request is counted in the
+     * ServerMetrics under its command, with the time taken to parse it and to carry it out
+     * @param line String request line
+     * @param identifierEnd int index just after the identifier
+     * @param remainderStart int index of the first argument
+     * @return Appropriate response from the server
+     * @throws IncorrectActionException If message received is not in the correct format
+     */
+    public String handleRequest(String line, int identifierEnd, int remainderStart) throws IncorrectActionException {
+        long start = System.nanoTime();
+        long parsed = start;
+        ServerMetrics.Command command = ServerMetrics.Command.of(line, identifierEnd);
+        boolean failed = true;
+        try {
+            String response;
+            Session session;
+            if (command == ServerMetrics.Command.ADD
+                    && (session = tokenizer.reset(line, remainderStart).readSession()) != null) {
+                checkTimes(session.getStartTime(), session.getEndTime());
+                parsed = System.nanoTime();
+                response = addSession(session);
+            } else if (command == ServerMetrics.Command.REMOVE && tokenizer.reset(line, remainderStart).readSlot()) {
+                tokenizer.expectEnd();
+                checkTimes(tokenizer.getStartTime(), tokenizer.getEndTime());
+                parsed = System.nanoTime();
+                response = removeSlot(tokenizer.getDay(), tokenizer.getStartTime(), tokenizer.getEndTime(),
+                        tokenizer.getRoom());
+            } else {
+                response = handleIdentifier(line.substring(0, identifierEnd), line.substring(remainderStart));
+            }
+            failed = response != null && response.startsWith("ERROR");
+            return response;
+        } finally {
+            ServerMetrics.get().handled(command, start, parsed, failed);
+        }
     }
 
     /**
@@ -25,7 +145,7 @@ public class SessionController {
      * @return Appropriate response from the server
      * @throws IncorrectActionException If message received is not in the correct format
      */
-    public synchronized String handleIdentifier(String identifier, String message) throws IncorrectActionException {
+    public String handleIdentifier(String identifier, String message) throws IncorrectActionException {
         String response="";
         switch (identifier) {
             case "ADD":
@@ -34,6 +154,12 @@ public class SessionController {
             case "REMOVE":
                 response = handleRemove(message);
                 break;
+            case "BATCH_ADD":
+                response = handleBatchAdd(message);
+                break;
+            case "BATCH_REMOVE":
+                response = handleBatchRemove(message);
+                break;
             case "DISPLAY":
                 response = handleDisplay(message);
                 break;
@@ -43,6 +169,24 @@ public class SessionController {
             case "EARLY_LECTURES":
                 response = handleEarlyLectures(message);
                 break;
+            case "OPTIMIZE":
+                response = handleOptimize(message);
+                break;
+            case "USE":
+                response = handleUse(message);
+                break;
+            case "CLUSTER":
+                response = handleCluster(message);
+                break;
+            case "IMPORT":
+                response = handleImport(message);
+                break;
+            case "SUBSCRIBE":
+                response = handleSubscribe(message);
+                break;
+            case "UNSUBSCRIBE":
+                response = handleUnsubscribe();
+                break;
         }
         return response;
     }
@@ -53,11 +197,35 @@ public class SessionController {
      * @return Response depending on if the addition was successful or not
      * @throws IncorrectActionException
      */
-    private synchronized String handleAdd(String remainder) throws IncorrectActionException {
-        Session session = parseSession(remainder);
+    private String handleAdd(String remainder) throws IncorrectActionException {
+        return addSession(parseSession(remainder));
+    }
+
+    /**
+     * Handles the 'ADD' case for a Session that arrived already decoded, checked the same way as a parsed one
+     * @param session Session to be added
+     * @return Response depending on if the addition was successful or not
+     * @throws IncorrectActionException If the Session is not valid
+     */
+    public String handleAdd(Session session) throws IncorrectActionException {
+        if (session.getRoom().isEmpty() || session.getClassName().isEmpty()) {
+            throw new IncorrectActionException();
+        }
+        checkTimes(session.getStartTime(), session.getEndTime());
+        return addSession(new Session(session.getDay(), session.getStartTime(), session.getEndTime(),
+                session.getRoom().toUpperCase(), session.getClassName().toUpperCase(),
+                session.getDescription().toUpperCase()));
+    }
+
+    private String addSession(Session session) throws IncorrectActionException {
+        if (cluster != null && !applying)
+            return routeChange(session.getDay(), "ADD " + session.format());
+        SessionScheduler scheduler = scheduler();
         boolean added = scheduler.add(session);
-        if (added)
+        if (added) {
+            awaitDurable(scheduler);
             return "SUCCESS Class scheduled successfully";
+        }
         else
             return "ERROR There is already a class booked for this time slot";
 
@@ -69,14 +237,256 @@ public class SessionController {
      * @return Response depending on if the removal was successful or not
      * @throws IncorrectActionException
      */
-    private synchronized String handleRemove(String remainder) throws IncorrectActionException {
-            Session session = parseSession(remainder + " a a");//" a a" included for parsing purposes, has no effect on remove method
-            boolean removed = scheduler.remove(session);
-           if(removed)
-               return "SUCCESS The freed time slot is " + session.formatTimeSlot();
-           else
-               return "ERROR There is no class booked " + session.formatTimeSlot();
+    private String handleRemove(String remainder) throws IncorrectActionException {
+        Session slot = parseSlot(remainder);
+        return removeSlot(slot.getDay(), slot.getStartTime(), slot.getEndTime(), slot.getRoom());
+    }
+
+    /**
+     * Handles the 'REMOVE' case for a time slot that arrived already decoded
+     * @param day DayOfWeek day of the Session
+     * @param startTime LocalTime start time
+     * @param endTime LocalTime end time
+     * @param room String room
+     * @return Response depending on if the removal was successful or not
+     * @throws IncorrectActionException If the time slot is not valid
+     */
+    public String handleRemove(DayOfWeek day, LocalTime startTime, LocalTime endTime, String room)
+            throws IncorrectActionException {
+        room = room.toUpperCase();
+        if (room.isEmpty()) {
+            throw new IncorrectActionException();
+        }
+        checkTimes(startTime, endTime);
+        return removeSlot(day, startTime, endTime, room);
+    }
+
+    private String removeSlot(DayOfWeek day, LocalTime startTime, LocalTime endTime, String room)
+            throws IncorrectActionException {
+        if (cluster != null && !applying)
+            return routeChange(day, "REMOVE " + day + " " + startTime + " " + endTime + " " + room);
+        SessionScheduler scheduler = scheduler();
+        Session removed = scheduler.remove(day, startTime, endTime, room);
+        String timeSlot = day + " " + startTime + " " + endTime + " " + room;
+        if (removed != null) {
+            awaitDurable(scheduler);
+            return "SUCCESS The freed time slot is " + timeSlot;
+        }
+        else
+            return "ERROR There is no class booked " + timeSlot;
+    }
+
+    /**
+     * Handles the 'BATCH_ADD' case, e.g. 'BATCH_ADD MONDAY 09:00 10:00 R1 CS101 LAB, MONDAY 10:00 11:00 R1 CS102 LAB',
+     * adding many Sessions in one request. The Sessions are checked against the schedule and each other in one
+     * pass and either all of them are added or, if any row is rejected, none of them are
+     * @param message String Sessions as 'ADD' takes them, separated by ', '
+     * @return String response with the number of Sessions added, or each rejected row and why
+     * @throws IncorrectActionException If there are no Sessions
+     */
+    private String handleBatchAdd(String message) throws IncorrectActionException {
+        if (message.trim().isEmpty()) {
+            throw new IncorrectActionException();
+        }
+        if (cluster != null)
+            return "ERROR BATCH_ADD may span days kept on different nodes, which is not possible in a cluster";
+        String[] rows = message.split(", ");
+        List<Session> sessions = new ArrayList<>(rows.length);
+        StringBuilder invalid = new StringBuilder();
+        for (int i = 0; i < rows.length; i++) {
+            try {
+                sessions.add(parseSession(rows[i]));
+            } catch (IncorrectActionException e) {
+                rejectedRow(invalid, i, "Not a valid Session");
+            }
+        }
+        if (invalid.length() > 0)
+            return "ERROR Nothing was scheduled, rejected rows: " + invalid;
+
+        SessionScheduler scheduler = scheduler();
+        SortedMap<Integer, String> rejected = scheduler.addAll(sessions);
+        if (!rejected.isEmpty())
+            return "ERROR Nothing was scheduled, rejected rows: " + rejectedRows(rejected);
+        awaitDurable(scheduler);
+        return "SUCCESS " + sessions.size() + " classes scheduled successfully";
+    }
+
+    /**
+     * Handles the 'BATCH_REMOVE' case, e.g. 'BATCH_REMOVE MONDAY 09:00 10:00 R1, MONDAY 10:00 11:00 R1', freeing
+     * many time slots in one request. Either every slot is freed or, if any row is rejected, none of them are
+     * @param message String time slots as 'REMOVE' takes them, separated by ', '
+     * @return String response with the number of slots freed, or each rejected row and why
+     * @throws IncorrectActionException If there are no time slots
+     */
+    private String handleBatchRemove(String message) throws IncorrectActionException {
+        if (message.trim().isEmpty()) {
+            throw new IncorrectActionException();
+        }
+        if (cluster != null)
+            return "ERROR BATCH_REMOVE may span days kept on different nodes, which is not possible in a cluster";
+        String[] rows = message.split(", ");
+        List<Session> slots = new ArrayList<>(rows.length);
+        StringBuilder invalid = new StringBuilder();
+        for (int i = 0; i < rows.length; i++) {
+            try {
+                slots.add(parseSlot(rows[i]));
+            } catch (IncorrectActionException e) {
+                rejectedRow(invalid, i, "Not a valid time slot");
+            }
+        }
+        if (invalid.length() > 0)
+            return "ERROR Nothing was removed, rejected rows: " + invalid;
+
+        SessionScheduler scheduler = scheduler();
+        SortedMap<Integer, String> rejected = scheduler.removeAll(slots);
+        if (!rejected.isEmpty())
+            return "ERROR Nothing was removed, rejected rows: " + rejectedRows(rejected);
+        awaitDurable(scheduler);
+        return "SUCCESS " + slots.size() + " time slots freed";
+    }
+
+    private static String rejectedRows(SortedMap<Integer, String> rejected) {
+        StringBuilder rows = new StringBuilder();
+        for (Map.Entry<Integer, String> entry : rejected.entrySet()) {
+            rejectedRow(rows, entry.getKey(), entry.getValue());
+        }
+        return rows.toString();
+    }
+
+    /**
+     * Appends a rejected row to an error response as 'row reason', rows numbered from 1 and separated by '; '
+     */
+    private static void rejectedRow(StringBuilder rows, long index, String reason) {
+        if (rows.length() > 0)
+            rows.append("; ");
+        rows.append(index + 1).append(' ').append(reason);
+    }
+
+    /**
+     * Handles the 'IMPORT' case, e.g. 'IMPORT CSV', after which every line the client sends is a row of the
+     * timetable until a line 'END'. Rows are added one at a time as they arrive, so a file of any size is
+     * imported in constant memory, and a rejected row does not stop the rows after it. There is no response
+     * until the 'END'
+     * @param message String format of the rows, CSV or JSONL
+     * @return null, the response comes once the import ends
+     * @throws IncorrectActionException If the format is not one the server reads
+     */
+    private String handleImport(String message) throws IncorrectActionException {
+        try {
+            importing = new Import(TimetableFormat.valueOf(message.trim().toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new IncorrectActionException();
+        }
+        return null;
+    }
+
+    /**
+     * True while the lines the client sends are rows of an 'IMPORT' rather than requests
+     * @return boolean
+     */
+    public boolean isImporting() {
+        return importing != null;
+    }
+
+    /**
+     * Handles one line of an 'IMPORT'. The Session is checked exactly as one sent with 'ADD'
+     * @param row String row, or 'END' to finish the import
+     * @return null, or once the import ends the response counting the Sessions imported and listing the
+     *         first rows rejected and why
+     * @throws IncorrectActionException If the tenant cannot be loaded
+     */
+    public String importRow(String row) throws IncorrectActionException {
+        Import current = importing;
+        if (row.trim().equals("END")) {
+            importing = null;
+            if (current.imported > 0 && cluster == null)
+                awaitDurable(scheduler());
+            return current.response();
+        }
+        current.line++;
+        if (current.line == 1 && row.trim().equalsIgnoreCase(current.format.header()))
+            return null;
+        String[] fields = current.format.fields(row);
+        Session session;
+        try {
+            if (fields == null) {
+                throw new IncorrectActionException();
+            }
+            // joined back into the form 'ADD' takes, so a field holding a space is rejected as it is there
+            session = parseSession(String.join(" ", fields));
+        } catch (IncorrectActionException e) {
+            current.reject("Not a valid Session");
+            return null;
+        }
+        if (cluster != null) {
+            String response = routeChange(session.getDay(), "ADD " + session.format());
+            if (response.startsWith("SUCCESS"))
+                current.imported++;
+            else
+                current.reject(response.startsWith("ERROR ") ? response.substring(6) : response);
+        } else if (scheduler().add(session)) {
+            // durable as a whole once the import ends
+            current.imported++;
+        } else {
+            current.reject("There is already a class booked for this time slot");
+        }
+        return null;
+    }
+
+    /**
+     * Handles the 'EXPORT' case, e.g. 'EXPORT CSV' or 'EXPORT JSONL CS101', for a server that writes the rows
+     * itself. The rows of the whole schedule are formatted a day at a time as they are taken, so the timetable
+     * is never held as one piece of text. Each day is consistent, but a change made during the export may
+     * show in the days not yet taken
+     * @param message String format of the rows, CSV or JSONL, optionally followed by a class name
+     * @return Iterator of rows in day and start time order, starting with the format's header if it has one
+     * @throws IncorrectActionException If the format is not one the server writes or the tenant cannot be loaded
+     */
+    public Iterator<String> export(String message) throws IncorrectActionException {
+        String[] options = message.trim().split("\\s+");
+        if (options.length > 2) {
+            throw new IncorrectActionException();
+        }
+        TimetableFormat format;
+        try {
+            format = TimetableFormat.valueOf(options[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IncorrectActionException();
+        }
+        if (cluster != null)
+            throw new IncorrectActionException("EXPORT is not possible in a cluster, use DISPLAY");
+        SessionScheduler scheduler = scheduler();
+        String className = options.length == 2 ? options[1] : null;
+        return new Iterator<String>() {
+            private String header = format.header();
+            private int day = 0;
+            private Iterator<Session> sessions = className == null ? null
+                    : scheduler.getListSchedule(className).iterator();
 
+            @Override
+            public boolean hasNext() {
+                if (header != null)
+                    return true;
+                while (sessions == null || !sessions.hasNext()) {
+                    if (className != null || day == DayOfWeek.values().length)
+                        return false;
+                    sessions = scheduler.getListSchedule(DayOfWeek.values()[day++]).iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                if (header != null) {
+                    String line = header;
+                    header = null;
+                    return line;
+                }
+                return format.format(sessions.next());
+            }
+        };
     }
 
     /**
@@ -85,32 +495,65 @@ public class SessionController {
      * @return String containing Sessions with display prefix or ERROR message if there are no scheduled sessions
      * @throws IncorrectActionException
      */
-    private synchronized String handleDisplay(String message) throws IncorrectActionException {
+    private String handleDisplay(String message) throws IncorrectActionException {
+        if (cluster != null)
+            return routeDisplay(message);
         if (message.equals("ALL")) {
-            if(scheduler.getSchedule().isEmpty())
+            String schedule = scheduler().getSchedule();
+            if(schedule.isEmpty())
                 return "ERROR There are no scheduled Sessions";
-            else {
-                System.out.println(scheduler.getSchedule());
-                String schedule = scheduler.getSchedule();
-                return "DISPLAY ALL;" + schedule;
-            }
+            return "DISPLAY ALL;" + schedule;
         } else {
-            boolean contains = false;
-            for (Session s : scheduler.getListSchedule()) {
-                if (s.getClassName().equals(message)) {
-                    contains = true;
-                    break;
-                }
-            }
-            if (!contains)
+            String schedule = scheduler().getSchedule(message);
+            if (schedule.isEmpty())
                 return "ERROR There are no scheduled Sessions";
-
-            System.out.println(scheduler.getSchedule(message));
-            String schedule = scheduler.getSchedule(message);
             return "DISPLAY " + message + ";" + schedule;
         }
     }
 
+    /**
+     * Starts answering a 'DISPLAY ALL' with buffers taken straight from the schedule's stores, or its cached
+     * encoded text, for a server that writes them to the socket itself. The buffers are UTF-8, so this is only
+     * done when responses are too
+     * @return ScheduleStream of the text following 'DISPLAY ALL;', or null to answer through handleRequest
+     */
+    public ScheduleStream streamDisplayAll() {
+        if (cluster != null || importing != null || !StandardCharsets.UTF_8.equals(Charset.defaultCharset()))
+            return null;
+        long start = System.nanoTime();
+        try {
+            ScheduleStream stream = scheduler().streamSchedule();
+            ServerMetrics.get().handled(ServerMetrics.Command.DISPLAY, start, start, false);
+            return stream;
+        } catch (IncorrectActionException e) {
+            // answered with the error by handleRequest instead
+            return null;
+        }
+    }
+
+    /**
+     * Returns the Sessions a 'DISPLAY' asks for, for clients that take them as Sessions rather than text
+     * @param message String either 'ALL' or a specific class name
+     * @return List of Sessions in day and start time order, empty if there are none
+     * @throws IncorrectActionException If the tenant cannot be loaded
+     */
+    public List<Session> getSessions(String message) throws IncorrectActionException {
+        if (cluster != null) {
+            String response = routeDisplay(message);
+            List<Session> sessions = new ArrayList<>();
+            if (!response.startsWith("DISPLAY"))
+                return sessions;
+            for (String session : response.substring(response.indexOf(';') + 1).split(", ")) {
+                sessions.add(new Session(session));
+            }
+            return sessions;
+        }
+        SessionScheduler scheduler = scheduler();
+        if (message.equals("ALL"))
+            return scheduler.getListSchedule();
+        return scheduler.getListSchedule(message);
+    }
+
     /**
      * Handles the 'STOP' case
      * @return String message 'TERMINATE'
@@ -124,15 +567,382 @@ public class SessionController {
      * @param message String 'ALL' or a specific class name
      * @return String response depending on success or not
      */
-    private synchronized String handleEarlyLectures(String message){
-        ForkJoinPool pool = new ForkJoinPool();
+    private String handleEarlyLectures(String message) throws IncorrectActionException {
+        if (cluster != null)
+            return routeEarlyLectures(message);
+        SessionScheduler scheduler = scheduler();
+        EARLY_LECTURES.shift(scheduler, message);
+        awaitDurable(scheduler);
+        return "SUCCESS Lectures shifted to earliest available times";
+    }
+
+    /**
+     * Handles the 'OPTIMIZE' case, e.g. 'OPTIMIZE FEWEST_GAPS 5000', rearranging the whole schedule with the
+     * TimetableSolver. Both the objective, EARLIEST_FINISH by default, and the time budget in milliseconds are optional
+     * @param message String optional objective followed by an optional time budget
+     * @return String response with the number of Sessions moved
+     * @throws IncorrectActionException If the objective or time budget is not valid
+     */
+    private String handleOptimize(String message) throws IncorrectActionException {
+        String[] options = message.trim().isEmpty() ? new String[0] : message.trim().split("\\s+");
+        if (options.length > 2) {
+            throw new IncorrectActionException();
+        }
+        TimetableSolver.Objective objective = TimetableSolver.Objective.EARLIEST_FINISH;
+        long budget = DEFAULT_OPTIMIZE_MILLIS;
+        try {
+            if (options.length > 0)
+                objective = TimetableSolver.Objective.valueOf(options[0].toUpperCase());
+            if (options.length > 1)
+                budget = Long.parseLong(options[1]);
+        } catch (IllegalArgumentException e) {
+            throw new IncorrectActionException();
+        }
+        if (budget <= 0 || budget > MAX_OPTIMIZE_MILLIS) {
+            throw new IncorrectActionException();
+        }
+        if (cluster != null)
+            return "ERROR OPTIMIZE moves Sessions between days, which is not possible in a cluster";
+
+        SessionScheduler scheduler = scheduler();
+        try {
+            int moved = SOLVER.optimize(scheduler, objective, budget).size();
+            awaitDurable(scheduler);
+            return "SUCCESS Schedule optimized, " + moved + " sessions moved";
+        } catch (IllegalStateException e) {
+            return "ERROR The schedule changed while optimizing, try again";
+        }
+    }
+
+    /**
+     * Handles the 'USE' case, e.g. 'USE PHYSICS_2025', sending the connection's following requests to another
+     * tenant's schedule. The tenant is loaded if it is not loaded already
+     * @param message String tenant name
+     * @return String response naming the tenant now in use
+     * @throws IncorrectActionException If the name is not a valid tenant or the tenant cannot be loaded
+     */
+    private String handleUse(String message) throws IncorrectActionException {
+        String name = message.trim().toUpperCase();
+        if (!SchedulerRegistry.isTenant(name)) {
+            throw new IncorrectActionException();
+        }
+        SchedulerRegistry.Shard next = lease(name);
+        synchronized (this) {
+            if (closed) {
+                next.release();
+                throw new IncorrectActionException("The connection is closed");
+            }
+            // a subscription follows the tenant it was made on
+            unsubscribe();
+            if (shard != null)
+                shard.release();
+            shard = next;
+            tenant = name;
+        }
+        return "SUCCESS Using tenant " + name;
+    }
+
+    /**
+     * Handles the 'SUBSCRIBE' case, e.g. 'SUBSCRIBE ALL' or 'SUBSCRIBE CS4076'. Once the response is sent the
+     * connection is pushed the Sessions and then every change made to them, as ScheduleSubscription describes,
+     * until 'UNSUBSCRIBE', 'USE' or the end of the connection. A new 'SUBSCRIBE' replaces the one before
+     * @param message String either 'ALL' or a specific class name
+     * @return String response naming what is followed
+     * @throws IncorrectActionException If the server is a cluster node or the message is not a class name
+     */
+    private String handleSubscribe(String message) throws IncorrectActionException {
+        if (cluster != null)
+            throw new IncorrectActionException("SUBSCRIBE is not possible in a cluster");
+        String target = message.trim();
+        if (target.isEmpty() || target.chars().anyMatch(Character::isWhitespace))
+            throw new IncorrectActionException();
+        SessionScheduler scheduler = scheduler();
+        synchronized (this) {
+            unsubscribe();
+            subscription = new ScheduleSubscription(scheduler, target.equals("ALL") ? null : target,
+                    ScheduleSubscription.DEFAULT_CAPACITY);
+            unstarted = subscription;
+        }
+        return "SUCCESS Subscribed to " + target;
+    }
+
+    /**
+     * Handles the 'UNSUBSCRIBE' case, after which no more changes are pushed
+     * @return String response
+     */
+    private synchronized String handleUnsubscribe() {
+        unsubscribe();
+        return "SUCCESS Unsubscribed";
+    }
+
+    /**
+     * Stops the connection's subscription if it has one, holding the lock
+     */
+    private void unsubscribe() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+            unstarted = null;
+        }
+    }
+
+    public synchronized boolean isSubscribed() {
+        return subscription != null;
+    }
+
+    /**
+     * Hands the subscription the last request made to the server, which starts it once the response is sent.
+     * Each subscription is handed over once
+     * @return ScheduleSubscription to start, or null if the last request made none
+     */
+    public synchronized ScheduleSubscription takeNewSubscription() {
+        ScheduleSubscription taken = unstarted;
+        unstarted = null;
+        return taken;
+    }
+
+    /**
+     * Handles the requests cluster nodes send each other: 'CLUSTER PRIMARY ADD ...' applies a change as the
+     * partition's primary and replicates it, 'CLUSTER REPLICA REMOVE ...' only applies it, and
+     * 'CLUSTER DISPLAY MONDAY ALL' answers with this node's copy of one day. They are only accepted from the
+     * addresses of the cluster's nodes
+     * @param message String sub-command and its request
+     * @return String response to the sending node
+     * @throws IncorrectActionException If the server is not a cluster node, the request does not come from
+     *         one of its nodes or is not valid
+     */
+    private String handleCluster(String message) throws IncorrectActionException {
+        String[] parts = message.split(" ", 2);
+        if (cluster == null || parts.length != 2) {
+            throw new IncorrectActionException();
+        }
+        if (!cluster.isPeer(remote))
+            throw new IncorrectActionException("CLUSTER requests are only accepted from the cluster's nodes");
+        switch (parts[0]) {
+            case "PRIMARY":
+                return applyAsPrimary(parts[1]);
+            case "REPLICA":
+                return apply(parts[1]);
+            case "DISPLAY":
+                String[] target = parts[1].split(" ", 2);
+                if (target.length != 2) {
+                    throw new IncorrectActionException();
+                }
+                try {
+                    return "DISPLAY;" + dayText(DayOfWeek.valueOf(target[0]), target[1]);
+                } catch (IllegalArgumentException e) {
+                    throw new IncorrectActionException();
+                }
+            default:
+                throw new IncorrectActionException();
+        }
+    }
+
+    /**
+     * Sends a change to the primary of its partition, or to the follower if the primary cannot be reached
+     * @param day DayOfWeek day the change is on
+     * @param request String ADD, REMOVE or one day's EARLY_LECTURES request
+     * @return String response from whichever node applied it
+     * @throws IncorrectActionException If the change is applied here and is not valid
+     */
+    private String routeChange(DayOfWeek day, String request) throws IncorrectActionException {
+        for (int node : cluster.replicas(tenant, day)) {
+            if (cluster.isSelf(node))
+                return applyAsPrimary(request);
+            try {
+                return cluster.send(node, tenant, "CLUSTER PRIMARY " + request);
+            } catch (IOException e) {
+                AsyncLogger.get().warn("Node unavailable", "node", cluster.getAddress(node), "error", e.getMessage());
+            }
+        }
+        return "ERROR The " + day + " schedule is unavailable, try again later";
+    }
+
+    private String applyAsPrimary(String request) throws IncorrectActionException {
+        String response = apply(request);
+        if (response.startsWith("SUCCESS"))
+            cluster.replicate(tenant, DayOfWeek.valueOf(request.split(" ")[1].toUpperCase()), request);
+        return response;
+    }
+
+    /**
+     * Shifts lectures day by day, each at the day's primary, which copies the shift to its follower by having
+     * it run the same shift on its own copy of the day. Sessions never leave their day, so the days can be
+     * shifted independently and together give what a single server gives, though a reader may see some days
+     * shifted before others
+     * @param message String 'ALL' or a specific class name
+     * @return String response, naming the days that could not be shifted if there are any
+     * @throws IncorrectActionException If a day kept on this node cannot be shifted
+     */
+    private String routeEarlyLectures(String message) throws IncorrectActionException {
+        List<String> failed = new ArrayList<>();
         for (DayOfWeek day : DayOfWeek.values()) {
-            pool.invoke(new EarlyLecturesTask(day, scheduler,message));
+            String response = routeChange(day, "EARLY_LECTURES " + day + " " + message);
+            if (!response.startsWith("SUCCESS"))
+                failed.add(day + " " + (response.startsWith("ERROR ") ? response.substring(6) : response));
         }
-        scheduler.sortSchedule();
+        if (!failed.isEmpty())
+            return "ERROR Lectures were not shifted on " + String.join(", ", failed);
         return "SUCCESS Lectures shifted to earliest available times";
     }
 
+    /**
+     * Shifts the lectures of one day kept on this node, e.g. 'MONDAY ALL'
+     */
+    private String shiftDay(String message) throws IncorrectActionException {
+        String[] target = message.split(" ", 2);
+        if (target.length != 2) {
+            throw new IncorrectActionException();
+        }
+        DayOfWeek day;
+        try {
+            day = DayOfWeek.valueOf(target[0]);
+        } catch (IllegalArgumentException e) {
+            throw new IncorrectActionException();
+        }
+        SessionScheduler scheduler = scheduler();
+        EARLY_LECTURES.shift(scheduler, target[1], EnumSet.of(day));
+        awaitDurable(scheduler);
+        return "SUCCESS Lectures shifted to earliest available times";
+    }
+
+    /**
+     * Applies an ADD, REMOVE or one day's EARLY_LECTURES to this node's copy of the partition without routing
+     * it any further
+     */
+    private String apply(String request) throws IncorrectActionException {
+        String[] parts = request.split(" ", 2);
+        if (parts.length == 2 && parts[0].equals("EARLY_LECTURES"))
+            return shiftDay(parts[1]);
+        if (parts.length != 2 || !(parts[0].equals("ADD") || parts[0].equals("REMOVE"))) {
+            throw new IncorrectActionException();
+        }
+        applying = true;
+        try {
+            return handleIdentifier(parts[0], parts[1]);
+        } finally {
+            applying = false;
+        }
+    }
+
+    /**
+     * Gathers a 'DISPLAY' from the owners of every day. Each owner is asked for all of its days in one
+     * pipelined exchange, and the days of an owner that cannot be reached are asked of their followers
+     * @param message String either 'ALL' or a specific class name
+     * @return String the same response a single server gives
+     * @throws IncorrectActionException If this node's own days cannot be read
+     */
+    private String routeDisplay(String message) throws IncorrectActionException {
+        DayOfWeek[] days = DayOfWeek.values();
+        String[] texts = new String[days.length];
+        Map<Integer, List<DayOfWeek>> byOwner = new HashMap<>();
+        for (DayOfWeek day : days) {
+            byOwner.computeIfAbsent(cluster.replicas(tenant, day)[0], k -> new ArrayList<>()).add(day);
+        }
+        for (Map.Entry<Integer, List<DayOfWeek>> entry : byOwner.entrySet()) {
+            List<String> requests = new ArrayList<>();
+            for (DayOfWeek day : entry.getValue()) {
+                requests.add("CLUSTER DISPLAY " + day + " " + message);
+            }
+            try {
+                List<String> responses = cluster.isSelf(entry.getKey()) ? null
+                        : cluster.sendAll(entry.getKey(), tenant, requests);
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    DayOfWeek day = entry.getValue().get(i);
+                    texts[day.ordinal()] = responses == null ? dayText(day, message) : partText(responses.get(i));
+                }
+            } catch (IOException e) {
+                for (DayOfWeek day : entry.getValue()) {
+                    texts[day.ordinal()] = followerDayText(day, message);
+                }
+            }
+        }
+
+        StringBuilder schedule = new StringBuilder();
+        for (String text : texts) {
+            if (text.isEmpty())
+                continue;
+            if (schedule.length() > 0)
+                schedule.append(", ");
+            schedule.append(text);
+        }
+        if (schedule.length() == 0)
+            return "ERROR There are no scheduled Sessions";
+        return "DISPLAY " + message + ";" + schedule;
+    }
+
+    private String followerDayText(DayOfWeek day, String message) throws IncorrectActionException {
+        int[] replicas = cluster.replicas(tenant, day);
+        if (replicas.length < 2)
+            throw new IncorrectActionException("The " + day + " schedule is unavailable, try again later");
+        if (cluster.isSelf(replicas[1]))
+            return dayText(day, message);
+        try {
+            return partText(cluster.send(replicas[1], tenant, "CLUSTER DISPLAY " + day + " " + message));
+        } catch (IOException e) {
+            throw new IncorrectActionException("The " + day + " schedule is unavailable, try again later");
+        }
+    }
+
+    private static String partText(String response) throws IncorrectActionException {
+        if (!response.startsWith("DISPLAY;"))
+            throw new IncorrectActionException(response.startsWith("ERROR ") ? response.substring(6) : response);
+        return response.substring("DISPLAY;".length());
+    }
+
+    /**
+     * This node's Sessions on one day, of every class or of one, formatted as in a 'DISPLAY' response
+     */
+    private String dayText(DayOfWeek day, String message) throws IncorrectActionException {
+        SessionScheduler scheduler = scheduler();
+        List<Session> sessions = message.equals("ALL") ? scheduler.getListSchedule(day)
+                : scheduler.getListSchedule(message);
+        StringBuilder text = new StringBuilder();
+        for (Session session : sessions) {
+            if (session.getDay() != day)
+                continue;
+            if (text.length() > 0)
+                text.append(", ");
+            text.append(session.format());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the scheduler of the tenant in use, taking a lease on it the first time it is needed
+     * @return SessionScheduler scheduler
+     * @throws IncorrectActionException If the tenant cannot be loaded or the connection is closed
+     */
+    private synchronized SessionScheduler scheduler() throws IncorrectActionException {
+        if (shard == null) {
+            if (closed)
+                throw new IncorrectActionException("The connection is closed");
+            shard = lease(tenant);
+        }
+        return shard.getScheduler();
+    }
+
+    /**
+     * Waits until the changes made for this request are durable, before the client is told they succeeded
+     * @param scheduler SessionScheduler the changes were made to
+     * @throws IncorrectActionException If the changes could not be written to the journal
+     */
+    private static void awaitDurable(SessionScheduler scheduler) throws IncorrectActionException {
+        try {
+            scheduler.awaitDurable();
+        } catch (UncheckedIOException e) {
+            throw new IncorrectActionException("Schedule could not be made durable");
+        }
+    }
+
+    private SchedulerRegistry.Shard lease(String name) throws IncorrectActionException {
+        try {
+            return registry.acquire(name);
+        } catch (IOException e) {
+            throw new IncorrectActionException("Cannot load tenant " + name + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Parse a String format of Session into type Session
      * @param remainder String format of a Session
@@ -142,7 +952,8 @@ public class SessionController {
     private Session parseSession(String remainder) throws IncorrectActionException {
         try {
             String[] remainderSplit = remainder.split(" ");
-            if (remainderSplit.length < 6) {
+            // a Session has exactly six parts, more were always rejected when the Session was built from them
+            if (remainderSplit.length != 6) {
                 throw new IncorrectActionException();
             }
             DayOfWeek day = DayOfWeek.valueOf(remainderSplit[0].toUpperCase());
@@ -154,88 +965,81 @@ public class SessionController {
             if (room.isEmpty() || className.isEmpty()) {
                 throw new IncorrectActionException();
             }
-            if(startTime.isBefore(LocalTime.of(9,0)) || endTime.isAfter(LocalTime.of(18,0))){
-                throw new IncorrectActionException();
-            }
+            checkTimes(startTime, endTime);
 
-            return new Session(remainder);
+            return new Session(day, startTime, endTime, room, className, description);
         } catch (IllegalArgumentException | DateTimeParseException | ArrayIndexOutOfBoundsException e) {
             throw new IncorrectActionException();
         }
     }
 
+    /**
+     * The state of an 'IMPORT' in progress, kept to a count and the first few rejected rows whatever its size
+     */
+    private static final class Import {
+        private static final int MAX_LISTED = 100;
 
-    private static class EarlyLecturesTask extends RecursiveAction {
-        private DayOfWeek day;
-        private SessionScheduler scheduler;
-        private String message;
+        private final TimetableFormat format;
+        private long line = 0;
+        private long imported = 0;
+        private long rejected = 0;
+        private final StringBuilder listed = new StringBuilder();
 
-        /**
-         * Constructor for the EarlyLecturesTask
-         * @param day DayOfWeek day
-         * @param scheduler SessionScheduler scheduler
-         * @param message String 'ALL' or class name
-         */
-        public EarlyLecturesTask(DayOfWeek day, SessionScheduler scheduler,String message) {
-            this.day = day;
-            this.scheduler = scheduler;
-            this.message=message;
+        Import(TimetableFormat format) {
+            this.format = format;
         }
 
-        @Override
-        protected void compute() {
-            ArrayList<Session> sessions = scheduler.groupSessionsByDay().get(day);
-
-            if (sessions == null)
-                return;
-            if(message.equals("ALL")){
-                for (Session session : sessions) {
-                    shiftToEarlyMorning(session, sessions);
-                }
-            }else{
-                for (Session session : sessions) {
-                    if(session.getClassName().toUpperCase().equals(message))
-                        shiftToEarlyMorning(session, sessions);
-                }
-            }
-
+        void reject(String reason) {
+            if (rejected++ < MAX_LISTED)
+                rejectedRow(listed, line - 1, reason);
         }
 
-        /**
-         * Shifts all or a specific class' lectures to the earliest possible times checking for conflicts
-         * @param session Session session
-         * @param sessions ArrayList<Session> sessions
-         */
-        private void shiftToEarlyMorning(Session session, ArrayList<Session> sessions) {
-            int earliestHour = 9;  // Earliest possible start time
-            LocalTime earliestStart = LocalTime.of(earliestHour, 0);
-            int durationHours = session.getSessionLength().toHoursPart();  // Session duration in hours
-
-            LocalTime potentialStartTime = earliestStart;
-            boolean shifted = false;
-
-            while (potentialStartTime.isBefore(session.getStartTime()) && !shifted) {
-                LocalTime potentialEndTime = potentialStartTime.plusHours(durationHours);
-
-                boolean hasConflict = false;
-                Session potentialSession = new Session(day, potentialStartTime, potentialEndTime,
-                        session.getRoom(), session.getClassName(), session.getDescription());
-                for (Session existingSession : sessions) {
-                    if (!existingSession.equals(session) && scheduler.conflicts(existingSession, potentialSession)) {
-                        hasConflict = true;
-                        break;
-                    }
-                }
-
-                if (!hasConflict) {
-                    session.setStartTime(potentialStartTime);
-                    session.setEndTime(potentialEndTime);
-                    shifted = true;
-                } else {
+        String response() {
+            if (rejected == 0)
+                return "SUCCESS " + imported + " classes imported";
+            return "ERROR " + imported + " classes imported, " + rejected + " rows rejected: " + listed
+                    + (rejected > MAX_LISTED ? "; ..." : "");
+        }
+    }
 
-                    potentialStartTime = potentialStartTime.plusHours(1);
-                }
+    /**
+     * Parse a String format of a time slot, 'DAY START END ROOM', into a Session with no class or description
+     * @param remainder String format of a time slot
+     * @return Session giving the slot
+     * @throws IncorrectActionException
+     */
+    private Session parseSlot(String remainder) throws IncorrectActionException {
+        String[] slot = remainder.split(" ");
+        if (slot.length != 4) {
+            throw new IncorrectActionException();
+        }
+        try {
+            DayOfWeek day = DayOfWeek.valueOf(slot[0].toUpperCase());
+            LocalTime startTime = LocalTime.parse(slot[1]);
+            LocalTime endTime = LocalTime.parse(slot[2]);
+            String room = slot[3].toUpperCase();
+            if (room.isEmpty()) {
+                throw new IncorrectActionException();
             }
+            checkTimes(startTime, endTime);
+            return new Session(day, startTime, endTime, room, "", "");
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new IncorrectActionException();
+        }
+    }
+
+    /**
+     * Checks a Session's times fall within the 09:00 to 18:00 teaching day and that it ends after it starts
+     * @param startTime LocalTime start time
+     * @param endTime LocalTime end time
+     * @throws IncorrectActionException
+     */
+    private void checkTimes(LocalTime startTime, LocalTime endTime) throws IncorrectActionException {
+        if(startTime.isBefore(LocalTime.of(9,0)) || endTime.isAfter(LocalTime.of(18,0))){
+            throw new IncorrectActionException();
+        }
+        if (!startTime.isBefore(endTime)) {
+            throw new IncorrectActionException();
         }
     }
 }
@@ -1,15 +1,45 @@
 package model;
+import metrics.ServerMetrics;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.DayOfWeek;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 public class SessionScheduler {
-    private ArrayList<Session> schedule;
+    private static final int MAX_CACHED_CLASSES = 10_000;
+    private static final ByteBuffer SEPARATOR = ByteBuffer.wrap(", ".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    private final EnumMap<DayOfWeek, DaySchedule> days;
+    private final AtomicLong version = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> classVersions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CachedSchedule> classCache = new ConcurrentHashMap<>();
+    private volatile CachedSchedule allCache;
+    private final List<ScheduleListener> listeners = new CopyOnWriteArrayList<>();
 
     /**
-     * Constructor for the SessionScheduler
+     * Constructor for the SessionScheduler, keeping each day's Sessions in a TreeSessionStore
      */
     public SessionScheduler() {
-        schedule = new ArrayList<>();
+        this(day -> new TreeSessionStore());
+    }
+
+    /**
+     * Constructor for a SessionScheduler running on another kind of store, e.g. PackedSessionStore.perDay()
+     * @param stores Function giving the empty store for each day
+     */
+    public SessionScheduler(Function<DayOfWeek, SessionStore> stores) {
+        days = new EnumMap<>(DayOfWeek.class);
+        for (DayOfWeek day : DayOfWeek.values()) {
+            days.put(day, new DaySchedule(stores.apply(day)));
+        }
     }
 
     /**
@@ -18,18 +48,25 @@ public class SessionScheduler {
      * @return Returns true or false depending on if the Session was added successfully
      */
     public boolean add(Session s) {
-        // Check for conflicts before adding
-        for (Session session : schedule) {
-            if (conflicts(session, s)) {
+        DaySchedule day = days.get(s.getDay());
+        if (!s.getStartTime().isBefore(s.getEndTime()) || !day.store.supports(s))
+            return false;
+        lock(day.lock, true);
+        try {
+            // Check for conflicts before adding
+            if (day.clashes(s, null)) {
                 // Handle conflict
                 return false;
             }
+            day.insert(s);
+            changed(s);
+            for (ScheduleListener listener : listeners) {
+                listener.sessionAdded(s);
+            }
+            return true;
+        } finally {
+            day.lock.writeLock().unlock();
         }
-
-        schedule.add(s);
-
-        sortSchedule();
-        return true;
     }
 
     /**
@@ -37,15 +74,323 @@ public class SessionScheduler {
      * @param s Session to be removed
      */
     public boolean remove(Session s) {
-        boolean removed = false;
-        for (Session session : schedule) {
-            if (session.equalExcludeClassNameAndDescription(s)) {
-                schedule.remove(session);
-                removed = true;
-                break;
+        return remove(s.getDay(), s.getStartTime(), s.getEndTime(), s.getRoom()) != null;
+    }
+
+    /**
+     * Removes whichever Session is booked in a time slot
+     * @param day DayOfWeek of the slot
+     * @param startTime LocalTime start of the slot
+     * @param endTime LocalTime end of the slot
+     * @param room String room of the slot
+     * @return The removed Session, or null if nothing was booked in that slot
+     */
+    public Session remove(DayOfWeek day, LocalTime startTime, LocalTime endTime, String room) {
+        DaySchedule daySchedule = days.get(day);
+        lock(daySchedule.lock, true);
+        try {
+            Session session = daySchedule.store.find(startTime, endTime, room);
+            if (session != null) {
+                daySchedule.delete(session);
+                changed(session);
+                for (ScheduleListener listener : listeners) {
+                    listener.sessionRemoved(session);
+                }
+            }
+            return session;
+        } finally {
+            daySchedule.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a scheduled Session to new times on the same day if that causes no clash with any other Session.
+     * The Session is replaced rather than modified, so readers holding an earlier snapshot never see it change
+     * @param s Session currently in the schedule
+     * @param startTime LocalTime new start time
+     * @param endTime LocalTime new end time
+     * @return True if the Session was moved, false if it is no longer scheduled or the new times clash
+     */
+    public boolean reschedule(Session s, LocalTime startTime, LocalTime endTime) {
+        DaySchedule day = days.get(s.getDay());
+        Session moved = new Session(s.getDay(), startTime, endTime, s.getRoom(), s.getClassName(), s.getDescription());
+        if (!startTime.isBefore(endTime) || !day.store.supports(moved))
+            return false;
+        lock(day.lock, true);
+        try {
+            if (!day.store.contains(s) || day.clashes(moved, s))
+                return false;
+            day.delete(s);
+            day.insert(moved);
+            changed(s);
+            for (ScheduleListener listener : listeners) {
+                listener.sessionMoved(s, moved);
+            }
+            return true;
+        } finally {
+            day.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves any number of Sessions as one atomic change. Every day is write locked, the planner works out the
+     * moves from an immutable snapshot of each day, and all of them are applied before any lock is released,
+     * so readers see either none of the moves or all of them. The moves are checked against each other and
+     * the rest of the schedule; if any of them would clash nothing is changed
+     * @param planner Function from each day's Sessions in start time order to a map of Session to its replacement
+     * @return Map of the Sessions that moved to where they moved to
+     * @throws IllegalStateException if the planned moves clash
+     */
+    public Map<Session, Session> moveAll(Function<Map<DayOfWeek, List<Session>>, Map<Session, Session>> planner) {
+        return moveAll(EnumSet.allOf(DayOfWeek.class), planner);
+    }
+
+    /**
+     * Moves any number of Sessions within some of the days as one atomic change, as moveAll() does for every
+     * day. Only those days are locked and given to the planner, so the other days can change meanwhile
+     * @param only Set of the days whose Sessions may move, and only within those days
+     * @param planner Function from each of those days' Sessions in start time order to a map of Session to its
+     *                replacement
+     * @return Map of the Sessions that moved to where they moved to
+     * @throws IllegalStateException if the planned moves clash or leave those days
+     */
+    public Map<Session, Session> moveAll(Set<DayOfWeek> only,
+                                         Function<Map<DayOfWeek, List<Session>>, Map<Session, Session>> planner) {
+        List<DaySchedule> locked = new ArrayList<>();
+        try {
+            Map<DayOfWeek, List<Session>> snapshots = new EnumMap<>(DayOfWeek.class);
+            // always locked in day order, so two changes over overlapping days cannot deadlock
+            for (Map.Entry<DayOfWeek, DaySchedule> entry : days.entrySet()) {
+                if (!only.contains(entry.getKey()))
+                    continue;
+                lock(entry.getValue().lock, true);
+                locked.add(entry.getValue());
+                snapshots.put(entry.getKey(), List.copyOf(entry.getValue().store.sessions()));
+            }
+            Map<Session, Session> moves = planner.apply(snapshots);
+            if (moves.isEmpty())
+                return moves;
+
+            List<Session> from = new ArrayList<>(moves.keySet());
+            List<Session> to = new ArrayList<>(moves.values());
+            for (Session s : from) {
+                if (!only.contains(s.getDay()) || !days.get(s.getDay()).store.contains(s))
+                    throw new IllegalStateException("Cannot move a Session that is not scheduled: " + s.format());
+            }
+            for (Session s : to) {
+                if (!only.contains(s.getDay()))
+                    throw new IllegalStateException("Cannot move a Session to a day that is not locked: " + s.format());
+            }
+            for (Session s : from) {
+                days.get(s.getDay()).delete(s);
+            }
+            for (int i = 0; i < to.size(); i++) {
+                Session s = to.get(i);
+                DaySchedule day = days.get(s.getDay());
+                if (!s.getStartTime().isBefore(s.getEndTime()) || !day.store.supports(s) || day.clashes(s, null)) {
+                    // put the schedule back exactly as it was
+                    for (Session inserted : to.subList(0, i)) {
+                        days.get(inserted.getDay()).delete(inserted);
+                    }
+                    for (Session original : from) {
+                        days.get(original.getDay()).insert(original);
+                    }
+                    throw new IllegalStateException("Planned move clashes: " + s.format());
+                }
+                day.insert(s);
+            }
+            for (int i = 0; i < from.size(); i++) {
+                changed(from.get(i));
+                changed(to.get(i));
+            }
+            for (ScheduleListener listener : listeners) {
+                listener.sessionsMoved(from, to);
+            }
+            return moves;
+        } finally {
+            for (DaySchedule day : locked) {
+                day.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds any number of Sessions as one atomic change. Every day the Sessions are on is write locked while
+     * each Session is checked, in a single pass, against the schedule and against the Sessions before it in
+     * the list. If any Session is rejected nothing is added, otherwise all of them are
+     * @param sessions List of Sessions to add
+     * @return Map from the index of every rejected Session to the reason, empty if the Sessions were added
+     */
+    public SortedMap<Integer, String> addAll(List<Session> sessions) {
+        SortedMap<Integer, String> rejected = new TreeMap<>();
+        List<DaySchedule> locked = lockDays(sessions);
+        try {
+            // the Sessions accepted so far, so later ones are checked against them without touching the schedule
+            Map<DayOfWeek, TreeSessionStore> accepted = new EnumMap<>(DayOfWeek.class);
+            for (int i = 0; i < sessions.size(); i++) {
+                Session s = sessions.get(i);
+                DaySchedule day = days.get(s.getDay());
+                TreeSessionStore batch = accepted.computeIfAbsent(s.getDay(), k -> new TreeSessionStore());
+                if (!s.getStartTime().isBefore(s.getEndTime()))
+                    rejected.put(i, "The start time is not before the end time");
+                else if (!day.store.supports(s))
+                    rejected.put(i, "The Session cannot be stored");
+                else if (day.clashes(s, null))
+                    rejected.put(i, "There is already a class booked for this time slot");
+                else if (batch.clashes(s, null))
+                    rejected.put(i, clashingRow(sessions, i, rejected));
+                else
+                    batch.insert(s);
+            }
+            if (!rejected.isEmpty())
+                return rejected;
+
+            for (Session s : sessions) {
+                days.get(s.getDay()).insert(s);
+                changed(s);
+            }
+            for (ScheduleListener listener : listeners) {
+                listener.sessionsAdded(sessions);
+            }
+            return rejected;
+        } finally {
+            for (DaySchedule day : locked) {
+                day.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Frees any number of time slots as one atomic change. Every slot must have a Session booked in it and no
+     * slot may be given twice, otherwise nothing is removed
+     * @param slots List of Sessions whose day, times and room give the slots, their class and description are
+     *              not used
+     * @return Map from the index of every rejected slot to the reason, empty if the slots were freed
+     */
+    public SortedMap<Integer, String> removeAll(List<Session> slots) {
+        SortedMap<Integer, String> rejected = new TreeMap<>();
+        List<DaySchedule> locked = lockDays(slots);
+        try {
+            List<Session> removed = new ArrayList<>(slots.size());
+            Map<Session, Integer> rows = new HashMap<>();
+            for (int i = 0; i < slots.size(); i++) {
+                Session slot = slots.get(i);
+                Session session = days.get(slot.getDay()).store.find(slot.getStartTime(), slot.getEndTime(),
+                        slot.getRoom());
+                Integer earlier = session == null ? null : rows.putIfAbsent(session, i);
+                if (session == null)
+                    rejected.put(i, "There is no class booked for this time slot");
+                else if (earlier != null)
+                    rejected.put(i, "Same time slot as row " + (earlier + 1));
+                else
+                    removed.add(session);
+            }
+            if (!rejected.isEmpty())
+                return rejected;
+
+            for (Session s : removed) {
+                days.get(s.getDay()).delete(s);
+                changed(s);
+            }
+            for (ScheduleListener listener : listeners) {
+                listener.sessionsRemoved(removed);
+            }
+            return rejected;
+        } finally {
+            for (DaySchedule day : locked) {
+                day.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Write locks the days of a list of Sessions, always in day order so two batches cannot deadlock
+     * @return List of the days locked
+     */
+    private List<DaySchedule> lockDays(List<Session> sessions) {
+        EnumSet<DayOfWeek> touched = EnumSet.noneOf(DayOfWeek.class);
+        for (Session s : sessions) {
+            touched.add(s.getDay());
+        }
+        List<DaySchedule> locked = new ArrayList<>();
+        for (DayOfWeek day : touched) {
+            lock(days.get(day).lock, true);
+            locked.add(days.get(day));
+        }
+        return locked;
+    }
+
+    /**
+     * Names the earlier accepted Session of a batch that a Session clashes with
+     * @return String reason the Session is rejected
+     */
+    private String clashingRow(List<Session> sessions, int index, Map<Integer, String> rejected) {
+        Session s = sessions.get(index);
+        for (int i = 0; i < index; i++) {
+            if (!rejected.containsKey(i) && conflicts(sessions.get(i), s))
+                return "Clashes with row " + (i + 1);
+        }
+        return "Clashes with an earlier row";
+    }
+
+    /**
+     * Registers a listener to be told about every following change to the schedule
+     * @param listener ScheduleListener listener
+     */
+    public void addListener(ScheduleListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener ScheduleListener listener
+     */
+    public void removeListener(ScheduleListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Blocks until every change the calling thread has made is durable, forced out by the stores that keep
+     * their own files and synced by the listeners, see ScheduleListener.awaitDurable()
+     * @throws UncheckedIOException if a store or listener could not make the changes durable
+     */
+    public void awaitDurable() {
+        for (Map.Entry<DayOfWeek, DaySchedule> day : days.entrySet()) {
+            try {
+                day.getValue().store.force();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write out the " + day.getKey() + " store", e);
+            }
+        }
+        for (ScheduleListener listener : listeners) {
+            listener.awaitDurable();
+        }
+    }
+
+    /**
+     * Takes a consistent copy of the whole schedule. Every day is read locked at once, so no change is half
+     * made, and atCut runs while the locks are held so a listener can mark exactly where the copy was taken
+     * @param atCut Runnable run at the point the copy was taken
+     * @return List of every Session, in day and start time order
+     */
+    public List<Session> checkpoint(Runnable atCut) {
+        List<DaySchedule> locked = new ArrayList<>();
+        try {
+            for (DaySchedule day : days.values()) {
+                lock(day.lock, false);
+                locked.add(day);
+            }
+            List<Session> sessions = new ArrayList<>();
+            for (DaySchedule day : locked) {
+                sessions.addAll(day.store.sessions());
+            }
+            atCut.run();
+            return sessions;
+        } finally {
+            for (DaySchedule day : locked) {
+                day.lock.readLock().unlock();
             }
         }
-        return removed;
     }
 
     /**
@@ -82,64 +427,201 @@ public class SessionScheduler {
     }
 
     /**
-     * Sorts the schedule based on the day and start times of the Sessions
+     * Sorts the schedule based on the day and start times of the Sessions. Every day is kept in start time order
+     * as Sessions are added, removed and rescheduled, so there is nothing left to do here
      */
     public void sortSchedule() {
-        Collections.sort(schedule, new Comparator<Session>() {
-            @Override
-            public int compare(Session s1, Session s2) {
-                DayOfWeek day1 = s1.getDay();
-                DayOfWeek day2 = s2.getDay();
-                if (day1 != day2) {
-                    return day1.compareTo(day2);
-                }
-                return s1.getStartTime().compareTo(s2.getStartTime());
-            }
-        });
     }
 
     /**
      * Returns the ArrayList of the Sessions
-     * @return ArrayList of Sessions
+     * @return ArrayList of Sessions, a copy taken from the current snapshot of every day
      */
     public ArrayList<Session> getListSchedule(){
+        ArrayList<Session> schedule = new ArrayList<>();
+        for (DaySchedule day : days.values()) {
+            schedule.addAll(day.snapshot());
+        }
         return schedule;
     }
 
     /**
-     * Returns a String containing all the schedule's Sessions
+     * Returns the Sessions of one day
+     * @param day DayOfWeek day
+     * @return List of the day's Sessions in start time order, from the day's current snapshot
+     */
+    public List<Session> getListSchedule(DayOfWeek day) {
+        return days.get(day).snapshot();
+    }
+
+    /**
+     * Returns the Sessions stored under a specific class name, in day and start time order. The Sessions come
+     * straight from each day's class index, so the cost depends on the size of the class, not the schedule
+     * @param className String of the class name
+     * @return ArrayList of the class's Sessions
+     */
+    public ArrayList<Session> getListSchedule(String className) {
+        ArrayList<Session> sessions = new ArrayList<>();
+        for (DaySchedule day : days.values()) {
+            day.collectClass(className, sessions);
+        }
+        return sessions;
+    }
+
+    /**
+     * Returns a String containing all the schedule's Sessions. The String is cached until the next change to
+     * the schedule, so repeated reads of an unchanged schedule do no formatting
      * @return String containing all the schedule's Sessions
      */
     public String getSchedule() {
+        return allSchedule().text;
+    }
+
+    private CachedSchedule allSchedule() {
+        long current = version.get();
+        CachedSchedule cached = allCache;
+        if (cached != null && cached.version == current)
+            return cached;
+
         StringBuilder builder = new StringBuilder();
-        int size = schedule.size();
-        for (int i = 0; i < size; i++) {
-            builder.append(schedule.get(i).format());
-            if (i < size - 1) {
-                builder.append(", ");
+        for (DaySchedule day : days.values()) {
+            for (Session session : day.snapshot()) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(session.format());
+            }
+        }
+        cached = new CachedSchedule(current, builder.toString());
+        allCache = cached;
+        return cached;
+    }
+
+    /**
+     * Returns the same text as getSchedule() as UTF-8 buffers taken straight from the stores, for a server to
+     * write out without building the String. Each day is read locked only while its buffers are collected.
+     * Stores that cannot stream their Sessions are served the cached text instead, encoded once per change
+     * @return ScheduleStream that must be closed once written, or null if the schedule is empty
+     */
+    public ScheduleStream streamSchedule() {
+        List<ByteBuffer> records = new ArrayList<>();
+        List<Runnable> releases = new ArrayList<>();
+        for (DaySchedule day : days.values()) {
+            Runnable release;
+            lock(day.lock, false);
+            try {
+                release = day.store.stream(records);
+            } finally {
+                day.lock.readLock().unlock();
+            }
+            if (release == null) {
+                new ScheduleStream(records, releases).close();
+                return cachedStream();
+            }
+            releases.add(release);
+        }
+        if (records.isEmpty()) {
+            new ScheduleStream(records, releases).close();
+            return null;
+        }
+        List<ByteBuffer> buffers = new ArrayList<>(records.size() * 2);
+        for (ByteBuffer record : records) {
+            if (!buffers.isEmpty())
+                buffers.add(SEPARATOR.duplicate());
+            buffers.add(record);
+        }
+        return new ScheduleStream(buffers, releases);
+    }
+
+    /**
+     * The cached schedule text as a single buffer over its UTF-8 bytes
+     * @return ScheduleStream with nothing to release, or null if the schedule is empty
+     */
+    private ScheduleStream cachedStream() {
+        CachedSchedule all = allSchedule();
+        if (all.text.isEmpty())
+            return null;
+        return new ScheduleStream(List.of(ByteBuffer.wrap(all.encoded()).asReadOnlyBuffer()), List.of());
+    }
+
+    /**
+     * Closes the listeners that hold resources, such as a ScheduleJournal, and then every day's store, once
+     * nothing uses the scheduler any more
+     * @throws IOException if a listener or store cannot be written out
+     */
+    public void close() throws IOException {
+        for (ScheduleListener listener : listeners) {
+            if (listener instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) listener).close();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        for (DaySchedule day : days.values()) {
+            lock(day.lock, true);
+            try {
+                day.store.close();
+            } finally {
+                day.lock.writeLock().unlock();
             }
         }
-        return builder.toString();
     }
 
     /**
-     * Returns a String containing all the Sessions stored under a specific class name
+     * Returns a String containing all the Sessions stored under a specific class name. Each class is cached
+     * separately and only changes to that class's own Sessions invalidate it
      * @param className String of the class name
      * @return String containing all the Sessions stored under a specific class name
      */
     public String getSchedule(String className){
-        ArrayList<Session> classSession = new ArrayList<>();
+        AtomicLong classVersion = classVersions.get(className);
+        long current = classVersion == null ? 0 : classVersion.get();
+        CachedSchedule cached = classCache.get(className);
+        if (cached != null && cached.version == current)
+            return cached.text;
+
         StringBuilder builder = new StringBuilder();
-        int size = schedule.size();
-        for (int i = 0; i < size; i++) {
-            if(schedule.get(i).getClassName().compareTo(className) == 0) {
-                builder.append(schedule.get(i).format());
-                if (i < size - 1) {
-                    builder.append(", ");
-                }
+        for (Session session : getListSchedule(className)) {
+            if (builder.length() > 0) {
+                builder.append(", ");
             }
+            builder.append(session.format());
         }
-        return builder.toString();
+        String text = builder.toString();
+        if (classCache.size() >= MAX_CACHED_CLASSES)
+            classCache.clear();
+        classCache.put(className, new CachedSchedule(current, text));
+        return text;
+    }
+
+    /**
+     * Records that a Session was added, removed or moved. Called under the day's write lock once the change is
+     * complete, so a reader that saw the old version can only have cached text built from the old schedule
+     * @param s Session that changed
+     */
+    private void changed(Session s) {
+        classVersions.computeIfAbsent(s.getClassName(), k -> new AtomicLong()).incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Takes a day's lock, timing the wait for the ServerMetrics only when the lock cannot be had straight away,
+     * so an uncontended lock costs no clock reads. A reader only tries its luck while nobody is queued, so it
+     * never takes the lock ahead of a waiting writer, just as lock() would not
+     * @param lock ReentrantReadWriteLock of the day
+     * @param write boolean true for the write lock, false for the read lock
+     */
+    private static void lock(ReentrantReadWriteLock lock, boolean write) {
+        Lock taken = write ? lock.writeLock() : lock.readLock();
+        if ((write || !lock.hasQueuedThreads()) && taken.tryLock())
+            return;
+        long start = System.nanoTime();
+        taken.lock();
+        ServerMetrics.get().lockWaited(System.nanoTime() - start);
     }
 
     /**
@@ -149,14 +631,122 @@ public class SessionScheduler {
     public  Map<DayOfWeek, ArrayList<Session>> groupSessionsByDay() {
         Map<DayOfWeek, ArrayList<Session>> sessionsByDay = new HashMap<>();
 
-        for (DayOfWeek day : DayOfWeek.values()) {
-            sessionsByDay.put(day, new ArrayList<>());
+        for (Map.Entry<DayOfWeek, DaySchedule> entry : days.entrySet()) {
+            sessionsByDay.put(entry.getKey(), new ArrayList<>(entry.getValue().snapshot()));
         }
 
-        for (Session session : schedule) {
-            sessionsByDay.get(session.getDay()).add(session);
+        return sessionsByDay;
+    }
+
+    /**
+     * The Sessions of one day, kept in start time order by its SessionStore. Conflicts only ever happen between
+     * Sessions on the same day, so each day has its own lock and writers on different days never contend.
+     * Readers work from an immutable snapshot: while a day is unchanged reading it takes no lock at all, and the
+     * first read after a change rebuilds the snapshot under the shared read lock, in parallel with any other
+     * readers. A store that does not keep Session objects has its snapshot made afresh for every read instead,
+     * so the Sessions only exist while a reader uses them
+     */
+    private static class DaySchedule {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final SessionStore store;
+        private final boolean cacheSnapshot;
+        private volatile List<Session> snapshot;
+
+        DaySchedule(SessionStore store) {
+            this.store = store;
+            this.cacheSnapshot = store.holdsSessions();
         }
 
-        return sessionsByDay;
+        /**
+         * Checks a Session against the store's room and class indexes, the lock must be held
+         * @param s Session to check
+         * @param ignore Session being moved that may not clash with itself, or null
+         * @return True if s clashes with a scheduled Session other than ignore
+         */
+        boolean clashes(Session s, Session ignore) {
+            return store.clashes(s, ignore);
+        }
+
+        /**
+         * Inserts a Session into the day, the write lock must be held
+         * @param s Session to insert
+         */
+        void insert(Session s) {
+            store.insert(s);
+            snapshot = null;
+        }
+
+        /**
+         * Deletes a scheduled Session from the day, the write lock must be held
+         * @param s Session to delete
+         */
+        void delete(Session s) {
+            store.delete(s);
+            snapshot = null;
+        }
+
+        /**
+         * Adds the day's Sessions of one class to a list in start time order, under the shared read lock
+         * @param className String class name, matched exactly
+         * @param into List to add to
+         */
+        void collectClass(String className, List<Session> into) {
+            lock(lock, false);
+            try {
+                store.collectClass(className, into);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Returns the Sessions of the day in start time order as an immutable list
+         * @return List of Sessions
+         */
+        List<Session> snapshot() {
+            List<Session> current = snapshot;
+            if (current != null && cacheSnapshot)
+                return current;
+            lock(lock, false);
+            try {
+                current = snapshot;
+                if (current == null || !cacheSnapshot) {
+                    current = Collections.unmodifiableList(store.sessions());
+                    if (cacheSnapshot)
+                        snapshot = current;
+                }
+                return current;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Formatted schedule text together with the version of the schedule it was built from
+     */
+    private static final class CachedSchedule {
+        private final long version;
+        private final String text;
+        private volatile byte[] encoded;
+
+        CachedSchedule(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+
+        /**
+         * The text as UTF-8, encoded the first time it is written out. Two readers racing may both encode it,
+         * either copy will do
+         * @return byte[] UTF-8 text, never to be modified
+         */
+        byte[] encoded() {
+            byte[] bytes = encoded;
+            if (bytes == null) {
+                bytes = text.getBytes(StandardCharsets.UTF_8);
+                encoded = bytes;
+            }
+            return bytes;
+        }
     }
 }
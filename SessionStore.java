@@ -0,0 +1,111 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * Holds the Sessions of one day for the SessionScheduler, with the indexes it needs to find clashes and
+ * bookings. The scheduler does all the locking: a store is only used under its day's lock, and only read under
+ * the shared read lock
+ */
+public interface SessionStore {
+    /**
+     * Checks the store can hold a Session exactly as it is
+     * @param s Session to check
+     * @return true if the Session can be inserted
+     */
+    default boolean supports(Session s) {
+        return true;
+    }
+
+    /**
+     * True if the store keeps the Session objects themselves, so a cached snapshot of them costs nothing extra.
+     * Stores that keep Sessions in another form make them on demand instead
+     * @return boolean
+     */
+    default boolean holdsSessions() {
+        return true;
+    }
+
+    /**
+     * Checks a Session against the room and class indexes
+     * @param s Session to check
+     * @param ignore Session being moved that may not clash with itself, or null
+     * @return True if s clashes with a stored Session other than ignore
+     */
+    boolean clashes(Session s, Session ignore);
+
+    /**
+     * Inserts a Session that clashes with nothing in the store
+     * @param s Session to insert
+     */
+    void insert(Session s);
+
+    /**
+     * Deletes a stored Session
+     * @param s Session to delete
+     */
+    void delete(Session s);
+
+    /**
+     * Checks whether a Session is stored
+     * @param s Session to look for
+     * @return true if an equal Session is stored
+     */
+    boolean contains(Session s);
+
+    /**
+     * Finds the Session booked in a room at a time
+     * @param startTime LocalTime start time
+     * @param endTime LocalTime end time
+     * @param room String room
+     * @return Session booked in that slot, or null
+     */
+    Session find(LocalTime startTime, LocalTime endTime, String room);
+
+    /**
+     * Adds the Sessions of one class to a list in start time order
+     * @param className String class name, matched exactly
+     * @param into List to add to
+     */
+    void collectClass(String className, List<Session> into);
+
+    /**
+     * Returns every stored Session in start time order
+     * @return List of Sessions
+     */
+    List<Session> sessions();
+
+    /**
+     * Number of stored Sessions
+     * @return int size
+     */
+    int size();
+
+    /**
+     * Adds the formatted text of every stored Session to a list in start time order, as buffers the store
+     * keeps valid without copying them. Only stores that already hold their Sessions as text can do this
+     * @param into List of buffers to add to
+     * @return Runnable to run once the buffers have been sent, or null if the store cannot stream
+     */
+    default Runnable stream(List<ByteBuffer> into) {
+        return null;
+    }
+
+    /**
+     * Writes the changes made so far out to the store's own files, for a store that keeps the schedule across
+     * restarts itself. Called outside the day's lock, so the store guards whatever it shares with its writers
+     * @throws IOException if the changes cannot be written out
+     */
+    default void force() throws IOException {
+    }
+
+    /**
+     * Releases whatever the store holds outside the heap, after which it must not be used
+     * @throws IOException if the store cannot be written out
+     */
+    default void close() throws IOException {
+    }
+}
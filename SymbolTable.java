@@ -0,0 +1,58 @@
+package model;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+public class SymbolTable {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int count = 0;
+
+    /**
+     * Returns the ID of a name, giving it the next free ID the first time it is seen. IDs are never reused,
+     * so an ID stays valid for as long as the table exists
+     * @param name String name
+     * @return int ID of the name
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null)
+                return id;
+            if (count == names.length)
+                names = Arrays.copyOf(names, count * 2);
+            // the name goes into the array before its ID is published, so name(id) never sees null
+            names[count] = name;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    /**
+     * Returns the ID of a name without adding it
+     * @param name String name
+     * @return int ID, or -1 if the name has never been interned
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the name an ID stands for
+     * @param id int ID returned by intern
+     * @return String name
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Number of names interned so far, every ID is below it
+     * @return int size
+     */
+    public int size() {
+        return ids.size();
+    }
+}
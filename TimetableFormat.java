@@ -0,0 +1,208 @@
+package controller;
+import model.Session;
+
+/**
+ * The row formats 'IMPORT' and 'EXPORT' move whole timetables in, one Session per line. A row is split into the
+ * six fields of a Session, day, start, end, room, class and description, which are then checked exactly as the
+ * parts of an 'ADD'
+ */
+public enum TimetableFormat {
+    /**
+     * Comma separated fields, optionally in double quotes, after an optional header line
+     */
+    CSV {
+        @Override
+        public String header() {
+            return String.join(",", FIELDS);
+        }
+
+        @Override
+        public String[] fields(String row) {
+            String[] fields = row.split(",", -1);
+            if (fields.length != FIELDS.length)
+                return null;
+            for (int i = 0; i < fields.length; i++) {
+                String field = fields[i].trim();
+                if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"')
+                    field = field.substring(1, field.length() - 1);
+                fields[i] = field;
+            }
+            return fields;
+        }
+
+        @Override
+        public String format(Session s) {
+            return s.getDay() + "," + s.getStartTime() + "," + s.getEndTime() + "," + s.getRoom() + ","
+                    + s.getClassName() + "," + s.getDescription();
+        }
+    },
+
+    /**
+     * One flat JSON object of string values per line, e.g.
+     * {"day":"MONDAY","start":"09:00","end":"10:00","room":"R1","class":"CS101","description":"LAB"}
+     */
+    JSONL {
+        @Override
+        public String header() {
+            return null;
+        }
+
+        @Override
+        public String[] fields(String row) {
+            return new JsonObject(row).fields();
+        }
+
+        @Override
+        public String format(Session s) {
+            StringBuilder object = new StringBuilder(96).append('{');
+            String[] values = {s.getDay().toString(), s.getStartTime().toString(), s.getEndTime().toString(),
+                    s.getRoom(), s.getClassName(), s.getDescription()};
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (i > 0)
+                    object.append(',');
+                object.append('"').append(FIELDS[i]).append("\":");
+                quote(values[i], object);
+            }
+            return object.append('}').toString();
+        }
+    };
+
+    private static final String[] FIELDS = {"day", "start", "end", "room", "class", "description"};
+
+    /**
+     * The line written before the first row of an export and skipped if it is the first row of an import
+     * @return String header line, or null if the format has none
+     */
+    public abstract String header();
+
+    /**
+     * Splits a row into the fields of a Session, in the order an 'ADD' takes them
+     * @param row String row without its line terminator
+     * @return String[] the six fields, or null if the row is not in this format
+     */
+    public abstract String[] fields(String row);
+
+    /**
+     * Formats a Session as a row
+     * @param s Session to format
+     * @return String row without a line terminator
+     */
+    public abstract String format(Session s);
+
+    private static void quote(String value, StringBuilder into) {
+        into.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                into.append('\\').append(c);
+            else if (c < 0x20)
+                into.append(String.format("\\u%04x", (int) c));
+            else
+                into.append(c);
+        }
+        into.append('"');
+    }
+
+    /**
+     * Reads the single flat object of a JSONL row. Every value must be a string and every field of a Session
+     * must be there exactly once, anything else makes the row invalid
+     */
+    private static final class JsonObject {
+        private final String text;
+        private int position = 0;
+
+        JsonObject(String text) {
+            this.text = text;
+        }
+
+        String[] fields() {
+            String[] fields = new String[FIELDS.length];
+            if (!skip('{'))
+                return null;
+            if (skip('}'))
+                return null;
+            do {
+                String key = string();
+                if (key == null || !skip(':'))
+                    return null;
+                String value = string();
+                int field = indexOf(key);
+                if (value == null || field < 0 || fields[field] != null)
+                    return null;
+                fields[field] = value;
+            } while (skip(','));
+            if (!skip('}'))
+                return null;
+            skipSpaces();
+            if (position != text.length())
+                return null;
+            for (String field : fields) {
+                if (field == null)
+                    return null;
+            }
+            return fields;
+        }
+
+        private boolean skip(char c) {
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private String string() {
+            if (!skip('"'))
+                return null;
+            StringBuilder value = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"')
+                    return value.toString();
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position == text.length())
+                    return null;
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case '"': case '\\': case '/': value.append(escaped); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (position + 4 > text.length())
+                            return null;
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            return null;
+        }
+
+        private static int indexOf(String key) {
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (FIELDS[i].equals(key))
+                    return i;
+            }
+            return -1;
+        }
+    }
+}
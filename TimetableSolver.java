@@ -0,0 +1,343 @@
+package model;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+public class TimetableSolver {
+    private static final int DAY_START = LocalTime.of(9, 0).toSecondOfDay();
+    private static final int DAY_END = LocalTime.of(18, 0).toSecondOfDay();
+    private static final int GRID = 15 * 60;
+    private static final int HOUR = 3600;
+
+    /**
+     * What the solver minimises, each counted per class per day
+     */
+    public enum Objective {
+        /** how late each class finishes */
+        EARLIEST_FINISH,
+        /** how often a class changes room between consecutive Sessions */
+        FEWEST_ROOM_CHANGES,
+        /** idle time between a class's first and last Session */
+        FEWEST_GAPS
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor for a TimetableSolver with a pool of its own, one worker per core. The workers keep every
+     * core busy for the whole time budget, so they are kept off the common pool
+     */
+    public TimetableSolver() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Constructor for the TimetableSolver class
+     * @param pool ForkJoinPool running one local search per worker thread
+     */
+    public TimetableSolver(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Rearranges the whole schedule to improve an objective. Sessions may move to another weekday, time or
+     * room already in use, keep their length, stay within 09:00 to 18:00 and never clash on room or class.
+     * The search runs on a snapshot without holding any lock, then the result is applied as one atomic change
+     * @param scheduler SessionScheduler to optimise
+     * @param objective Objective to minimise
+     * @param budgetMillis long time the search may run for
+     * @return Map of the Sessions that moved to where they moved to
+     * @throws IllegalStateException if the schedule changed underneath the search so the plan no longer fits
+     */
+    public Map<Session, Session> optimize(SessionScheduler scheduler, Objective objective, long budgetMillis) {
+        Problem problem = new Problem(scheduler.getListSchedule(), objective);
+        if (problem.size() == 0)
+            return Collections.emptyMap();
+        long deadline = System.nanoTime() + budgetMillis * 1_000_000;
+
+        int[][] best = pool.invoke(new RecursiveTask<int[][]>() {
+            @Override
+            protected int[][] compute() {
+                List<Search> searches = new ArrayList<>();
+                for (int i = 0; i < pool.getParallelism(); i++) {
+                    // the first search only ever goes downhill, the rest anneal from different seeds
+                    searches.add(new Search(problem, deadline, i, i > 0));
+                }
+                ForkJoinTask.invokeAll(searches);
+                Search winner = searches.get(0);
+                for (Search search : searches) {
+                    if (search.bestCost < winner.bestCost)
+                        winner = search;
+                }
+                return winner.best;
+            }
+        });
+
+        Map<Session, Session> plan = problem.moves(best);
+        if (plan.isEmpty())
+            return plan;
+        return scheduler.moveAll(days -> plan);
+    }
+
+    /**
+     * The schedule as flat arrays the searches share read only: length, class and original placement of every
+     * Session, with days, rooms and classes numbered
+     */
+    private static final class Problem {
+        private final List<Session> sessions;
+        private final Objective objective;
+        private final DayOfWeek[] dayValues;
+        private final String[] roomNames;
+        private final int classCount;
+        private final int[] length;
+        private final int[] classOf;
+        private final int[][] original;
+        private final boolean[] fixed;
+
+        Problem(List<Session> sessions, Objective objective) {
+            this.sessions = sessions;
+            this.objective = objective;
+            int n = sessions.size();
+
+            TreeSet<DayOfWeek> usedDays = new TreeSet<>(EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY));
+            Map<String, Integer> rooms = new LinkedHashMap<>();
+            Map<String, Integer> classes = new HashMap<>();
+            for (Session s : sessions) {
+                usedDays.add(s.getDay());
+                rooms.putIfAbsent(s.getRoom(), rooms.size());
+                classes.putIfAbsent(s.getClassName().toUpperCase(), classes.size());
+            }
+            dayValues = usedDays.toArray(new DayOfWeek[0]);
+            roomNames = rooms.keySet().toArray(new String[0]);
+            classCount = classes.size();
+
+            length = new int[n];
+            classOf = new int[n];
+            fixed = new boolean[n];
+            original = new int[3][n];
+            List<DayOfWeek> dayList = Arrays.asList(dayValues);
+            for (int i = 0; i < n; i++) {
+                Session s = sessions.get(i);
+                int start = s.getStartTime().toSecondOfDay();
+                length[i] = s.getEndTime().toSecondOfDay() - start;
+                classOf[i] = classes.get(s.getClassName().toUpperCase());
+                original[0][i] = dayList.indexOf(s.getDay());
+                original[1][i] = start;
+                original[2][i] = rooms.get(s.getRoom());
+                // anything already outside the teaching day is left where it is
+                fixed[i] = start < DAY_START || start + length[i] > DAY_END;
+            }
+        }
+
+        int size() {
+            return sessions.size();
+        }
+
+        Map<Session, Session> moves(int[][] placement) {
+            Map<Session, Session> moves = new LinkedHashMap<>();
+            for (int i = 0; i < size(); i++) {
+                if (placement[0][i] == original[0][i] && placement[1][i] == original[1][i]
+                        && placement[2][i] == original[2][i])
+                    continue;
+                Session s = sessions.get(i);
+                moves.put(s, new Session(dayValues[placement[0][i]], LocalTime.ofSecondOfDay(placement[1][i]),
+                        LocalTime.ofSecondOfDay(placement[1][i] + length[i]), roomNames[placement[2][i]],
+                        s.getClassName(), s.getDescription()));
+            }
+            return moves;
+        }
+    }
+
+    /**
+     * One local search: repeatedly picks a Session and tries a random clash-free new day, time or room for
+     * it, keeping the change if it does not make things worse, or when annealing, sometimes even if it does.
+     * The cost is the objective plus one per Session away from its original place, so nothing moves for nothing
+     */
+    @SuppressWarnings("serial") // never serialized, ForkJoinTask is only Serializable by inheritance
+    private static final class Search extends RecursiveTask<Void> {
+        private static final int OBJECTIVE_WEIGHT = 10;
+
+        private final Problem p;
+        private final long deadline;
+        private final Random random;
+        private final boolean anneal;
+        private final int[] day;
+        private final int[] start;
+        private final int[] room;
+        private final List<List<Integer>> byRoom = new ArrayList<>();
+        private final List<List<Integer>> byClass = new ArrayList<>();
+        private long cost;
+        int[][] best;
+        long bestCost;
+
+        Search(Problem p, long deadline, long seed, boolean anneal) {
+            this.p = p;
+            this.deadline = deadline;
+            this.random = new Random(seed);
+            this.anneal = anneal;
+            day = p.original[0].clone();
+            start = p.original[1].clone();
+            room = p.original[2].clone();
+            for (int i = 0; i < p.dayValues.length * p.roomNames.length; i++) {
+                byRoom.add(new ArrayList<>());
+            }
+            for (int i = 0; i < p.dayValues.length * p.classCount; i++) {
+                byClass.add(new ArrayList<>());
+            }
+            for (int i = 0; i < p.size(); i++) {
+                place(i);
+            }
+        }
+
+        @Override
+        protected Void compute() {
+            for (int d = 0; d < p.dayValues.length; d++) {
+                for (int c = 0; c < p.classCount; c++) {
+                    cost += OBJECTIVE_WEIGHT * classDayCost(d, c);
+                }
+            }
+            keepBest();
+
+            long startedAt = System.nanoTime();
+            double temperature = HOUR;
+            for (long step = 0; ; step++) {
+                if ((step & 255) == 0) {
+                    // copying the placement on every small improvement would cost more than the search itself
+                    if (cost < bestCost)
+                        keepBest();
+                    long now = System.nanoTime();
+                    if (now >= deadline)
+                        break;
+                    // cool from an hour's worth of cost down to almost nothing as the budget runs out
+                    double progress = (double) (now - startedAt) / Math.max(1, deadline - startedAt);
+                    temperature = HOUR * Math.pow(0.001, progress);
+                }
+                tryMove(temperature);
+            }
+            if (cost < bestCost)
+                keepBest();
+            return null;
+        }
+
+        private void tryMove(double temperature) {
+            int i = random.nextInt(p.size());
+            if (p.fixed[i])
+                return;
+            int newDay = random.nextInt(4) == 0 ? random.nextInt(p.dayValues.length) : day[i];
+            int newRoom = random.nextInt(4) == 0 ? random.nextInt(p.roomNames.length) : room[i];
+            int slots = (DAY_END - DAY_START - p.length[i]) / GRID + 1;
+            int newStart;
+            if (random.nextBoolean() && (start[i] - DAY_START) % GRID == 0) {
+                newStart = start[i] + (random.nextBoolean() ? GRID : -GRID);
+                if (newStart < DAY_START || newStart + p.length[i] > DAY_END)
+                    return;
+            } else {
+                newStart = DAY_START + random.nextInt(slots) * GRID;
+            }
+            if (newDay == day[i] && newStart == start[i] && newRoom == room[i])
+                return;
+            if (!fits(i, newDay, newStart, newRoom))
+                return;
+
+            int oldDay = day[i], oldStart = start[i], oldRoom = room[i];
+            int c = p.classOf[i];
+            long before = OBJECTIVE_WEIGHT * (classDayCost(oldDay, c) + (newDay != oldDay ? classDayCost(newDay, c) : 0))
+                    + displaced(i);
+            unplace(i);
+            day[i] = newDay;
+            start[i] = newStart;
+            room[i] = newRoom;
+            place(i);
+            long after = OBJECTIVE_WEIGHT * (classDayCost(oldDay, c) + (newDay != oldDay ? classDayCost(newDay, c) : 0))
+                    + displaced(i);
+
+            long delta = after - before;
+            boolean accept = delta <= 0
+                    || (anneal && random.nextDouble() < Math.exp(-delta / temperature));
+            if (!accept) {
+                unplace(i);
+                day[i] = oldDay;
+                start[i] = oldStart;
+                room[i] = oldRoom;
+                place(i);
+                return;
+            }
+            cost += delta;
+        }
+
+        /**
+         * Checks Session i could go to a place without clashing on room or class, using the same rule as
+         * SessionScheduler.conflicts()
+         */
+        private boolean fits(int i, int newDay, int newStart, int newRoom) {
+            int newEnd = newStart + p.length[i];
+            for (int j : byRoom.get(newDay * p.roomNames.length + newRoom)) {
+                if (j != i && start[j] < newEnd && newStart < start[j] + p.length[j])
+                    return false;
+            }
+            for (int j : byClass.get(newDay * p.classCount + p.classOf[i])) {
+                if (j != i && start[j] < newEnd && newStart < start[j] + p.length[j])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * The objective for one class on one day, in seconds, with a room change counted as an hour
+         */
+        private long classDayCost(int d, int c) {
+            List<Integer> sessions = byClass.get(d * p.classCount + c);
+            if (sessions.isEmpty())
+                return 0;
+            switch (p.objective) {
+                case EARLIEST_FINISH: {
+                    int last = 0;
+                    for (int j : sessions) {
+                        last = Math.max(last, start[j] + p.length[j]);
+                    }
+                    return last - DAY_START;
+                }
+                case FEWEST_ROOM_CHANGES: {
+                    sessions.sort(Comparator.comparingInt(j -> start[j]));
+                    long changes = 0;
+                    for (int k = 1; k < sessions.size(); k++) {
+                        if (room[sessions.get(k)] != room[sessions.get(k - 1)])
+                            changes++;
+                    }
+                    return changes * HOUR;
+                }
+                default: {
+                    int first = Integer.MAX_VALUE, last = 0;
+                    long busy = 0;
+                    for (int j : sessions) {
+                        first = Math.min(first, start[j]);
+                        last = Math.max(last, start[j] + p.length[j]);
+                        busy += p.length[j];
+                    }
+                    return last - first - busy;
+                }
+            }
+        }
+
+        private int displaced(int i) {
+            return day[i] == p.original[0][i] && start[i] == p.original[1][i] && room[i] == p.original[2][i] ? 0 : 1;
+        }
+
+        private void place(int i) {
+            byRoom.get(day[i] * p.roomNames.length + room[i]).add(i);
+            byClass.get(day[i] * p.classCount + p.classOf[i]).add(i);
+        }
+
+        private void unplace(int i) {
+            byRoom.get(day[i] * p.roomNames.length + room[i]).remove((Integer) i);
+            byClass.get(day[i] * p.classCount + p.classOf[i]).remove((Integer) i);
+        }
+
+        private void keepBest() {
+            best = new int[][] {day.clone(), start.clone(), room.clone()};
+            bestCost = cost;
+        }
+    }
+}
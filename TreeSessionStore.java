@@ -0,0 +1,122 @@
+package model;
+import java.time.LocalTime;
+import java.util.*;
+public class TreeSessionStore implements SessionStore {
+    private static final Comparator<Session> IN_DAY_ORDER = Comparator.comparing(Session::getStartTime)
+            .thenComparing(Session::getEndTime).thenComparing(Session::getRoom).thenComparing(Session::getClassName);
+
+    private final TreeSet<Session> sessions = new TreeSet<>(IN_DAY_ORDER);
+    private final Map<String, TreeMap<LocalTime, Session>> byRoom = new HashMap<>();
+    private final Map<String, TreeMap<LocalTime, Session>> byClass = new HashMap<>();
+    private final Map<SlotKey, Session> bySlot = new HashMap<>();
+
+    /**
+     * Sessions in one room never overlap, and neither do Sessions of one class, so each room and each class
+     * has its own start-time index of disjoint intervals. Only the last interval starting before a new Session
+     * ends can overlap it, which makes a clash check two map lookups instead of a scan of the whole day
+     */
+    @Override
+    public boolean clashes(Session s, Session ignore) {
+        return overlaps(byRoom.get(s.getRoom()), s, ignore)
+                || overlaps(byClass.get(classKey(s)), s, ignore);
+    }
+
+    private static boolean overlaps(TreeMap<LocalTime, Session> index, Session s, Session ignore) {
+        if (index == null)
+            return false;
+        Map.Entry<LocalTime, Session> last = index.lowerEntry(s.getEndTime());
+        if (last != null && last.getValue().equals(ignore))
+            last = index.lowerEntry(last.getKey());
+        return last != null && last.getValue().getEndTime().isAfter(s.getStartTime());
+    }
+
+    @Override
+    public void insert(Session s) {
+        sessions.add(s);
+        byRoom.computeIfAbsent(s.getRoom(), k -> new TreeMap<>()).put(s.getStartTime(), s);
+        byClass.computeIfAbsent(classKey(s), k -> new TreeMap<>()).put(s.getStartTime(), s);
+        bySlot.put(new SlotKey(s.getStartTime(), s.getEndTime(), s.getRoom()), s);
+    }
+
+    @Override
+    public void delete(Session s) {
+        sessions.remove(s);
+        unindex(byRoom, s.getRoom(), s);
+        unindex(byClass, classKey(s), s);
+        bySlot.remove(new SlotKey(s.getStartTime(), s.getEndTime(), s.getRoom()));
+    }
+
+    private static void unindex(Map<String, TreeMap<LocalTime, Session>> index, String key, Session s) {
+        TreeMap<LocalTime, Session> sessions = index.get(key);
+        sessions.remove(s.getStartTime());
+        if (sessions.isEmpty())
+            index.remove(key);
+    }
+
+    @Override
+    public boolean contains(Session s) {
+        return sessions.contains(s);
+    }
+
+    /**
+     * Found with a single hash lookup on the slot
+     */
+    @Override
+    public Session find(LocalTime startTime, LocalTime endTime, String room) {
+        return bySlot.get(new SlotKey(startTime, endTime, room));
+    }
+
+    @Override
+    public void collectClass(String className, List<Session> into) {
+        TreeMap<LocalTime, Session> classSessions = byClass.get(className.toUpperCase());
+        if (classSessions == null)
+            return;
+        for (Session session : classSessions.values()) {
+            if (session.getClassName().equals(className))
+                into.add(session);
+        }
+    }
+
+    @Override
+    public List<Session> sessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+    private static String classKey(Session s) {
+        // class names clash regardless of case, see SessionScheduler.conflicts()
+        return s.getClassName().toUpperCase();
+    }
+
+    /**
+     * Start, end and room of a booking, the key REMOVE identifies a Session by within its day
+     */
+    private static final class SlotKey {
+        private final LocalTime startTime;
+        private final LocalTime endTime;
+        private final String room;
+
+        SlotKey(LocalTime startTime, LocalTime endTime, String room) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.room = room;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SlotKey))
+                return false;
+            SlotKey b = (SlotKey) other;
+            return startTime.equals(b.startTime) && endTime.equals(b.endTime) && room.equals(b.room);
+        }
+
+        @Override
+        public int hashCode() {
+            return (startTime.hashCode() * 31 + endTime.hashCode()) * 31 + room.hashCode();
+        }
+    }
+}
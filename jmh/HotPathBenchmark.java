@@ -0,0 +1,135 @@
+package benchmark;
+import controller.SessionController;
+import model.IncorrectActionException;
+import model.Session;
+import model.SessionScheduler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the scheduler, parser and formatting hot paths over schedules of different sizes
+ * and shapes. A schedule is built once for each combination of parameters and every benchmark leaves it as it
+ * found it. Each of its rooms holds sessionsPerRoom Sessions and each of its classes sessionsPerClass, so few
+ * large rooms or classes can be compared with many small ones.
+ * Usage: java -jar jmh/target/benchmarks.jar HotPathBenchmark -rf json -rff hot-path-results.json
+ *        [-p size=100,10000,1000000] [-p sessionsPerRoom=5,45] [-p sessionsPerClass=1,45]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotPathBenchmark {
+    // Sessions fill the 45 weekday hours of 09:00 to 18:00 in order, so a room or class given a run of
+    // consecutive Sessions whose length divides 45 never clashes with itself
+    private static final int SLOTS = 45;
+    // the share of a mixed workload that is the other kind of operation
+    private static final int MIX = 20;
+
+    @Param({"100", "10000", "1000000"})
+    private int size;
+    @Param({"5", "45"})
+    private int sessionsPerRoom;
+    @Param({"1", "45"})
+    private int sessionsPerClass;
+
+    private SessionScheduler scheduler;
+    private SessionController controller;
+    private List<Session> sessions;
+    private String[] conflictingAdds;
+    private String[] classNames;
+    // a Session in a room and class of its own, added and removed again by the writing benchmarks
+    private final Session spare = new Session(DayOfWeek.MONDAY, LocalTime.of(9, 0), LocalTime.of(10, 0),
+            "SPARE", "SPARE", "LECTURE");
+    // invocations so far, which picks the Session or request each one works on
+    private long invocation;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (SLOTS % sessionsPerRoom != 0 || SLOTS % sessionsPerClass != 0)
+            throw new IllegalArgumentException("Sessions per room and per class must divide " + SLOTS);
+        scheduler = new SessionScheduler();
+        controller = new SessionController(scheduler);
+        for (int i = 0; i < size; i++) {
+            int slot = i % SLOTS;
+            int hour = 9 + slot / 5;
+            if (!scheduler.add(new Session(DayOfWeek.of(1 + slot % 5), LocalTime.of(hour, 0),
+                    LocalTime.of(hour + 1, 0), "R" + i / sessionsPerRoom, "C" + i / sessionsPerClass, "LECTURE")))
+                throw new IllegalStateException("Benchmark schedule clashes at Session " + i);
+        }
+        sessions = scheduler.getListSchedule();
+        int samples = Math.min(size, 4096);
+        conflictingAdds = new String[samples];
+        classNames = new String[samples];
+        for (int i = 0; i < samples; i++) {
+            Session s = sessions.get((int) ((long) i * size / samples));
+            // the same room and time as a scheduled Session, so it is parsed, checked and turned away
+            conflictingAdds[i] = s.getDay() + " " + s.getStartTime() + " " + s.getEndTime() + " "
+                    + s.getRoom().toLowerCase() + " other lab";
+            classNames[i] = s.getClassName();
+        }
+        invocation = 0;
+    }
+
+    @Benchmark
+    public long addRemove() {
+        if (!scheduler.add(spare) || !scheduler.remove(spare))
+            throw new IllegalStateException("The spare Session could not be added and removed");
+        return 1;
+    }
+
+    @Benchmark
+    public boolean addConflicting() {
+        return scheduler.add(sessions.get((int) (invocation++ % sessions.size())));
+    }
+
+    @Benchmark
+    public boolean conflicts() {
+        long i = invocation++;
+        return scheduler.conflicts(sessions.get((int) (i % sessions.size())),
+                sessions.get((int) ((i * 7 + 1) % sessions.size())));
+    }
+
+    @Benchmark
+    public String parseSession() throws IncorrectActionException {
+        return controller.handleIdentifier("ADD", conflictingAdds[(int) (invocation++ % conflictingAdds.length)]);
+    }
+
+    @Benchmark
+    public String format() {
+        return sessions.get((int) (invocation++ % sessions.size())).format();
+    }
+
+    @Benchmark
+    public int getSchedule() {
+        // every read follows a change, so the whole text is built each time
+        return (int) addRemove() + scheduler.getSchedule().length();
+    }
+
+    @Benchmark
+    public long readMostly() {
+        long i = invocation++;
+        return i % MIX == 0 ? addRemove() : scheduler.getSchedule(classNames[(int) (i % classNames.length)]).length();
+    }
+
+    @Benchmark
+    public long writeMostly() {
+        long i = invocation++;
+        return i % MIX == 0 ? scheduler.getSchedule(classNames[(int) (i % classNames.length)]).length() : addRemove();
+    }
+}
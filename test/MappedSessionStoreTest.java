@@ -0,0 +1,133 @@
+package model;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reopens MappedSessionStore files after growing them, tearing records and streaming across a remap, and
+ * checks the Sessions that come back
+ */
+class MappedSessionStoreTest {
+    // the layout of the record file: a header, then fixed width records whose text starts 8 bytes in
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 128;
+    private static final int TEXT_OFFSET = 8;
+    // more rows than a new file holds, so the file grows and is remapped
+    private static final int ROWS = 600;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void aGrownFileReopensWithEverySession() throws Exception {
+        Path file = directory.resolve("MONDAY.sessions");
+        List<Session> expected = new ArrayList<>();
+        MappedSessionStore store = open(DayOfWeek.MONDAY, file);
+        for (int i = 0; i < ROWS; i++) {
+            Session s = session(9, "R" + i);
+            store.insert(s);
+            expected.add(s);
+        }
+        store.delete(expected.remove(7));
+        store.force();
+        store.close();
+        assertTrue(Files.size(file) >= HEADER_SIZE + (long) ROWS * RECORD_SIZE);
+
+        MappedSessionStore reopened = open(DayOfWeek.MONDAY, file);
+        assertEquals(expected.size(), reopened.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(reopened.sessions()));
+        // the deleted Session's row is free again and taken by the next insert
+        reopened.insert(session(10, "R7"));
+        assertTrue(reopened.contains(session(10, "R7")));
+        reopened.close();
+    }
+
+    @Test
+    void aTornRecordIsDroppedOnLoad() throws Exception {
+        Path file = directory.resolve("MONDAY.sessions");
+        MappedSessionStore store = open(DayOfWeek.MONDAY, file);
+        Session kept = session(9, "R1");
+        store.insert(kept);
+        store.insert(session(10, "R2"));
+        store.insert(session(11, "R3"));
+        store.close();
+        // the second record marked used before the end of its text reached the disk, the third with a start
+        // time its text does not have
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(RECORD_SIZE - TEXT_OFFSET - 12),
+                    HEADER_SIZE + RECORD_SIZE + TEXT_OFFSET + 12);
+            channel.write(ByteBuffer.allocate(2).putShort(0, (short) (10 * 60)), HEADER_SIZE + 2 * RECORD_SIZE + 2);
+        }
+
+        MappedSessionStore reopened = open(DayOfWeek.MONDAY, file);
+        assertEquals(List.of(kept), reopened.sessions());
+        reopened.insert(session(10, "R2"));
+        reopened.insert(session(11, "R3"));
+        assertEquals(3, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    void aStreamKeepsItsRecordsAcrossARemapAndADelete() throws Exception {
+        MappedSessionStore store = open(DayOfWeek.MONDAY, directory.resolve("MONDAY.sessions"));
+        Session first = session(9, "R0");
+        store.insert(first);
+        store.insert(session(10, "R0"));
+        List<ByteBuffer> streamed = new ArrayList<>();
+        Runnable done = store.stream(streamed);
+
+        store.delete(first);
+        // would reuse the deleted row if no stream were open, and grows the file past its first mapping
+        for (int i = 1; i < ROWS; i++) {
+            store.insert(session(11, "R" + i));
+        }
+        assertEquals(List.of(first.format(), session(10, "R0").format()), text(streamed));
+        done.run();
+        assertFalse(store.contains(first));
+        store.close();
+    }
+
+    @Test
+    void anotherDaysFileIsRefused() throws Exception {
+        Path file = directory.resolve("MONDAY.sessions");
+        open(DayOfWeek.MONDAY, file).close();
+        assertThrows(IOException.class, () -> open(DayOfWeek.TUESDAY, file));
+        Files.write(file, new byte[HEADER_SIZE + RECORD_SIZE]);
+        assertThrows(IOException.class, () -> open(DayOfWeek.MONDAY, file));
+    }
+
+    private static MappedSessionStore open(DayOfWeek day, Path file) throws IOException {
+        return new MappedSessionStore(day, file, new SymbolTable(), new SymbolTable(), new SymbolTable());
+    }
+
+    private static List<String> text(List<ByteBuffer> buffers) {
+        List<String> text = new ArrayList<>();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            text.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return text;
+    }
+
+    private static Session session(int hour, String room) {
+        return new Session(DayOfWeek.MONDAY, LocalTime.of(hour, 0), LocalTime.of(hour + 1, 0), room, "C" + room,
+                "LECTURE");
+    }
+}
@@ -0,0 +1,222 @@
+package model;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovers schedules from what a ScheduleJournal left on disk, without closing it first, as after a crash
+ */
+class ScheduleJournalTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void namesEndingInACommaSurviveRecovery() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler();
+        ScheduleJournal journal = new ScheduleJournal(directory, scheduler, 0);
+        Session commas = session(DayOfWeek.MONDAY, 10, "R1,", "A,", "LAB,");
+        Session moved = session(DayOfWeek.TUESDAY, 12, "R2", "B, C", "LECTURE");
+        assertTrue(scheduler.add(commas));
+        assertTrue(scheduler.add(moved));
+        assertTrue(scheduler.addAll(List.of(session(DayOfWeek.FRIDAY, 9, "R3", "D,", ", E"),
+                session(DayOfWeek.FRIDAY, 10, "R3", "D,", ", E"))).isEmpty());
+        assertTrue(scheduler.reschedule(moved, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        scheduler.awaitDurable();
+
+        List<Session> expected = scheduler.getListSchedule();
+        assertEquals(expected, recover().getListSchedule());
+        journal.close();
+    }
+
+    @Test
+    void namesEndingInACommaSurviveASnapshot() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler();
+        ScheduleJournal journal = new ScheduleJournal(directory, scheduler, 0);
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 10, "R1", "A,", "LAB")));
+        journal.checkpoint();
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 11, "R1", "A,", "LAB")));
+        scheduler.awaitDurable();
+
+        assertEquals(scheduler.getListSchedule(), recover().getListSchedule());
+        journal.close();
+    }
+
+    @Test
+    void aSwapIsReplayedAsOneMove() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler();
+        ScheduleJournal journal = new ScheduleJournal(directory, scheduler, 0);
+        Session nine = session(DayOfWeek.MONDAY, 9, "R1", "A", "LAB");
+        Session ten = session(DayOfWeek.MONDAY, 10, "R1", "B", "LAB");
+        assertTrue(scheduler.add(nine));
+        assertTrue(scheduler.add(ten));
+        // each to clashes with the other's from, so replay must remove both before adding either
+        scheduler.moveAll(EnumSet.of(DayOfWeek.MONDAY), days -> Map.of(
+                nine, session(DayOfWeek.MONDAY, 10, "R1", "A", "LAB"),
+                ten, session(DayOfWeek.MONDAY, 9, "R1", "B", "LAB")));
+        assertTrue(scheduler.removeAll(List.of(session(DayOfWeek.MONDAY, 10, "R1", "A", "LAB"))).isEmpty());
+        scheduler.awaitDurable();
+
+        assertEquals(List.of(session(DayOfWeek.MONDAY, 9, "R1", "B", "LAB")), recover().getListSchedule());
+        journal.close();
+    }
+
+    @Test
+    void aTornLastRecordIsDropped() throws Exception {
+        Session kept = session(DayOfWeek.MONDAY, 9, "R1", "A", "LAB");
+        Path segment = directory.resolve("journal-0.log");
+        Files.write(segment, journalOf(kept, session(DayOfWeek.MONDAY, 10, "R1", "A", "LAB")));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        assertEquals(List.of(kept), recover().getListSchedule());
+    }
+
+    @Test
+    void aRecordFailingItsChecksumEndsReplay() throws Exception {
+        Session kept = session(DayOfWeek.MONDAY, 9, "R1", "A", "LAB");
+        Session corrupt = session(DayOfWeek.MONDAY, 10, "R1", "A", "LAB");
+        Session after = session(DayOfWeek.MONDAY, 11, "R1", "A", "LAB");
+        byte[] journal = journalOf(kept, corrupt, after);
+        // the last byte of the second record's description
+        journal[recordEnd(journal, 2) - 1] ^= 1;
+        Files.write(directory.resolve("journal-0.log"), journal);
+
+        assertEquals(List.of(kept), recover().getListSchedule());
+    }
+
+    @Test
+    void aCheckpointDeletesTheSegmentsBeforeIt() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler();
+        ScheduleJournal journal = new ScheduleJournal(directory, scheduler, 0);
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 9, "R1", "A", "LAB")));
+        scheduler.awaitDurable();
+        Path before = lastSegment();
+        journal.checkpoint();
+        assertFalse(Files.exists(before));
+        assertTrue(scheduler.add(session(DayOfWeek.TUESDAY, 9, "R1", "A", "LAB")));
+        assertTrue(scheduler.remove(session(DayOfWeek.MONDAY, 9, "R1", "A", "LAB")));
+        scheduler.awaitDurable();
+
+        assertEquals(List.of(session(DayOfWeek.TUESDAY, 9, "R1", "A", "LAB")), recover().getListSchedule());
+        journal.close();
+    }
+
+    @Test
+    void aSegmentCutShortInItsHeaderIsEmpty() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler();
+        ScheduleJournal journal = new ScheduleJournal(directory, scheduler, 0);
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 9, "R1", "A", "LAB")));
+        scheduler.awaitDurable();
+        Files.write(directory.resolve("journal-99.log"), new byte[] {0x53, 0x43, 0x48});
+
+        SessionScheduler recovered = recover();
+        assertEquals(scheduler.getListSchedule(), recovered.getListSchedule());
+        journal.close();
+    }
+
+    @Test
+    void aSegmentThatIsNotAJournalIsRefused() throws Exception {
+        Files.write(directory.resolve("journal-0.log"), "MONDAY 09:00 10:00 R1 A LAB\n".getBytes());
+        assertThrows(IOException.class, this::recover);
+    }
+
+    @Test
+    void recoveringTwiceAppendsToANewSegment() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler();
+        ScheduleJournal journal = new ScheduleJournal(directory, scheduler, 0);
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 9, "R1", "A", "LAB")));
+        scheduler.awaitDurable();
+        Path first = lastSegment();
+
+        SessionScheduler reopened = new SessionScheduler();
+        ScheduleJournal again = new ScheduleJournal(directory, reopened, 0);
+        assertTrue(reopened.add(session(DayOfWeek.MONDAY, 10, "R1", "A", "LAB")));
+        reopened.awaitDurable();
+        assertTrue(lastSegment().compareTo(first) != 0);
+
+        assertEquals(reopened.getListSchedule(), recover().getListSchedule());
+        again.close();
+        journal.close();
+    }
+
+    private SessionScheduler recover() throws Exception {
+        SessionScheduler recovered = new SessionScheduler();
+        new ScheduleJournal(directory, recovered, 0).close();
+        return recovered;
+    }
+
+    /**
+     * The journal segment written last
+     */
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.filter(f -> f.getFileName().toString().startsWith("journal-"))
+                    .sorted(Comparator.comparingLong(ScheduleJournalTest::segmentId)).collect(Collectors.toList());
+            return segments.get(segments.size() - 1);
+        }
+    }
+
+    private static long segmentId(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+    }
+
+    /**
+     * A whole segment, as a journal in a directory of its own writes it, holding one ADD record per Session
+     */
+    private static byte[] journalOf(Session... sessions) throws Exception {
+        Path other = Files.createTempDirectory("journal");
+        try {
+            SessionScheduler scheduler = new SessionScheduler();
+            ScheduleJournal journal = new ScheduleJournal(other, scheduler, 0);
+            for (Session s : sessions) {
+                assertTrue(scheduler.add(s));
+            }
+            scheduler.awaitDurable();
+            byte[] bytes = Files.readAllBytes(other.resolve("journal-1.log"));
+            journal.close();
+            return bytes;
+        } finally {
+            try (Stream<Path> files = Files.walk(other)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Offset just past a segment's nth record, skipping the segment header and each record's length and CRC
+     */
+    private static int recordEnd(byte[] segment, int n) {
+        ByteBuffer buffer = ByteBuffer.wrap(segment);
+        int position = 8;
+        for (int i = 0; i < n; i++) {
+            position += 8 + buffer.getInt(position);
+        }
+        return position;
+    }
+
+    private static Session session(DayOfWeek day, int hour, String room, String className, String description) {
+        return new Session(day, LocalTime.of(hour, 0), LocalTime.of(hour + 1, 0), room, className, description);
+    }
+}
@@ -0,0 +1,144 @@
+package controller;
+import model.Session;
+import model.SessionScheduler;
+import org.junit.jupiter.api.Test;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Makes changes to a schedule a ScheduleSubscription follows and checks the lines it sends: the Sessions first,
+ * then each Session's net change, and the Sessions afresh once too many changes are waiting
+ */
+class ScheduleSubscriptionTest {
+    private final SessionScheduler scheduler = new SessionScheduler();
+    // times the subscription asked to be sent
+    private final AtomicInteger wakes = new AtomicInteger();
+
+    @Test
+    void theSessionsAreSentFirst() {
+        Session monday = session(DayOfWeek.MONDAY, 9, "R1", "CS1");
+        Session friday = session(DayOfWeek.FRIDAY, 9, "R1", "CS1");
+        assertTrue(scheduler.add(friday));
+        assertTrue(scheduler.add(monday));
+        ScheduleSubscription subscription = subscribe(null, 10);
+
+        assertEquals(1, wakes.get());
+        assertEquals(List.of("RESYNC", "ADDED " + monday.format(), "ADDED " + friday.format(), "SYNCED"),
+                drain(subscription));
+    }
+
+    @Test
+    void changesToOneSessionAreSentAsTheirNetChange() {
+        Session kept = session(DayOfWeek.MONDAY, 9, "R1", "CS1");
+        assertTrue(scheduler.add(kept));
+        ScheduleSubscription subscription = subscribe(null, 10);
+        drain(subscription);
+
+        // added then removed, and removed then added back, are never sent
+        Session passing = session(DayOfWeek.TUESDAY, 9, "R1", "CS1");
+        assertTrue(scheduler.add(passing));
+        assertTrue(scheduler.remove(passing));
+        assertTrue(scheduler.remove(kept));
+        assertTrue(scheduler.add(kept));
+        assertEquals(List.of(), drain(subscription));
+
+        // moved twice is one move, from where the client has it to where it is now
+        assertTrue(scheduler.reschedule(kept, LocalTime.of(10, 0), LocalTime.of(11, 0)));
+        Session once = session(DayOfWeek.MONDAY, 10, "R1", "CS1");
+        assertTrue(scheduler.reschedule(once, LocalTime.of(12, 0), LocalTime.of(13, 0)));
+        Session twice = session(DayOfWeek.MONDAY, 12, "R1", "CS1");
+        assertEquals(List.of("MOVED " + kept.format() + ", " + twice.format()), drain(subscription));
+
+        // added then moved is one add, moved then removed is one remove
+        Session added = session(DayOfWeek.WEDNESDAY, 9, "R2", "CS2");
+        assertTrue(scheduler.add(added));
+        assertTrue(scheduler.reschedule(added, LocalTime.of(14, 0), LocalTime.of(15, 0)));
+        assertTrue(scheduler.reschedule(twice, LocalTime.of(16, 0), LocalTime.of(17, 0)));
+        assertTrue(scheduler.remove(session(DayOfWeek.MONDAY, 16, "R1", "CS1")));
+        assertEquals(List.of("ADDED " + session(DayOfWeek.WEDNESDAY, 14, "R2", "CS2").format(),
+                "REMOVED " + twice.format()), drain(subscription));
+    }
+
+    @Test
+    void onlyAnIdleSubscriptionIsWoken() {
+        ScheduleSubscription subscription = subscribe(null, 10);
+        assertEquals(1, wakes.get());
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 9, "R1", "CS1")));
+        assertEquals(1, wakes.get());
+        drain(subscription);
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 10, "R1", "CS1")));
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 11, "R1", "CS1")));
+        assertEquals(2, wakes.get());
+    }
+
+    @Test
+    void tooManyChangesAreReplacedByTheSessions() {
+        ScheduleSubscription subscription = subscribe(null, 2);
+        drain(subscription);
+        List<String> expected = new ArrayList<>(List.of("RESYNC"));
+        for (int hour = 9; hour < 12; hour++) {
+            Session s = session(DayOfWeek.MONDAY, hour, "R1", "CS1");
+            assertTrue(scheduler.add(s));
+            expected.add("ADDED " + s.format());
+        }
+        expected.add("SYNCED");
+        assertEquals(expected, drain(subscription));
+        // once resynced, changes are sent one by one again
+        Session next = session(DayOfWeek.MONDAY, 12, "R1", "CS1");
+        assertTrue(scheduler.add(next));
+        assertEquals(List.of("ADDED " + next.format()), drain(subscription));
+    }
+
+    @Test
+    void aClassSubscriptionOnlyFollowsItsClass() {
+        Session followed = session(DayOfWeek.MONDAY, 9, "R1", "CS1");
+        assertTrue(scheduler.add(followed));
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 9, "R2", "CS2")));
+        ScheduleSubscription subscription = subscribe("CS1", 10);
+        assertEquals(List.of("RESYNC", "ADDED " + followed.format(), "SYNCED"), drain(subscription));
+
+        assertTrue(scheduler.add(session(DayOfWeek.TUESDAY, 9, "R2", "CS2")));
+        assertEquals(List.of(), drain(subscription));
+        assertEquals(1, wakes.get());
+    }
+
+    @Test
+    void nothingIsSentOnceCancelled() {
+        ScheduleSubscription subscription = subscribe(null, 10);
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 9, "R1", "CS1")));
+        subscription.cancel();
+        assertTrue(subscription.isCancelled());
+        assertNull(subscription.nextLine());
+        assertTrue(scheduler.add(session(DayOfWeek.MONDAY, 10, "R1", "CS1")));
+        assertNull(subscription.nextLine());
+        assertEquals(1, wakes.get());
+    }
+
+    private ScheduleSubscription subscribe(String className, int capacity) {
+        ScheduleSubscription subscription = new ScheduleSubscription(scheduler, className, capacity);
+        subscription.start(wakes::incrementAndGet);
+        return subscription;
+    }
+
+    /**
+     * Every line the subscription has to send, as its connection sends them once woken
+     */
+    private static List<String> drain(ScheduleSubscription subscription) {
+        List<String> lines = new ArrayList<>();
+        for (String line = subscription.nextLine(); line != null; line = subscription.nextLine()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static Session session(DayOfWeek day, int hour, String room, String className) {
+        return new Session(day, LocalTime.of(hour, 0), LocalTime.of(hour + 1, 0), room, className, "LECTURE");
+    }
+}
@@ -0,0 +1,203 @@
+package model;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs ADD, REMOVE, moveAll and EARLY_LECTURES from many threads at once over every weekday, with readers
+ * checking each day's snapshot meanwhile, and then checks that no two Sessions clash and that the room, class
+ * and slot indexes of every day agree with the day's Sessions
+ */
+class SessionSchedulerStressTest {
+    private static final int WRITERS = 8;
+    private static final int READERS = 2;
+    private static final int OPERATIONS = 4_000;
+    private static final String[] ROOMS = {"R0", "R1", "R2", "R3", "R4", "R5"};
+    private static final String[] CLASSES = {"C0", "C1", "C2", "C3"};
+    private static final String[] DESCRIPTIONS = {"LECTURE", "LAB", "TUTORIAL"};
+
+    static Stream<Arguments> stores() {
+        Function<DayOfWeek, SessionStore> tree = day -> new TreeSessionStore();
+        return Stream.of(Arguments.of("tree", tree), Arguments.of("packed", PackedSessionStore.perDay()));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("stores")
+    void concurrentChangesKeepTheScheduleConsistent(String name, Function<DayOfWeek, SessionStore> stores)
+            throws Exception {
+        SessionScheduler scheduler = new SessionScheduler(stores);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            EarlyLecturesEngine engine = new EarlyLecturesEngine(pool);
+            // Sessions added less Sessions removed, which moving never changes
+            AtomicInteger scheduled = new AtomicInteger();
+            ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch writersDone = new CountDownLatch(WRITERS);
+
+            List<Thread> threads = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                long seed = w;
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                        Random random = new Random(seed);
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            write(scheduler, engine, random, scheduled);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }, "stress-writer-" + w));
+            }
+            for (int r = 0; r < READERS; r++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                        while (writersDone.getCount() > 0) {
+                            for (DayOfWeek day : DayOfWeek.values()) {
+                                assertNoClashes(scheduler.getListSchedule(day));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }, "stress-reader-" + r));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.MINUTES.toMillis(2));
+                assertFalse(thread.isAlive(), thread.getName() + " did not finish");
+            }
+            if (!failures.isEmpty())
+                throw new AssertionError(failures.size() + " threads failed", failures.peek());
+
+            List<Session> all = scheduler.getListSchedule();
+            assertEquals(scheduled.get(), all.size());
+            List<Session> byDay = new ArrayList<>();
+            for (DayOfWeek day : DayOfWeek.values()) {
+                List<Session> sessions = scheduler.getListSchedule(day);
+                assertNoClashes(sessions);
+                for (Session s : sessions) {
+                    assertEquals(day, s.getDay());
+                    // the room and class indexes turn away the Session's own slot
+                    assertFalse(scheduler.add(s), "Re-added " + s.format());
+                }
+                byDay.addAll(sessions);
+            }
+            assertEquals(all, byDay);
+            for (String className : CLASSES) {
+                List<Session> expected = all.stream().filter(s -> s.getClassName().equals(className))
+                        .collect(Collectors.toList());
+                assertEquals(expected, scheduler.getListSchedule(className));
+                assertEquals(expected.stream().map(Session::format).collect(Collectors.joining(", ")),
+                        scheduler.getSchedule(className));
+            }
+            // the slot index finds every Session, and nothing is left behind in any index
+            for (Session s : all) {
+                assertEquals(s, scheduler.remove(s.getDay(), s.getStartTime(), s.getEndTime(), s.getRoom()));
+            }
+            assertTrue(scheduler.getListSchedule().isEmpty());
+            for (String className : CLASSES) {
+                assertTrue(scheduler.getListSchedule(className).isEmpty());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Makes one random change: an ADD, a REMOVE, a moveAll over a few days or an EARLY_LECTURES
+     */
+    private static void write(SessionScheduler scheduler, EarlyLecturesEngine engine, Random random,
+                              AtomicInteger scheduled) {
+        int choice = random.nextInt(100);
+        if (choice < 50) {
+            if (scheduler.add(randomSession(random)))
+                scheduled.incrementAndGet();
+        } else if (choice < 85) {
+            List<Session> day = scheduler.getListSchedule(randomDay(random));
+            if (!day.isEmpty() && scheduler.remove(day.get(random.nextInt(day.size()))))
+                scheduled.decrementAndGet();
+        } else if (choice < 95) {
+            // moves one Session of each day an hour later, which may clash and then changes nothing
+            Set<DayOfWeek> days = EnumSet.of(randomDay(random), randomDay(random));
+            try {
+                scheduler.moveAll(days, snapshots -> {
+                    Map<Session, Session> moves = new LinkedHashMap<>();
+                    for (List<Session> sessions : snapshots.values()) {
+                        if (sessions.isEmpty())
+                            continue;
+                        Session s = sessions.get(random.nextInt(sessions.size()));
+                        if (s.getEndTime().getHour() < 23)
+                            moves.put(s, new Session(s.getDay(), s.getStartTime().plusHours(1),
+                                    s.getEndTime().plusHours(1), s.getRoom(), s.getClassName(), s.getDescription()));
+                    }
+                    return moves;
+                });
+            } catch (IllegalStateException e) {
+                // the move clashed and was undone
+            }
+        } else if (choice < 98) {
+            engine.shift(scheduler, CLASSES[random.nextInt(CLASSES.length)], EnumSet.of(randomDay(random)));
+        } else {
+            engine.shift(scheduler, "ALL");
+        }
+    }
+
+    private static Session randomSession(Random random) {
+        int hour = 9 + random.nextInt(9);
+        return new Session(randomDay(random), LocalTime.of(hour, 0), LocalTime.of(hour + 1 + random.nextInt(2), 0),
+                ROOMS[random.nextInt(ROOMS.length)], CLASSES[random.nextInt(CLASSES.length)],
+                DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)]);
+    }
+
+    private static DayOfWeek randomDay(Random random) {
+        return DayOfWeek.of(1 + random.nextInt(5));
+    }
+
+    /**
+     * Checks one day's Sessions are in start time order and no room or class is booked twice at once
+     */
+    private static void assertNoClashes(List<Session> sessions) {
+        for (int i = 0; i < sessions.size(); i++) {
+            Session s = sessions.get(i);
+            if (i > 0)
+                assertFalse(s.getStartTime().isBefore(sessions.get(i - 1).getStartTime()), "Out of order " + s.format());
+            for (int j = i + 1; j < sessions.size(); j++) {
+                Session other = sessions.get(j);
+                if (!other.getStartTime().isBefore(s.getEndTime()))
+                    break;
+                assertFalse(other.getRoom().equals(s.getRoom())
+                        || other.getClassName().equalsIgnoreCase(s.getClassName()),
+                        "Clash of " + s.format() + " and " + other.format());
+            }
+        }
+    }
+}